@@ -17,11 +17,8 @@ package com.google.ar.core.examples.java.cloudanchor;
 import android.os.Handler;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -40,6 +37,9 @@ public class AsyncHttpRequest {
   // The listener to call when the request is complete.
   private CompletionListener listener;
 
+  // The listener that reads the response body as it arrives, if the body is not buffered.
+  private StreamingListener streamingListener;
+
   // The handler on which to post a call to the listener.
   private Handler handler;
 
@@ -65,6 +65,27 @@ public class AsyncHttpRequest {
     void onHttpRequestFailure(int statusCode, String message, Exception exception);
   }
 
+  /**
+   * Listener for requests whose response body is parsed as it arrives instead of being buffered.
+   */
+  public interface StreamingListener {
+    /**
+     * Called on the request's background thread with the body of a successful response. The
+     * stream is closed when this returns.
+     * @param responseBody The body of the response.
+     */
+    void onHttpResponseBody(InputStream responseBody) throws IOException;
+
+    /**
+     * Called to indicate that there was a failure in the asynchronous HTTP request, including
+     * an exception thrown while reading the body.
+     * @param statusCode The status code, if a response was received. Otherwise, 0.
+     * @param message The error message.
+     * @param exception The exception that caused the failure, if any. Otherwise, null.
+     */
+    void onHttpRequestFailure(int statusCode, String message, Exception exception);
+  }
+
   /**
    * Creates a new AsyncHttpRequest for the given URL.
    * @param url The URL of the request.
@@ -82,6 +103,23 @@ public class AsyncHttpRequest {
     }
   }
 
+  /**
+   * Creates a new AsyncHttpRequest for the given URL whose response body is streamed.
+   * @param url The URL of the request.
+   * @param handler The handler on which failures should be reported.
+   * @param streamingListener The listener that reads the body, or is told of the failure.
+   */
+  public AsyncHttpRequest(String url, Handler handler, StreamingListener streamingListener) {
+    this.handler = handler;
+    this.streamingListener = streamingListener;
+    try {
+      this.url = new URL(url);
+    } catch (MalformedURLException ex) {
+      Log.e(TAG, "Invalid URL: " + url);
+      streamingListener.onHttpRequestFailure(0, "Invalid URL: " + url, ex);
+    }
+  }
+
   /**
    * Sends the request.
    *
@@ -103,24 +141,21 @@ public class AsyncHttpRequest {
 
   // Main method for background thread.
   private void backgroundMain() {
-    HttpURLConnection connection = null;
-    try {
-      connection = (HttpURLConnection) url.openConnection();
-      int responseCode = connection.getResponseCode();
+    // The shared transport keeps the connection alive for the next request to this host.
+    try (HttpTransport.Exchange exchange = HttpTransport.get().open(url.toString(), "GET")) {
+      int responseCode = exchange.getResponseCode();
       if (responseCode != 200) {
         postFailure(responseCode,
             "Request to " + url + " failed with HTTP status code " + responseCode, null);
         return;
       }
-      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      copyStream(connection.getInputStream(), outputStream);
-      postSuccess(outputStream.toByteArray());
+      if (streamingListener != null) {
+        streamingListener.onHttpResponseBody(exchange.getResponseBody());
+      } else {
+        postSuccess(exchange.readBody());
+      }
     } catch (Exception ex) {
       postFailure(0, "Exception while processing request to " + url, ex);
-    } finally {
-      if (connection != null) {
-        connection.disconnect();
-      }
     }
   }
 
@@ -129,7 +164,11 @@ public class AsyncHttpRequest {
     handler.post(new Runnable() {
       @Override
       public void run() {
-        listener.onHttpRequestFailure(statusCode, message, exception);
+        if (streamingListener != null) {
+          streamingListener.onHttpRequestFailure(statusCode, message, exception);
+        } else {
+          listener.onHttpRequestFailure(statusCode, message, exception);
+        }
       }
     });
   }
@@ -143,17 +182,4 @@ public class AsyncHttpRequest {
       }
     });
   }
-
-  // Copies the entire contents of the given input stream to the given output stream.
-  private static int copyStream(InputStream inputStream, OutputStream outputStream)
-      throws IOException {
-    byte[] buffer = new byte[16384];
-    int totalBytes = 0;
-    int bytesReadThisTime;
-    while ((bytesReadThisTime = inputStream.read(buffer, 0, buffer.length)) > 0) {
-      outputStream.write(buffer, 0, bytesReadThisTime);
-      totalBytes += bytesReadThisTime;
-    }
-    return totalBytes;
-  }
 }
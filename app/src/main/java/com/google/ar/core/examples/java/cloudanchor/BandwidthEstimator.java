@@ -0,0 +1,85 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.Locale;
+
+/**
+ * Keeps a rolling estimate of upload throughput and response time from completed requests.
+ * Thread-safe.
+ *
+ * <p>A request is modelled as its body going out at the upload throughput, followed by a response
+ * time that covers the round trip and the server's work. Both are exponentially weighted moving
+ * averages. Writing a small body mostly fills socket buffers, so only bodies of at least {@code
+ * minSampleBytes} update the throughput.
+ */
+class BandwidthEstimator {
+  private final double smoothing;
+  private final long minSampleBytes;
+
+  // Bytes per millisecond, NaN until the first large enough body.
+  private double throughput = Double.NaN;
+  // Milliseconds from the end of the body to the response status, NaN until the first response.
+  private double responseMs = Double.NaN;
+  private int samples;
+
+  /**
+   * @param smoothing the weight of a new sample, from 0 to 1
+   * @param minSampleBytes the smallest body that updates the throughput
+   */
+  BandwidthEstimator(double smoothing, long minSampleBytes) {
+    this.smoothing = Math.max(0.01, Math.min(1, smoothing));
+    this.minSampleBytes = minSampleBytes;
+  }
+
+  /**
+   * Records a completed request.
+   *
+   * @param bodyBytes the size of the request body, 0 if it had none
+   * @param sendNanos how long writing the body took
+   * @param waitNanos the time from the end of the body to the response status
+   */
+  synchronized void record(long bodyBytes, long sendNanos, long waitNanos) {
+    responseMs = average(responseMs, waitNanos / 1e6);
+    if (bodyBytes >= minSampleBytes && sendNanos > 0) {
+      throughput = average(throughput, bodyBytes / (sendNanos / 1e6));
+    }
+    samples++;
+  }
+
+  /** Returns true once both the throughput and the response time have been measured. */
+  synchronized boolean hasEstimate() {
+    return !Double.isNaN(throughput) && !Double.isNaN(responseMs);
+  }
+
+  /** Returns the predicted latency of a request of {@code bodyBytes}, -1 without an estimate. */
+  synchronized long predictMs(long bodyBytes) {
+    if (!hasEstimate()) {
+      return -1;
+    }
+    return Math.round(responseMs + bodyBytes / throughput);
+  }
+
+  /**
+   * Returns the largest body that is predicted to be answered within {@code budgetMs}, 0 if even an
+   * empty one is not, and {@link Long#MAX_VALUE} without an estimate.
+   */
+  synchronized long affordableBytes(long budgetMs) {
+    if (!hasEstimate()) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, (long) ((budgetMs - responseMs) * throughput));
+  }
+
+  private double average(double current, double sample) {
+    return Double.isNaN(current) ? sample : current + smoothing * (sample - current);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        Locale.US,
+        "%.1f KB/s up, %.0f ms response, %d samples",
+        throughput * 1000 / 1024,
+        responseMs,
+        samples);
+  }
+}
@@ -1,114 +1,129 @@
 package com.google.ar.core.examples.java.cloudanchor;
-import android.app.Activity;
-import android.os.AsyncTask;
-import android.os.SystemClock;
-import android.view.View;
-import android.widget.ImageView;
-
-import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
+import android.os.SystemClock;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.InputStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
-import java.net.URL;
-
-import javax.net.ssl.HttpsURLConnection;
-
-public class CallAPI extends AsyncTask<String, String, String> {
-
-    public SnackbarHelper snack;
-    public String responseR;
-    public Activity activity;
-    public FinalLabel finalLabel;
-    public ObjectType objType;
-
-    public CallAPI(){
-        //set context variables if required
-    }
-    @Override
-    protected void onPostExecute(String s){
-        snack.showMessageWithDismiss(activity,responseR);
-    }
-    @Override
-    protected void onPreExecute() {
-        super.onPreExecute();
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+//blocking HTTP transport for classification requests, ClassificationClient runs it on its worker thread
+public class CallAPI {
+
+    //uploadProtocol values: multipart always streams, form always sends the url-encoded form,
+    //auto tries multipart and falls back to form for endpoints that answer it with 415
+    public static final String PROTOCOL_AUTO = "auto";
+    public static final String PROTOCOL_MULTIPART = "multipart";
+    public static final String PROTOCOL_FORM = "form";
+    //header that tells the server which body layout the request uses
+    private static final String PROTOCOL_HEADER = "X-Upload-Protocol";
+    //how long an endpoint that rejected multipart gets the form before multipart is tried again,
+    //so a redeployed server or a one-off error does not pin it to the larger body for good
+    private static final long FORM_ONLY_RETRY_MS = 10 * 60 * 1000;
+    //endpoints that rejected a multipart request, with the elapsedRealtime until they get the form
+    private static final Map<String, Long> formOnlyEndpoints = Collections.synchronizedMap(new HashMap<String, Long>());
+
+    //sends the request with the given uploadProtocol, see PROTOCOL_AUTO, and parses the response as it arrives
+    public ClassificationResult upload(String requestURL, ClassificationRequest request, String protocol) throws IOException {
+        boolean multipart = !PROTOCOL_FORM.equals(protocol)
+                && !(PROTOCOL_AUTO.equals(protocol) && isFormOnly(requestURL));
+        HttpTransport.Exchange exchange = multipart
+                ? sendMultipart(requestURL, request)
+                : sendForm(requestURL, request);
+        try {
+            if (multipart && PROTOCOL_AUTO.equals(protocol) && isMultipartRejected(exchange.getResponseCode())) {
+                formOnlyEndpoints.put(requestURL, SystemClock.elapsedRealtime() + FORM_ONLY_RETRY_MS);
+                //closing drains the rejection, so the form goes out on the same kept-alive connection
+                exchange.close();
+                exchange = sendForm(requestURL, request);
+            }
+            return readResponse(exchange);
+        } finally {
+            exchange.close();
+        }
     }
 
-
-    @Override
-    public String doInBackground(String... params) {
-        String requestURL = params[0];
-        String data = params[1];
-        URL url;
-        String response = "";
+    //streams the body in chunks, so neither the images nor the whole body are buffered in memory
+    private HttpTransport.Exchange sendMultipart(String requestURL, ClassificationRequest request) throws IOException {
+        String boundary = "----multiUserAR" + UUID.randomUUID().toString().replace("-", "");
+        HttpTransport.Exchange exchange = HttpTransport.get().open(requestURL, "POST");
         try {
-            url = new URL(requestURL);
-
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setReadTimeout(15000);
-            conn.setConnectTimeout(15000);
-            conn.setRequestMethod("POST");
-            conn.setDoInput(true);
-            conn.setDoOutput(true);
-
-
-            OutputStream os = conn.getOutputStream();
-            BufferedWriter writer = new BufferedWriter(
-                    new OutputStreamWriter(os, "UTF-8"));
-            writer.write(data);
+            exchange.measureBandwidth();
+            HttpURLConnection conn = exchange.getConnection();
+            conn.setChunkedStreamingMode(0);
+            conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+            conn.setRequestProperty(PROTOCOL_HEADER, PROTOCOL_MULTIPART);
+            OutputStream os = exchange.getRequestBody();
+            request.writeMultipart(os, boundary);
+            os.close();
+            return exchange;
+        } catch (IOException | RuntimeException e) {
+            exchange.close();
+            throw e;
+        }
+    }
 
-            writer.flush();
-            writer.close();
+    //older endpoints may not accept chunked bodies, so the form is sent with a fixed length
+    private HttpTransport.Exchange sendForm(String requestURL, ClassificationRequest request) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        request.writeForm(body);
+        HttpTransport.Exchange exchange = HttpTransport.get().open(requestURL, "POST");
+        try {
+            exchange.measureBandwidth();
+            HttpURLConnection conn = exchange.getConnection();
+            conn.setFixedLengthStreamingMode(body.size());
+            conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            conn.setRequestProperty(PROTOCOL_HEADER, PROTOCOL_FORM);
+            OutputStream os = exchange.getRequestBody();
+            body.writeTo(os);
             os.close();
-            int responseCode=conn.getResponseCode();
+            return exchange;
+        } catch (IOException | RuntimeException e) {
+            exchange.close();
+            throw e;
+        }
+    }
 
-            if (responseCode == HttpsURLConnection.HTTP_OK) {
-                String line;
-                BufferedReader br=new BufferedReader(new InputStreamReader(conn.getInputStream()));
-                while ((line=br.readLine()) != null) {
-                    response+=line;
-                }
+    //true while the endpoint's multipart rejection has not expired
+    private static boolean isFormOnly(String requestURL) {
+        synchronized (formOnlyEndpoints) {
+            Long until = formOnlyEndpoints.get(requestURL);
+            if (until == null) {
+                return false;
             }
-            else {
-                response="";
-
+            if (SystemClock.elapsedRealtime() < until) {
+                return true;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            formOnlyEndpoints.remove(requestURL);
+            return false;
+        }
+    }
+
+    //only an explicit unsupported media type means the endpoint cannot read multipart,
+    //a 400 or 411 may just as well be a bad request that the form would fail too
+    private static boolean isMultipartRejected(int responseCode) {
+        return responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE;
+    }
+
+    //thrown for any status but 200, so callers can tell server errors from broken connections
+    public static class HttpStatusException extends IOException {
+        public final int statusCode;
+
+        HttpStatusException(int statusCode) {
+            super("Classification request failed with HTTP " + statusCode);
+            this.statusCode = statusCode;
         }
-        responseR = response;
+    }
 
-        try {
-            JSONObject jsonObject = new JSONObject(responseR);
-            //JSONArray array = jsonObject.getJSONArray("labels");
-            //if(array.length()>0) {
-                String finallLabel = (String) jsonObject.getString("labels");
-                String singleResult = (String) jsonObject.getString("single");
-                String imageType = (String) jsonObject.getString("type");
-                if(!(finallLabel.equals("tv") || finallLabel.equals("cup") || finallLabel.equals("cell phone") || finallLabel.equals("keyboard") || finallLabel.equals("person") || finallLabel.equals("pens") || finallLabel.equals("shoes")))
-                    finallLabel = "default";
-                System.out.println(finallLabel);
-                objType.type = finallLabel;
-                finalLabel.label = finallLabel;
-                StringBuilder sb = new StringBuilder();
-                sb.append("FINAL RESULT:");
-                sb.append(finallLabel);
-                sb.append(System.getProperty("line.separator"));
-                sb.append("SINGLE RESULT:");
-                sb.append(singleResult);
-                sb.append(System.getProperty("line.separator"));
-                sb.append("IMAGE TYPE:");
-                sb.append(imageType);
-                snack.showMessageWithDismiss(activity,sb.toString());
-            //}
-        }catch(Exception e){e.printStackTrace();}
-        return response;
+    private static ClassificationResult readResponse(HttpTransport.Exchange exchange) throws IOException {
+        int responseCode = exchange.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            throw new HttpStatusException(responseCode);
+        }
+        return ClassificationResult.read(exchange.getResponseBody());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,157 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Decides which camera frames are worth acquiring and copying into the frame history.
+ *
+ * <p>Between host presses only an occasional frame is needed for the frame history, so frames are
+ * sampled every N frames or at a minimum interval, and can additionally be skipped while the phone
+ * is rotating faster than a gyroscope threshold. With a pre-roll, every frame is captured anyway
+ * into a short ring of its own, so the upload can pick from a dense set of frames right before the
+ * press and be sent at once. Alternatively, a burst started by a host press captures every frame
+ * for a short window after it, and the upload waits for the burst to end.
+ *
+ * <p>{@link #shouldCapture} and {@link #startBurst} are called from the GL thread only.
+ */
+class CaptureSampler {
+  private static final String TAG =
+      CloudAnchorActivity.class.getSimpleName() + "." + CaptureSampler.class.getSimpleName();
+
+  /** How frames are sampled outside of a burst. */
+  enum Mode {
+    /** Capture every frame. */
+    ALL,
+    /** Capture one frame out of every {@code everyNFrames}. */
+    FRAMES,
+    /** Capture a frame when at least {@code minIntervalNs} passed since the last capture. */
+    INTERVAL,
+  }
+
+  private final Mode mode;
+  private final int everyNFrames;
+  private final long minIntervalNs;
+  private final float gyroThreshold;
+  private final long burstNs;
+  private final long preRollNs;
+
+  // Latest gyroscope magnitude in rad/s, written by the sensor callback.
+  private volatile float gyroMagnitude;
+
+  private long framesSinceCapture;
+  private long lastCaptureTimestamp = Long.MIN_VALUE;
+  private long burstEnd = Long.MIN_VALUE;
+
+  /**
+   * @param gyroThreshold frames are skipped while the gyroscope magnitude is above this value in
+   *     rad/s, zero or less disables the check
+   * @param burstNs length of the full-rate window started by {@link #startBurst}, 0 for none
+   * @param preRollNs length of the full-rate window kept before every press, 0 for none. Ignored
+   *     with a burst, whose frames around the press are picked from instead. A pre-roll acquires,
+   *     copies and scores every camera frame whatever the mode, so it is off unless configured
+   */
+  CaptureSampler(
+      Mode mode,
+      int everyNFrames,
+      long minIntervalNs,
+      float gyroThreshold,
+      long burstNs,
+      long preRollNs) {
+    this.mode = mode;
+    this.everyNFrames = Math.max(1, everyNFrames);
+    this.minIntervalNs = minIntervalNs;
+    this.gyroThreshold = gyroThreshold;
+    this.burstNs = Math.max(0, burstNs);
+    this.preRollNs = this.burstNs > 0 ? 0 : Math.max(0, preRollNs);
+  }
+
+  /** Reads the sampling policy from the capture keys in {@code config.properties}. */
+  static CaptureSampler fromConfig(Context context) {
+    Mode mode = Mode.INTERVAL;
+    String modeName = Helper.getConfigValue(context, "captureMode");
+    if (modeName != null) {
+      try {
+        mode = Mode.valueOf(modeName.trim().toUpperCase());
+      } catch (IllegalArgumentException e) {
+        Log.e(TAG, "Unknown captureMode " + modeName + ", using " + mode);
+      }
+    }
+    return new CaptureSampler(
+        mode,
+        Helper.getConfigInt(context, "captureEveryN", 3),
+        Helper.getConfigInt(context, "captureMinIntervalMs", 100) * 1000000L,
+        Helper.getConfigFloat(context, "captureGyroThreshold", 0f),
+        Helper.getConfigInt(context, "captureBurstMs", 0) * 1000000L,
+        Helper.getConfigInt(context, "capturePreRollMs", 0) * 1000000L);
+  }
+
+  /** Updates the latest gyroscope magnitude. Safe to call from any thread. */
+  void setGyroMagnitude(float magnitude) {
+    gyroMagnitude = magnitude;
+  }
+
+  /** Returns the latest gyroscope magnitude in rad/s. */
+  float getGyroMagnitude() {
+    return gyroMagnitude;
+  }
+
+  /** Returns the length of the pre-roll window, 0 if frames are not captured for one. */
+  long getPreRollNs() {
+    return preRollNs;
+  }
+
+  /**
+   * Returns the number of frames the pre-roll ring must hold to cover its window at the camera
+   * frame rate, 0 without a pre-roll.
+   */
+  int getPreRollFrames() {
+    if (preRollNs == 0) {
+      return 0;
+    }
+    // ARCore's default camera configs run at up to 30 fps, one frame more covers both edges.
+    return (int) ((preRollNs * 30 + 999_999_999L) / 1_000_000_000L) + 1;
+  }
+
+  /** Captures every frame from {@code timestamp} until the burst window has passed. */
+  void startBurst(long timestamp) {
+    burstEnd = timestamp + burstNs;
+  }
+
+  /** Returns true while the burst started by {@link #startBurst} is still running. */
+  boolean isBurstActive(long timestamp) {
+    return timestamp < burstEnd;
+  }
+
+  /**
+   * Returns true if the frame with the given timestamp should be captured into the frame history.
+   * With a pre-roll, the other frames are captured too, but only into the pre-roll ring.
+   */
+  boolean shouldCapture(long timestamp) {
+    framesSinceCapture++;
+    boolean capture;
+    if (isBurstActive(timestamp)) {
+      capture = true;
+    } else if (gyroThreshold > 0 && gyroMagnitude > gyroThreshold) {
+      capture = false;
+    } else {
+      switch (mode) {
+        case FRAMES:
+          capture = framesSinceCapture >= everyNFrames;
+          break;
+        case INTERVAL:
+          capture =
+              lastCaptureTimestamp == Long.MIN_VALUE
+                  || timestamp - lastCaptureTimestamp >= minIntervalNs;
+          break;
+        default:
+          capture = true;
+      }
+    }
+    if (capture) {
+      framesSinceCapture = 0;
+      lastCaptureTimestamp = timestamp;
+    }
+    return capture;
+  }
+}
@@ -0,0 +1,113 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.os.SystemClock;
+
+/**
+ * Stops requests to a failing server for a while instead of letting every one of them time out.
+ *
+ * <p>The breaker opens after {@code failureThreshold} consecutive failures. While open, {@link
+ * #allowRequest} refuses requests until {@code openMs} have passed. Then a single trial request is
+ * let through: its success closes the breaker, its failure opens it again. Every request that is
+ * let through holds a {@link Permit}, which it hands back to {@link #release} once it is over, so
+ * a trial that ends without an outcome frees its slot and nobody else's. Thread-safe.
+ */
+class CircuitBreaker {
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN,
+  }
+
+  /** Allows one request. Ask once per request, not once per retry. */
+  static final class Permit {
+    private final boolean trial;
+
+    private Permit(boolean trial) {
+      this.trial = trial;
+    }
+
+    /** Returns true if this is the single request let through to probe a recovering server. */
+    boolean isTrial() {
+      return trial;
+    }
+  }
+
+  // Shared by all requests let through while the breaker is closed.
+  private static final Permit REQUEST = new Permit(false);
+
+  private final int failureThreshold;
+  private final long openMs;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAtMs;
+  // The permit of the trial in flight, null if there is none.
+  private Permit trial;
+
+  /**
+   * @param failureThreshold consecutive failures that open the breaker, at least 1
+   * @param openMs how long the breaker refuses requests before it lets a trial through
+   */
+  CircuitBreaker(int failureThreshold, long openMs) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openMs = openMs;
+  }
+
+  /**
+   * Returns the permit for a request that may be sent now, or null if it may not. In HALF_OPEN the
+   * permit claims the trial.
+   */
+  synchronized Permit allowRequest() {
+    if (state == State.OPEN && SystemClock.elapsedRealtime() - openedAtMs >= openMs) {
+      state = State.HALF_OPEN;
+      trial = null;
+    }
+    switch (state) {
+      case CLOSED:
+        return REQUEST;
+      case HALF_OPEN:
+        if (trial != null) {
+          return null;
+        }
+        trial = new Permit(true);
+        return trial;
+      default:
+        return null;
+    }
+  }
+
+  synchronized void recordSuccess() {
+    consecutiveFailures = 0;
+    trial = null;
+    state = State.CLOSED;
+  }
+
+  synchronized void recordFailure() {
+    consecutiveFailures++;
+    trial = null;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      state = State.OPEN;
+      openedAtMs = SystemClock.elapsedRealtime();
+    }
+  }
+
+  /**
+   * Hands back a permit once its request is over. If it is the trial and the trial ended without an
+   * outcome, another one may be let through. Does nothing for a permit that is not the current
+   * trial, or for null.
+   */
+  synchronized void release(Permit permit) {
+    if (permit != null && permit == trial) {
+      trial = null;
+    }
+  }
+
+  /** Returns true while requests are being refused or only a trial is let through. */
+  synchronized boolean isOpen() {
+    return state != State.CLOSED;
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+}
@@ -0,0 +1,726 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds, uploads and parses classification requests off the GL and UI threads.
+ *
+ * <p>Every request gets a sequence number, sent as {@code sequence_id}, and up to {@code
+ * maxInFlight} requests are sent at once by a pool of workers with a bounded queue. Answers are
+ * delivered on the handler given to the constructor, and only if they are newer than the last one
+ * delivered: an answer that arrives after that of a later request is stale and dropped. With a
+ * single worker, a new request cancels the previous one instead. Requests are built one at a time,
+ * so request factories may share state that is not thread-safe, and with several workers their
+ * images are encoded before the next request is built: in memory, or straight into the upload
+ * queue when requests are persisted.
+ *
+ * <p>Failed uploads are retried a bounded number of times with jittered exponential backoff. With
+ * hedging on, a second copy of the upload is sent once the first has taken longer than the recent
+ * p95 latency, and whichever answers first wins. A {@link CircuitBreaker} fails requests fast
+ * while the server keeps failing, without building or encoding them.
+ *
+ * <p>With an {@link UploadQueue}, every request is persisted before it is sent and only removed
+ * once the server has answered it or refused it for good. Requests that could not be sent stay
+ * queued across restarts and are sent by {@link #drain}, oldest first, when the network comes back
+ * or after the next successful upload. Only the result of the newest request is delivered.
+ *
+ * <p>A request may come with a {@link FollowUpFactory}, for progressive uploads: a thumbnail is
+ * sent first, and the full resolution frame only if the answer to the thumbnail asks for it. Both
+ * run as one call with one sequence number.
+ *
+ * <p>With a {@link ResultCache}, a request whose frame and anchors match an earlier one is answered
+ * from the cache. It is then either not sent at all, or sent anyway to confirm the cached answer,
+ * which is delivered first. Requests that are not persisted are only looked up once the circuit
+ * breaker has let them through.
+ */
+class ClassificationClient {
+  private static final String TAG =
+      CloudAnchorActivity.class.getSimpleName() + "." + ClassificationClient.class.getSimpleName();
+
+  /** Builds the request on the worker thread, so encoding never runs on the caller's thread. */
+  interface RequestFactory {
+    ClassificationRequest create() throws IOException;
+  }
+
+  /** Builds a second request from the answer to the first, on the worker thread. */
+  interface FollowUpFactory {
+    /** Returns the request to send next, or null if {@code first} is the final answer. */
+    ClassificationRequest create(ClassificationResult first) throws IOException;
+  }
+
+  /** Receives the outcome of a request that was not cancelled or superseded. */
+  interface Callback {
+    void onResult(ClassificationResult result);
+
+    void onFailure(Exception exception);
+  }
+
+  /** Thrown instead of sending while the circuit breaker is open. */
+  static final class CircuitOpenException extends IOException {
+    CircuitOpenException() {
+      super("Classification server is unhealthy, not sending");
+    }
+  }
+
+  // Sends a built request and returns its answer.
+  private interface Sender {
+    ClassificationResult send(ClassificationRequest request) throws Exception;
+  }
+
+  // Hedging waits for this many latencies before it trusts the p95.
+  private static final int HEDGE_MIN_SAMPLES = 10;
+
+  private final CallAPI api = new CallAPI();
+  private final String url;
+  private final String protocol;
+  private final Handler callbackHandler;
+  private final ThreadPoolExecutor executor;
+  private final int maxRetries;
+  private final long backoffBaseMs;
+  private final long backoffCapMs;
+  private final CircuitBreaker breaker;
+  private final LatencyTracker latencies = new LatencyTracker(50);
+  // Runs both copies of a hedged upload, null when hedging is off.
+  private final ExecutorService hedgeExecutor;
+
+  // Answers requests for frames seen before, null when results are not cached.
+  private final ResultCache resultCache;
+  // Whether a cached answer is confirmed by the server as well.
+  private final boolean confirmCached;
+
+  // Where the upload queue lives, null when requests are not persisted.
+  private final File queueDir;
+  private final long queueSegmentBytes;
+  private final long queueMaxBytes;
+  // Sends queued requests, at most one drain runs and one more waits.
+  private final ThreadPoolExecutor drainExecutor;
+  private final Object queueLock = new Object();
+
+  // Opened on first use, off the caller's thread, since opening scans the segments.
+  private UploadQueue queue; // Guarded by queueLock.
+  private boolean queueFailed; // Guarded by queueLock.
+
+  private final int maxInFlight;
+  // Serializes request factories, which may share state.
+  private final Object buildLock = new Object();
+  // The call each worker is running.
+  private final ThreadLocal<Call> running = new ThreadLocal<>();
+
+  // The calls that have not completed yet. Guarded by this.
+  private final Set<Call> calls = new LinkedHashSet<>();
+  // The sequence number of the most recent call. Guarded by this.
+  private long lastSequence;
+  // The sequence number of the last call whose answer was delivered. Only used on the handler.
+  private long lastAppliedSequence;
+  // The queued request of the most recent call that was queued, and the callback for it. Guarded
+  // by this.
+  private long latestQueuedId = -1;
+  private long latestQueuedSequence;
+  private Callback latestCallback;
+
+  /**
+   * @param protocol the upload protocol, see {@link CallAPI#PROTOCOL_AUTO}
+   * @param maxInFlight the number of requests that are sent at once
+   * @param maxQueued the number of requests that may wait for a worker
+   * @param maxRetries how many times a failed upload is sent again
+   * @param backoffBaseMs the backoff before the first retry, doubled for each later one
+   * @param backoffCapMs the largest backoff
+   * @param hedge whether to send a second copy of slow uploads
+   * @param queueDir where requests are persisted until answered, null to not persist them
+   * @param queueSegmentBytes the size of one upload queue segment file
+   * @param queueMaxBytes the size of the upload queue, the oldest requests are dropped beyond it
+   * @param resultCache answers requests for frames seen before, null to always send them
+   * @param confirmCached whether requests answered from the cache are sent as well
+   * @param callbackHandler the handler on which callbacks are invoked
+   */
+  ClassificationClient(
+      String url,
+      String protocol,
+      int maxInFlight,
+      int maxQueued,
+      int maxRetries,
+      long backoffBaseMs,
+      long backoffCapMs,
+      boolean hedge,
+      CircuitBreaker breaker,
+      File queueDir,
+      long queueSegmentBytes,
+      long queueMaxBytes,
+      ResultCache resultCache,
+      boolean confirmCached,
+      Handler callbackHandler) {
+    this.url = url;
+    this.protocol = protocol;
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.maxRetries = Math.max(0, maxRetries);
+    this.backoffBaseMs = backoffBaseMs;
+    this.backoffCapMs = backoffCapMs;
+    this.breaker = breaker;
+    this.queueDir = queueDir;
+    this.queueSegmentBytes = queueSegmentBytes;
+    this.queueMaxBytes = queueMaxBytes;
+    this.resultCache = resultCache;
+    this.confirmCached = confirmCached;
+    this.callbackHandler = callbackHandler;
+    hedgeExecutor =
+        hedge
+            ? Executors.newFixedThreadPool(
+                2 * this.maxInFlight, runnable -> new Thread(runnable, "ClassificationHedge"))
+            : null;
+    executor =
+        new ThreadPoolExecutor(
+            this.maxInFlight,
+            this.maxInFlight,
+            30,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued)),
+            runnable -> new Thread(runnable, "Classification"));
+    executor.allowCoreThreadTimeOut(true);
+    drainExecutor =
+        new ThreadPoolExecutor(
+            0,
+            1,
+            30,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1),
+            runnable -> new Thread(runnable, "ClassificationDrain"),
+            new ThreadPoolExecutor.DiscardPolicy());
+  }
+
+  /**
+   * Creates a client for the {@code url}, {@code uploadProtocol}, {@code classifier*}, {@code
+   * uploadQueue*} and {@code resultCache*} config.
+   */
+  static ClassificationClient fromConfig(Context context, Handler callbackHandler) {
+    String protocol = Helper.getConfigValue(context, "uploadProtocol");
+    boolean persist = !"false".equals(Helper.getConfigValue(context, "uploadQueue"));
+    return new ClassificationClient(
+        Helper.getConfigValue(context, "url"),
+        protocol != null ? protocol : CallAPI.PROTOCOL_AUTO,
+        Helper.getConfigInt(context, "classifierConcurrency", 1),
+        Helper.getConfigInt(context, "classifierQueue", 2),
+        Helper.getConfigInt(context, "classifierRetries", 2),
+        Helper.getConfigInt(context, "classifierBackoffMs", 200),
+        Helper.getConfigInt(context, "classifierBackoffCapMs", 2000),
+        "true".equals(Helper.getConfigValue(context, "classifierHedge")),
+        new CircuitBreaker(
+            Helper.getConfigInt(context, "classifierBreakerFailures", 3),
+            Helper.getConfigInt(context, "classifierBreakerOpenMs", 15000)),
+        persist ? new File(context.getFilesDir(), "uploads") : null,
+        Helper.getConfigInt(context, "uploadQueueSegmentMegabytes", 8) * 1024L * 1024L,
+        Helper.getConfigInt(context, "uploadQueueMaxMegabytes", 64) * 1024L * 1024L,
+        ResultCache.fromConfig(context),
+        !"false".equals(Helper.getConfigValue(context, "resultCacheConfirm")),
+        callbackHandler);
+  }
+
+  /** Returns true if requests are looked up in a {@link ResultCache} by their cache key. */
+  boolean isCaching() {
+    return resultCache != null;
+  }
+
+  /** Returns true while the circuit breaker keeps requests from being sent. */
+  boolean isServerUnhealthy() {
+    return breaker.isOpen();
+  }
+
+  /**
+   * Starts a request. With a single worker, the previous one is cancelled if it has not completed
+   * yet.
+   *
+   * @return the future of the result, which can also be used to cancel the request
+   */
+  synchronized Future<ClassificationResult> classify(RequestFactory factory, Callback callback) {
+    return classify(factory, null, callback);
+  }
+
+  /**
+   * Starts a request that is followed by the one {@code followUp} builds from its answer, if any.
+   * Only the answer to the last request sent is delivered.
+   */
+  synchronized Future<ClassificationResult> classify(
+      RequestFactory factory, FollowUpFactory followUp, Callback callback) {
+    if (maxInFlight == 1) {
+      cancel();
+    }
+    Call call = new Call(factory, followUp, ++lastSequence, callback);
+    calls.add(call);
+    latestCallback = callback;
+    try {
+      executor.execute(call);
+    } catch (RejectedExecutionException e) {
+      call.setException(e);
+    }
+    return call;
+  }
+
+  /** Cancels the requests that have not completed yet. Their callbacks are not invoked. */
+  synchronized void cancel() {
+    if (calls.isEmpty()) {
+      return;
+    }
+    // Cancelling a call removes it from the set.
+    for (Call call : new ArrayList<>(calls)) {
+      call.cancel(true);
+    }
+    executor.purge();
+  }
+
+  /**
+   * Sends the queued requests in the background, oldest first, until one fails. Call when the
+   * network becomes available. Does nothing if requests are not persisted.
+   */
+  void drain() {
+    if (queueDir != null) {
+      drainExecutor.execute(this::drainQueue);
+    }
+  }
+
+  /** Cancels the requests in flight and stops the workers. Call from onDestroy. */
+  void shutdown() {
+    cancel();
+    executor.shutdownNow();
+    drainExecutor.shutdownNow();
+    if (hedgeExecutor != null) {
+      hedgeExecutor.shutdownNow();
+    }
+    synchronized (queueLock) {
+      if (queue != null) {
+        queue.close();
+      }
+    }
+  }
+
+  // Runs on the worker: sends the request, then the follow-up if its answer asks for one. The
+  // follow-up is created, encoded or queued in one build like any request, since it reads the same
+  // shared state. If the breaker refuses it, the first answer stands.
+  private ClassificationResult call(RequestFactory factory, FollowUpFactory followUp)
+      throws Exception {
+    final ClassificationResult result = callOnce(factory);
+    if (result == null) {
+      throw new IOException("The request factory created no request");
+    }
+    if (followUp == null) {
+      return result;
+    }
+    Log.d(TAG, "First answer " + result.getLabel() + " at confidence " + result.getConfidence());
+    ClassificationResult next;
+    try {
+      next = callOnce(() -> followUp.create(result));
+    } catch (CircuitOpenException e) {
+      Log.w(TAG, "Not sending the follow-up, keeping the first answer", e);
+      return result;
+    }
+    return next != null ? next : result;
+  }
+
+  // Answers from the cache if it can, and sends the request otherwise or to confirm the answer.
+  // Returns null if the factory creates no request.
+  private ClassificationResult callOnce(RequestFactory factory) throws Exception {
+    final UploadQueue queue = queue();
+    if (queue != null) {
+      // Persisted before the breaker is asked, so it is kept even while the server is down. The
+      // images are encoded straight into the segment while the factory's state is still ours, so
+      // they are not materialized: sendClaimed reads them back from the segment.
+      ClassificationRequest request;
+      final long id;
+      synchronized (buildLock) {
+        request = build(factory, false);
+        if (request == null) {
+          return null;
+        }
+        id = queue.appendClaimed(request);
+      }
+      ClassificationResult result = answer(request, ignored -> callQueued(queue, id));
+      // Acknowledged already if it was sent, and not needed if the cache answered it.
+      queue.ack(id);
+      return result;
+    }
+    // Asked once per request, before the frame is converted and hashed for nothing.
+    CircuitBreaker.Permit permit = breaker.allowRequest();
+    if (permit == null) {
+      throw new CircuitOpenException();
+    }
+    try {
+      ClassificationRequest request = build(factory, maxInFlight > 1 || hedgeExecutor != null);
+      return request != null ? answer(request, this::sendWithRetries) : null;
+    } finally {
+      // A cancelled or unbuildable request says nothing about the server's health.
+      breaker.release(permit);
+    }
+  }
+
+  // Returns the cached answer to the request if there is one, and sends it otherwise or to confirm
+  // the answer.
+  private ClassificationResult answer(ClassificationRequest request, Sender sender)
+      throws Exception {
+    ResultCache.Key key = resultCache != null ? request.getCacheKey() : null;
+    ClassificationResult cached = key != null ? resultCache.get(key) : null;
+    if (cached != null) {
+      Log.d(TAG, "Answered " + cached.getLabel() + " from the cache, " + resultCache);
+      if (!confirmCached) {
+        return cached;
+      }
+      deliverEarly(running.get(), cached);
+    }
+    ClassificationResult result = sender.send(request);
+    if (key != null) {
+      resultCache.put(key, result);
+    }
+    return result;
+  }
+
+  // Delivers a cached answer while the request confirming it is still in flight.
+  private void deliverEarly(final Call call, final ClassificationResult result) {
+    callbackHandler.post(
+        () -> {
+          if (!call.isDone() && call.sequence > lastAppliedSequence) {
+            lastAppliedSequence = call.sequence;
+            call.callback.onResult(result);
+          }
+        });
+  }
+
+  // Builds the request and numbers it with the sequence of the running call. Builds never overlap,
+  // since factories may share state. The images are encoded right away if materialize is set, for
+  // a body that may be written while the next request is built, or by both copies of a hedged
+  // upload at once. Returns null if the factory creates no request.
+  private ClassificationRequest build(RequestFactory factory, boolean materialize)
+      throws IOException {
+    synchronized (buildLock) {
+      ClassificationRequest request = factory.create();
+      if (request == null) {
+        return null;
+      }
+      Call call = running.get();
+      if (call != null) {
+        request.putField("sequence_id", Long.toString(call.sequence));
+      }
+      if (materialize) {
+        request.materialize();
+      }
+      return request;
+    }
+  }
+
+  // Sends the request the running call has appended and claimed. It stays queued if the breaker
+  // refuses it.
+  private ClassificationResult callQueued(UploadQueue queue, long id) throws Exception {
+    Call call = running.get();
+    synchronized (this) {
+      if (call != null && call.sequence >= latestQueuedSequence) {
+        latestQueuedId = id;
+        latestQueuedSequence = call.sequence;
+      }
+    }
+    CircuitBreaker.Permit permit = breaker.allowRequest();
+    if (permit == null) {
+      queue.release(id);
+      throw new CircuitOpenException();
+    }
+    try {
+      ClassificationResult result = sendClaimed(queue, id);
+      drain();
+      return result;
+    } finally {
+      breaker.release(permit);
+    }
+  }
+
+  // Sends a claimed request from the queue. It is acknowledged once answered, refused for good or
+  // superseded by a newer press, and released for a later drain otherwise.
+  private ClassificationResult sendClaimed(UploadQueue queue, long id) throws Exception {
+    boolean done = false;
+    try {
+      // The stored images are read through their own file handles, hedged copies need no copy.
+      ClassificationRequest request = queue.read(id);
+      if (request == null) {
+        throw new IOException("Request " + id + " is no longer queued");
+      }
+      ClassificationResult result = sendWithRetries(request);
+      done = true;
+      return result;
+    } catch (CallAPI.HttpStatusException e) {
+      done = !isRetryable(e);
+      throw e;
+    } finally {
+      if (done || isSuperseded(running.get())) {
+        queue.ack(id);
+      } else {
+        queue.release(id);
+      }
+    }
+  }
+
+  // True if the call was cancelled by a newer one, whose answer replaces it. A call cancelled by
+  // shutdown is not superseded, its request is still worth sending later. Null on the drain thread.
+  private boolean isSuperseded(Call call) {
+    return call != null && call.isCancelled() && !isNewest(call);
+  }
+
+  // Runs on the drain thread: sends the queued requests until one fails or the breaker opens.
+  private void drainQueue() {
+    UploadQueue queue = queue();
+    if (queue == null) {
+      return;
+    }
+    long id;
+    while (!Thread.currentThread().isInterrupted() && (id = queue.claimNext()) != -1) {
+      CircuitBreaker.Permit permit = breaker.allowRequest();
+      if (permit == null) {
+        queue.release(id);
+        return;
+      }
+      try {
+        ClassificationResult result = sendClaimed(queue, id);
+        Log.d(TAG, "Sent queued request " + id + ", " + queue.size() + " left");
+        final long sentId = id;
+        callbackHandler.post(() -> deliverQueued(sentId, result));
+      } catch (CallAPI.HttpStatusException e) {
+        if (isRetryable(e)) {
+          Log.w(TAG, "Queued request " + id + " failed, stopping the drain", e);
+          return;
+        }
+        Log.w(TAG, "Queued request " + id + " was refused, dropped it", e);
+      } catch (Exception e) {
+        Log.w(TAG, "Queued request " + id + " failed, stopping the drain", e);
+        return;
+      } finally {
+        breaker.release(permit);
+      }
+    }
+  }
+
+  // Runs on the callback handler: a drained result is only shown if no newer one was.
+  private void deliverQueued(long id, ClassificationResult result) {
+    Callback callback;
+    long sequence;
+    synchronized (this) {
+      if (id != latestQueuedId || latestCallback == null) {
+        return;
+      }
+      callback = latestCallback;
+      sequence = latestQueuedSequence;
+    }
+    if (sequence <= lastAppliedSequence) {
+      return;
+    }
+    lastAppliedSequence = sequence;
+    callback.onResult(result);
+  }
+
+  // Opens the queue on first use. Null if requests are not persisted or the queue cannot be opened.
+  private UploadQueue queue() {
+    synchronized (queueLock) {
+      if (queue == null && queueDir != null && !queueFailed) {
+        try {
+          queue = UploadQueue.open(queueDir, queueSegmentBytes, queueMaxBytes);
+        } catch (IOException e) {
+          Log.e(TAG, "Cannot open the upload queue, requests are not persisted", e);
+          queueFailed = true;
+        }
+      }
+      return queue;
+    }
+  }
+
+  // Uploads with retries and tells the breaker how the request ended. The caller holds the permit,
+  // so the breaker counts requests, not attempts: only the last attempt of a request that keeps
+  // failing is recorded, otherwise the retries of a single request could open it on their own. A
+  // refusal shows the server is up and is not recorded at all. No retry is sent once the breaker
+  // has opened.
+  private ClassificationResult sendWithRetries(ClassificationRequest request) throws Exception {
+    for (int attempt = 0; ; attempt++) {
+      try {
+        ClassificationResult result = send(request);
+        breaker.recordSuccess();
+        return result;
+      } catch (IOException e) {
+        if (isCancellation(e) || !isRetryable(e)) {
+          throw e;
+        }
+        if (attempt >= maxRetries || breaker.isOpen()) {
+          breaker.recordFailure();
+          throw e;
+        }
+        long backoff = backoffMs(attempt);
+        Log.w(TAG, "Attempt " + (attempt + 1) + " failed, retrying in " + backoff + " ms", e);
+        Thread.sleep(backoff);
+      }
+    }
+  }
+
+  // A cancelled call, as opposed to a connect or read timeout, which is a slow server failing.
+  private static boolean isCancellation(IOException e) {
+    return Thread.currentThread().isInterrupted()
+        || (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException));
+  }
+
+  // Server errors and broken connections may pass, a request the server refused will not.
+  private static boolean isRetryable(IOException e) {
+    if (e instanceof CallAPI.HttpStatusException) {
+      int status = ((CallAPI.HttpStatusException) e).statusCode;
+      return status >= 500 || status == 429;
+    }
+    return true;
+  }
+
+  // Full jitter: uniformly random up to the exponential backoff, so retries of many clients spread.
+  private long backoffMs(int attempt) {
+    long ceiling = Math.min(backoffCapMs, backoffBaseMs << Math.min(attempt, 20));
+    return (long) (Math.random() * ceiling);
+  }
+
+  // Uploads once, or hedged, and records the latency of successful uploads.
+  private ClassificationResult send(ClassificationRequest request) throws Exception {
+    long start = SystemClock.elapsedRealtime();
+    ClassificationResult result =
+        hedgeExecutor != null ? sendHedged(request) : api.upload(url, request, protocol);
+    long latency = SystemClock.elapsedRealtime() - start;
+    latencies.record(latency);
+    Log.d(
+        TAG,
+        "Request took "
+            + latency
+            + " ms, encoded "
+            + request.getEncoder()
+            + ", transport "
+            + HttpTransport.get());
+    return result;
+  }
+
+  // Sends a second copy once the first is slower than the recent p95, returns the first answer.
+  private ClassificationResult sendHedged(final ClassificationRequest request) throws Exception {
+    CompletionService<ClassificationResult> uploads =
+        new ExecutorCompletionService<>(hedgeExecutor);
+    List<Future<ClassificationResult>> sent = new ArrayList<>(2);
+    try {
+      sent.add(uploads.submit(() -> api.upload(url, request, protocol)));
+      long threshold = latencies.percentile(0.95, HEDGE_MIN_SAMPLES);
+      Future<ClassificationResult> done =
+          threshold < 0 ? uploads.take() : uploads.poll(threshold, TimeUnit.MILLISECONDS);
+      if (done == null) {
+        Log.d(TAG, "No answer after the p95 of " + threshold + " ms, sending a hedged copy");
+        sent.add(uploads.submit(() -> api.upload(url, request, protocol)));
+        done = uploads.take();
+      }
+      try {
+        return getUpload(done);
+      } catch (IOException e) {
+        if (sent.size() < 2) {
+          throw e;
+        }
+        // The other copy may still succeed.
+        return getUpload(uploads.take());
+      }
+    } finally {
+      for (Future<ClassificationResult> upload : sent) {
+        upload.cancel(true);
+      }
+    }
+  }
+
+  private static ClassificationResult getUpload(Future<ClassificationResult> upload)
+      throws Exception {
+    try {
+      return upload.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof Exception ? (Exception) cause : e;
+    }
+  }
+
+  private synchronized boolean isNewest(Call call) {
+    return call.sequence == lastSequence;
+  }
+
+  private synchronized void remove(Call call) {
+    calls.remove(call);
+  }
+
+  private final class Call extends FutureTask<ClassificationResult> {
+    private final long sequence;
+    private final Callback callback;
+
+    Call(RequestFactory factory, FollowUpFactory followUp, long sequence, Callback callback) {
+      super(() -> call(factory, followUp));
+      this.sequence = sequence;
+      this.callback = callback;
+    }
+
+    @Override
+    public void run() {
+      running.set(this);
+      try {
+        super.run();
+      } finally {
+        running.remove();
+      }
+    }
+
+    // Widened to the package so a rejected call can be failed by the client.
+    @Override
+    protected void setException(Throwable t) {
+      super.setException(t);
+    }
+
+    // Runs on the worker once the result is known, or on the cancelling thread.
+    @Override
+    protected void done() {
+      remove(this);
+      if (isCancelled()) {
+        return;
+      }
+      callbackHandler.post(this::deliver);
+    }
+
+    private void deliver() {
+      // A later request may have been answered first, or a cached answer delivered already.
+      if (isCancelled()) {
+        return;
+      }
+      if (sequence < lastAppliedSequence) {
+        Log.d(TAG, "Dropped the stale answer to request " + sequence);
+        return;
+      }
+      try {
+        ClassificationResult result = get();
+        lastAppliedSequence = sequence;
+        callback.onResult(result);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        Log.w(TAG, "Classification " + sequence + " failed", cause);
+        // A newer request is still on its way.
+        if (isNewest(this)) {
+          callback.onFailure(cause instanceof Exception ? (Exception) cause : e);
+        }
+      } catch (InterruptedException | CancellationException e) {
+        // Not reached: the task is done and was not cancelled.
+      }
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The fields and images of one classification request, written either as a streamed
+ * multipart/form-data body or as the legacy url-encoded form with base64 images.
+ *
+ * <p>Images are only encoded while the body is written, straight into the connection's output
+ * stream in multipart mode, so the request never holds a full encoded copy of them.
+ */
+class ClassificationRequest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String CRLF = "\r\n";
+
+  /** An image that is encoded on demand while the request body is written. */
+  interface ImagePart {
+    /** Returns the MIME type of the bytes written by {@link #writeTo}. */
+    String getContentType();
+
+    /** Returns the file name extension matching the content type, without the dot. */
+    String getExtension();
+
+    /** Encodes the image into {@code out}. Must not close the stream. */
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  private final LinkedHashMap<String, String> fields = new LinkedHashMap<>();
+  private final LinkedHashMap<String, ImagePart> images = new LinkedHashMap<>();
+  private ImageEncoder encoder;
+  private ResultCache.Key cacheKey;
+  private boolean materialized;
+
+  void putField(String name, String value) {
+    fields.put(name, value);
+  }
+
+  void putImage(String name, ImagePart image) {
+    images.put(name, image);
+  }
+
+  /** Returns the text fields in insertion order. */
+  Map<String, String> getFields() {
+    return Collections.unmodifiableMap(fields);
+  }
+
+  /** Returns the image parts in insertion order. */
+  Map<String, ImagePart> getImages() {
+    return Collections.unmodifiableMap(images);
+  }
+
+  /**
+   * Encodes every image now and keeps the bytes, so the request can be written by several threads
+   * at once, as a hedged request is, and later writes do not encode again.
+   */
+  void materialize() throws IOException {
+    if (materialized) {
+      return;
+    }
+    materialized = true;
+    for (Map.Entry<String, ImagePart> image : images.entrySet()) {
+      final ImagePart part = image.getValue();
+      final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+      part.writeTo(encoded);
+      image.setValue(
+          new ImagePart() {
+            @Override
+            public String getContentType() {
+              return part.getContentType();
+            }
+
+            @Override
+            public String getExtension() {
+              return part.getExtension();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+              encoded.writeTo(out);
+            }
+          });
+    }
+  }
+
+  /** Sets the encoder of the images, whose statistics are logged with the request. */
+  void setEncoder(ImageEncoder encoder) {
+    this.encoder = encoder;
+  }
+
+  /** Returns the encoder of the images, or null if none was set. */
+  ImageEncoder getEncoder() {
+    return encoder;
+  }
+
+  /** Sets what the request is looked up by in a {@link ResultCache}. */
+  void setCacheKey(ResultCache.Key cacheKey) {
+    this.cacheKey = cacheKey;
+  }
+
+  /** Returns the key of the request in a {@link ResultCache}, or null if it is not cached. */
+  ResultCache.Key getCacheKey() {
+    return cacheKey;
+  }
+
+  /**
+   * Writes the body as multipart/form-data. Fields become text/plain parts and images binary parts
+   * named after their field.
+   */
+  void writeMultipart(OutputStream out, String boundary) throws IOException {
+    for (Map.Entry<String, String> field : fields.entrySet()) {
+      writeAscii(out, "--" + boundary + CRLF);
+      writeAscii(out, "Content-Disposition: form-data; name=\"" + field.getKey() + "\"" + CRLF);
+      writeAscii(out, "Content-Type: text/plain; charset=UTF-8" + CRLF + CRLF);
+      out.write(field.getValue().getBytes(UTF_8));
+      writeAscii(out, CRLF);
+    }
+    for (Map.Entry<String, ImagePart> image : images.entrySet()) {
+      ImagePart part = image.getValue();
+      writeAscii(out, "--" + boundary + CRLF);
+      writeAscii(
+          out,
+          "Content-Disposition: form-data; name=\""
+              + image.getKey()
+              + "\"; filename=\""
+              + image.getKey()
+              + "."
+              + part.getExtension()
+              + "\""
+              + CRLF);
+      writeAscii(out, "Content-Type: " + part.getContentType() + CRLF + CRLF);
+      part.writeTo(out);
+      writeAscii(out, CRLF);
+    }
+    writeAscii(out, "--" + boundary + "--" + CRLF);
+  }
+
+  /** Writes the body as the url-encoded form older endpoints expect, images in base64. */
+  void writeForm(OutputStream out) throws IOException {
+    Writer writer = new OutputStreamWriter(out, UTF_8);
+    boolean first = true;
+    for (Map.Entry<String, ImagePart> image : images.entrySet()) {
+      ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+      image.getValue().writeTo(encoded);
+      first = writeFormField(
+          writer, first, image.getKey(), Base64.encodeToString(encoded.toByteArray(), Base64.DEFAULT));
+    }
+    for (Map.Entry<String, String> field : fields.entrySet()) {
+      first = writeFormField(writer, first, field.getKey(), field.getValue());
+    }
+    writer.flush();
+  }
+
+  private static boolean writeFormField(Writer writer, boolean first, String name, String value)
+      throws IOException {
+    if (!first) {
+      writer.write('&');
+    }
+    writer.write(URLEncoder.encode(name, "UTF-8"));
+    writer.write('=');
+    writer.write(URLEncoder.encode(value, "UTF-8"));
+    return false;
+  }
+
+  private static void writeAscii(OutputStream out, String text) throws IOException {
+    out.write(text.getBytes(UTF_8));
+  }
+}
@@ -0,0 +1,162 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/** The classification server's answer to one request. */
+final class ClassificationResult {
+  /** Label used for objects the app has no model for. */
+  static final String DEFAULT_LABEL = "default";
+
+  private static final Set<String> KNOWN_LABELS =
+      Collections.unmodifiableSet(
+          new HashSet<>(
+              Arrays.asList("tv", "cup", "cell phone", "keyboard", "person", "pens", "shoes")));
+
+  private final String label;
+  private final String singleResult;
+  private final String imageType;
+  private final boolean needFull;
+  private final float confidence;
+
+  ClassificationResult(String label, String singleResult, String imageType) {
+    this(label, singleResult, imageType, false, Float.NaN);
+  }
+
+  /**
+   * @param needFull whether the server asked for the full resolution frame
+   * @param confidence the server's confidence in the label from 0 to 1, NaN if it sent none
+   */
+  ClassificationResult(
+      String label, String singleResult, String imageType, boolean needFull, float confidence) {
+    this.label = KNOWN_LABELS.contains(label) ? label : DEFAULT_LABEL;
+    this.singleResult = singleResult;
+    this.imageType = imageType;
+    this.needFull = needFull;
+    this.confidence = confidence;
+  }
+
+  /**
+   * Reads a response body with {@code labels}, {@code single} and {@code type} fields, and the
+   * optional {@code need_full} and {@code confidence}, as it arrives. Other fields are skipped
+   * without being materialized.
+   */
+  static ClassificationResult read(InputStream body) throws IOException {
+    String label = null;
+    String singleResult = null;
+    String imageType = null;
+    boolean needFull = false;
+    float confidence = Float.NaN;
+    JsonReader reader = new JsonReader(new InputStreamReader(body, "UTF-8"));
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "labels":
+          label = nextValue(reader);
+          break;
+        case "single":
+          singleResult = nextValue(reader);
+          break;
+        case "type":
+          imageType = nextValue(reader);
+          break;
+        case "need_full":
+          needFull = nextBoolean(reader);
+          break;
+        case "confidence":
+          String value = nextValue(reader);
+          if (value != null) {
+            try {
+              confidence = Float.parseFloat(value);
+            } catch (NumberFormatException e) {
+              // Treated as no confidence at all.
+            }
+          }
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (label == null || singleResult == null || imageType == null) {
+      throw new IOException("Classification response is missing labels, single or type");
+    }
+    return new ClassificationResult(label, singleResult, imageType, needFull, confidence);
+  }
+
+  // Reads true, "true" or a non-zero number as true, anything else as false.
+  private static boolean nextBoolean(JsonReader reader) throws IOException {
+    JsonToken token = reader.peek();
+    if (token == JsonToken.BOOLEAN) {
+      return reader.nextBoolean();
+    }
+    String value = nextValue(reader);
+    if (value == null) {
+      return false;
+    }
+    try {
+      return "true".equalsIgnoreCase(value) || Double.parseDouble(value) != 0;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  // Reads a string or number as text, null for anything else.
+  private static String nextValue(JsonReader reader) throws IOException {
+    JsonToken token = reader.peek();
+    if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+      return reader.nextString();
+    }
+    reader.skipValue();
+    return null;
+  }
+
+  /** Returns the final label, {@link #DEFAULT_LABEL} if the app has no model for it. */
+  String getLabel() {
+    return label;
+  }
+
+  /** Returns the label the server found for the uploaded frame alone. */
+  String getSingleResult() {
+    return singleResult;
+  }
+
+  /** Returns the kind of image the server decided it was sent. */
+  String getImageType() {
+    return imageType;
+  }
+
+  /** Returns the server's confidence in the label from 0 to 1, NaN if it sent none. */
+  float getConfidence() {
+    return confidence;
+  }
+
+  /**
+   * Returns true if this answer to a thumbnail should be followed by the full resolution frame:
+   * the server asked for it, or its confidence is below {@code minConfidence}.
+   */
+  boolean needsFullImage(float minConfidence) {
+    return needFull || confidence < minConfidence;
+  }
+
+  @Override
+  public String toString() {
+    String separator = System.getProperty("line.separator");
+    return "FINAL RESULT:"
+        + label
+        + separator
+        + "SINGLE RESULT:"
+        + singleResult
+        + separator
+        + "IMAGE TYPE:"
+        + imageType;
+  }
+}
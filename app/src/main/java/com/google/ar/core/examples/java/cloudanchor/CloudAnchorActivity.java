@@ -17,11 +17,9 @@
 package com.google.ar.core.examples.java.cloudanchor;
 
 import android.graphics.Bitmap;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.media.Image;
+import android.net.ConnectivityManager;
+import android.net.Network;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
@@ -29,11 +27,11 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.StrictMode;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.support.annotation.GuardedBy;
 import android.support.v7.app.AppCompatActivity;
-import android.util.Base64;
+import android.util.JsonReader;
 import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
@@ -48,6 +46,7 @@ import com.google.ar.core.Anchor;
 import com.google.ar.core.Anchor.CloudAnchorState;
 import com.google.ar.core.ArCoreApk;
 import com.google.ar.core.Camera;
+import com.google.ar.core.CameraIntrinsics;
 import com.google.ar.core.Config;
 import com.google.ar.core.Config.CloudAnchorMode;
 import com.google.ar.core.Frame;
@@ -56,6 +55,7 @@ import com.google.ar.core.Plane;
 import com.google.ar.core.Point;
 import com.google.ar.core.Point.OrientationMode;
 import com.google.ar.core.PointCloud;
+import com.google.ar.core.Pose;
 import com.google.ar.core.Session;
 import com.google.ar.core.Trackable;
 import com.google.ar.core.TrackingState;
@@ -69,39 +69,32 @@ import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.BlendMod
 import com.google.ar.core.examples.java.common.rendering.PlaneRenderer;
 import com.google.ar.core.examples.java.common.rendering.PointCloudRenderer;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
+import com.google.ar.core.exceptions.NotYetAvailableException;
+import com.google.ar.core.exceptions.ResourceExhaustedException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
 import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
 import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.common.base.Preconditions;
 import com.google.firebase.database.DatabaseError;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.io.OutputStream;
 import java.nio.IntBuffer;
-import java.nio.charset.Charset;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.UUID;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
-import static java.lang.Math.sqrt;
-
 /**
  * Main Activity for the Cloud Anchor Example
  *
@@ -109,7 +102,7 @@ import static java.lang.Math.sqrt;
  * API calls. This app only has at most one anchor at a time, to focus more on the cloud aspect of
  * anchors.
  */
-public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceView.Renderer, SensorEventListener {
+public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceView.Renderer {
   private static final String TAG = CloudAnchorActivity.class.getSimpleName();
   private static final float[] OBJECT_COLOR = new float[] {139.0f, 195.0f, 74.0f, 255.0f};
 
@@ -122,38 +115,20 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
 
 
   //WORKING WITH IMU SENSORS
-  //WHEN VALUE OF THE SENSOR CHANGES IT WILL CALL METHOD onSensorChanged
-  //WE REGISTERED ONLY TWO TYPES OF SENSORS - ACCELEROMETER and GYROSCOPE
-  //timesW is list of timestamps when you capture gyro readings
-  //timesAcc is list of timestamps when you capture acc readings
-  private SensorManager sensorManager;
-  private LinkedList<Long> timesW = new LinkedList<>();
-  private LinkedList<Double> w = new LinkedList<>();
-  private LinkedList<Float> accX = new LinkedList<>();
-  private LinkedList<Float> accY = new LinkedList<>();
-  private LinkedList<Float> accZ = new LinkedList<>();
-  private LinkedList<Long> timesAcc = new LinkedList<>();
-  @Override
-  public void onSensorChanged(SensorEvent sensorEvent) {
-    if(sensorEvent.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
-      timesW.add(SystemClock.elapsedRealtimeNanos());
-      float x = sensorEvent.values[0];
-      float y = sensorEvent.values[1];
-      float z = sensorEvent.values[2];
-      w.add(sqrt(x * x + y * y + z * z));
-    }
-    else{
-      timesAcc.add(SystemClock.elapsedRealtimeNanos());
-      accX.add(sensorEvent.values[0]);
-      accY.add(sensorEvent.values[1]);
-      accZ.add(sensorEvent.values[2]);
-    }
-  }
-
-  @Override
-  public void onAccuracyChanged(Sensor sensor, int accuracy) {
-
-  }
+  //sensorSampler delivers ACCELEROMETER and GYROSCOPE readings on its own thread, while the activity is resumed
+  //gyroHistory and accHistory keep the last imuCapacity readings with their timestamps
+  //sensorSampler is their only producer and buildClassificationRequest on the classificationClient worker their only consumer
+  private SensorSampler sensorSampler;
+  private ImuHistory gyroHistory;
+  private ImuHistory accHistory;
+  private final ImuHistory.WindowStats gyroStats = new ImuHistory.WindowStats();
+  private final ImuHistory.WindowStats accStats = new ImuHistory.WindowStats();
+  //IMU reading interpolated to the timestamp of the uploaded camera frame
+  private final float[] imuAtFrame = new float[3];
+  //IMU readings within IMU_WINDOW_NS of the frame are sent to the server
+  private static final long IMU_WINDOW_NS = 300000000L;
+  //the uploaded frame is at most frameSelectWindowMs after the press, the high IMU rate lasts until its window is over
+  private long frameSelectWindowNs;
 
   //YOU DO RENDEREING WITH GL SURFACE RENDERER
 
@@ -174,9 +149,54 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
   private long frameTaken;
   //visibleAnchors are only the anchors currently in the user's view
   private LinkedList<String> visibleAnchors = new LinkedList<>();
-  //bitmaps is array of the last 100 frames, position is the postion of the tail of circular buffer bitmpas
-  private Bitmap[] bitmaps = new Bitmap[100];
-  private int position = 0;
+  //frameHistory keeps the raw planes of the last historyCapacity frames, saveFrame fills it from the capture workers
+  private FrameHistory frameHistory;
+  //every frame of the last capturePreRollMs, so a press can be sent at once with the sharpest frame before it, null unless a pre-roll is configured
+  private FrameHistory preRollHistory;
+  //reusable copy of the history frame that buildClassificationRequest converts and uploads
+  private final FrameHistory.Frame uploadFrame = new FrameHistory.Frame();
+  //view of the region of uploadFrame around the anchors, when only that region is uploaded
+  private final FrameHistory.Frame roiFrame = new FrameHistory.Frame();
+  //roiMode is off, newest to upload only the region around the newest anchor, or visible for all anchors in view
+  private String roiMode;
+  //the world positions {x, y, z, ...} of the anchors at the press, newest first, null for the whole frame
+  //they are projected into whichever frame is uploaded, with the camera pose stored with that frame
+  private float[] pressAnchorPoints;
+  //converts the upload frame to a rotated bitmap on the classificationClient worker, reuses its pixel buffers
+  private final YuvConverter yuvConverter = new YuvConverter();
+  //uploads the Y plane, or Y and subsampled chroma, without converting to RGB, null to upload an RGB image
+  private PlanarEncoder planarEncoder;
+  //progressiveUpload sends a thumbnail first and the full frame only when the answer is below progressiveMinConfidence
+  private boolean progressiveUpload;
+  private float progressiveMinConfidence;
+  //chooses image size, quality and history per request from the bandwidth estimate and uploadLatencyBudgetMs
+  private UploadSizer uploadSizer;
+  //encodes the history for the classificationClient worker on a pool with one thread per core
+  private HistoryEncoder historyEncoder;
+  //history frames evicted since the request was built are replaced by the oldest one
+  private final HistoryEncoder.FrameSource historySource =
+          (timestamp, dst) -> frameHistory.copyAtOrBefore(timestamp, dst) || frameHistory.copy(0, dst);
+  //the camera image is in sensor orientation, the app is locked to portrait
+  private static final int CAMERA_IMAGE_ROTATION = 90;
+  //camera images are handed to captureStage in onDrawFrame, so the GL thread never converts them
+  private FrameCaptureStage captureStage;
+  //decides which frames are acquired at all, and whether every frame is kept for a pre-roll or a burst after a HOST press
+  private CaptureSampler captureSampler;
+  //true between a HOST press and the end of its capture burst, the request is sent when the burst is over, right away without one
+  private boolean uploadPending = false;
+  //builds, sends and parses classification requests on its own workers, one build at a time, several in flight
+  private ClassificationClient classificationClient;
+  //requests queued while offline are sent as soon as a network is available again
+  private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
+    @Override
+    public void onAvailable(Network network) {
+      classificationClient.drain();
+    }
+  };
+  //render rate and capture counters are logged every CAPTURE_STATS_INTERVAL_NS
+  private static final long CAPTURE_STATS_INTERVAL_NS = 5000000000L;
+  private long statsWindowStart;
+  private int framesInStatsWindow;
   //dimensions of screen, widht and height
   private int mHeight;
   private int mWidth;
@@ -253,14 +273,47 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
-    //THIS ALLOWS COMMUNICATION WITH PLAINTEXT
-    //YOU DON'T HAVE TO SEND CYPHER TEXT
-    StrictMode.ThreadPolicy policy = new StrictMode.ThreadPolicy.Builder()
-            .permitAll().build();
-    StrictMode.setThreadPolicy(policy);
-    sensorManager = (SensorManager)getSystemService(SENSOR_SERVICE);
-    sensorManager.registerListener(this, sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE), SensorManager.SENSOR_DELAY_FASTEST);
-    sensorManager.registerListener(this, sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER), SensorManager.SENSOR_DELAY_FASTEST);
+    captureSampler = CaptureSampler.fromConfig(this);
+    //both rings share historyMaxMegabytes, split by the number of frames each one asks for
+    int historyCapacity = Helper.getConfigInt(this, "historyCapacity", 100);
+    int preRollFrames = captureSampler.getPreRollFrames();
+    long historyMaxBytes = Helper.getConfigInt(this, "historyMaxMegabytes", 64) * 1024L * 1024L;
+    long preRollMaxBytes = historyMaxBytes * preRollFrames / Math.max(1, historyCapacity + preRollFrames);
+    frameHistory = new FrameHistory(historyCapacity, historyMaxBytes - preRollMaxBytes);
+    if (preRollFrames > 0) {
+      preRollHistory = new FrameHistory(preRollFrames, preRollMaxBytes);
+    }
+    int imuCapacity = Helper.getConfigInt(this, "imuCapacity", 2048);
+    gyroHistory = new ImuHistory(imuCapacity);
+    accHistory = new ImuHistory(imuCapacity);
+    captureStage = new FrameCaptureStage(
+            new SaveFrame(frameHistory, preRollHistory, captureSampler, Helper.getConfigInt(this, "sharpnessStep", 4)),
+            Helper.getConfigInt(this, "captureWorkers", 2),
+            Helper.getConfigInt(this, "captureQueue", 2));
+    captureStage.start();
+    //one kept-alive connection pool for every request, warmed up so the first HOST press skips the handshake
+    HttpTransport.get().configure(this);
+    if ("true".equals(Helper.getConfigValue(this, "httpWarmUp"))) {
+      HttpTransport.get().warmUp(Helper.getConfigValue(this, "url"));
+    }
+    classificationClient = ClassificationClient.fromConfig(this, new Handler(Looper.getMainLooper()));
+    historyEncoder = HistoryEncoder.fromConfig(this);
+    roiMode = Helper.getConfigValue(this, "roiMode");
+    frameSelectWindowNs = Helper.getConfigInt(this, "frameSelectWindowMs", 150) * 1000000L;
+    planarEncoder = PlanarEncoder.fromConfig(this);
+    progressiveUpload = "true".equals(Helper.getConfigValue(this, "progressiveUpload"));
+    progressiveMinConfidence = Helper.getConfigFloat(this, "progressiveMinConfidence", 0.6f);
+    uploadSizer = UploadSizer.fromConfig(this);
+    //onAvailable is also called right away when a network is up, which sends what the last run left queued
+    ((ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE)).registerDefaultNetworkCallback(networkCallback);
+    sensorSampler = new SensorSampler(
+            (SensorManager) getSystemService(SENSOR_SERVICE),
+            gyroHistory,
+            accHistory,
+            captureSampler,
+            Helper.getConfigInt(this, "imuIdlePeriodUs", 20000),
+            Helper.getConfigInt(this, "imuHighPeriodUs", SensorManager.SENSOR_DELAY_FASTEST),
+            Helper.getConfigInt(this, "imuMaxReportLatencyUs", 100000));
     setContentView(R.layout.activity_main);
     surfaceView = findViewById(R.id.surfaceview);
     displayRotationHelper = new DisplayRotationHelper(this);
@@ -274,11 +327,11 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
 
       // Request the asset from the Poly API.
       Log.d(TAG, "Requesting asset "+ ASSET_ID);
-      PolyApi.GetAsset(ASSET_ID, mBackgroundThreadHandler, new AsyncHttpRequest.CompletionListener() {
+      PolyApi.GetAsset(ASSET_ID, mBackgroundThreadHandler, new AsyncHttpRequest.StreamingListener() {
           @Override
-          public void onHttpRequestSuccess(byte[] responseBody) {
+          public void onHttpResponseBody(InputStream responseBody) throws IOException {
               // Successfully fetched asset information. This does NOT include the model's geometry,
-              // it's just the metadata. Let's parse it.
+              // it's just the metadata. Let's parse it as it arrives.
               parseAsset(responseBody);
           }
           @Override
@@ -405,11 +458,13 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
     }
     surfaceView.onResume();
     displayRotationHelper.onResume();
+    sensorSampler.start();
   }
 
   @Override
   public void onPause() {
     super.onPause();
+    sensorSampler.stop();
     if (session != null) {
       // Note that the order matters - GLSurfaceView is paused first so that it does not try
       // to query the session. If Session is paused before GLSurfaceView, GLSurfaceView may
@@ -420,6 +475,16 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
     }
   }
 
+  @Override
+  protected void onDestroy() {
+    captureStage.shutdown();
+    sensorSampler.shutdown();
+    ((ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE)).unregisterNetworkCallback(networkCallback);
+    classificationClient.shutdown();
+    historyEncoder.shutdown();
+    super.onDestroy();
+  }
+
   @Override
   public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] results) {
     if (!CameraPermissionHelper.hasCameraPermission(this)) {
@@ -622,18 +687,27 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
       // UpdateMode.BLOCKING (it is by default), this will throttle the rendering to the
       // camera framerate.
       Frame frame = session.update();
-      frameTaken = frame.getTimestamp();
-      Image img = frame.acquireCameraImage();
-      SaveFrame sf = new SaveFrame();
-      sf.image = img;
-      sf.activity = this;
-      sf.position = position;
-      sf.bitmaps = bitmaps;
-      sf.doInBackground("");
-      position++;
+      long timestamp = frame.getTimestamp();
+      if (takePicture) {
+        //remember the frame of the press, it is sent right away unless a post-press burst is configured
+        takePicture = false;
+        frameTaken = timestamp;
+        pressAnchorPoints = roiMode == null || roiMode.equals("off") ? null : anchorPoints(roiMode.equals("visible"));
+        captureSampler.startBurst(timestamp);
+        uploadPending = true;
+      }
+      //with a pre-roll every frame is captured, but only the sampled ones go to the frame history
+      boolean sampled = captureSampler.shouldCapture(timestamp);
+      if (sampled || preRollHistory != null) {
+        try {
+          captureStage.submit(frame.acquireCameraImage(), timestamp, sampled, cameraPose(frame.getCamera()));
+        } catch (NotYetAvailableException | ResourceExhaustedException e) {
+          // The capture workers still hold every image ARCore allows, skip this one.
+          captureStage.recordDropped();
+        }
+      }
+      logCaptureStats(timestamp);
       visibleAnchors.clear();
-      if(position==100)
-        position = 0;
       Camera camera = frame.getCamera();
       TrackingState cameraTrackingState = camera.getTrackingState();
 
@@ -724,11 +798,34 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
           }
         }
       }
-      if(takePicture)
+      if(uploadPending && !captureSampler.isBurstActive(timestamp))
       {
         //snackbarHelper.showMessageWithDismiss(this, "REQUEST SEEN");
-        takePicture = false;
-        SavePicture();
+        uploadPending = false;
+        //the IMU window reaches IMU_WINDOW_NS past the latest frame that can be picked, keep the high rate until then
+        sensorSampler.lowerRateAfter((frameTaken + frameSelectWindowNs + IMU_WINDOW_NS - timestamp) / 1000000);
+        //the request is built, encoded and sent on a classificationClient worker, answers older than the one shown are dropped
+        final long pressTime = frameTaken;
+        final String visibleAnchorIDs = visibleAnchors.toString();
+        final boolean multi = multiUser;
+        final float[] points = pressAnchorPoints;
+        if (progressiveUpload) {
+          //a thumbnail first, the full frame only if the server is not confident, both carry the same upload id
+          //the full part is made from a copy of the thumbnail's frame, which the pre-roll has dropped by then
+          final String uploadId = UUID.randomUUID().toString();
+          final FrameHistory.Frame selected = new FrameHistory.Frame();
+          classificationClient.classify(
+                  () -> buildClassificationRequest(pressTime, visibleAnchorIDs, multi, points, uploadId, selected, true),
+                  first -> first.needsFullImage(progressiveMinConfidence)
+                          ? buildClassificationRequest(pressTime, visibleAnchorIDs, multi, points, uploadId, selected,
+                                  false)
+                          : null,
+                  classificationCallback);
+        } else {
+          classificationClient.classify(
+                  () -> buildClassificationRequest(pressTime, visibleAnchorIDs, multi, points, null, null, false),
+                  classificationCallback);
+        }
       }
       else {
         if (!firstUsed) {
@@ -740,6 +837,106 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
       Log.e(TAG, "Exception on the OpenGL thread", t);
     }
   }
+  // Logs the achieved render rate next to the capture counters, once per stats interval.
+  private void logCaptureStats(long timestamp) {
+    framesInStatsWindow++;
+    if (statsWindowStart == 0) {
+      statsWindowStart = timestamp;
+      return;
+    }
+    long elapsed = timestamp - statsWindowStart;
+    if (elapsed >= CAPTURE_STATS_INTERVAL_NS) {
+      double fps = framesInStatsWindow * 1e9 / elapsed;
+      Log.d(TAG, String.format("Render %.1f fps, capture %s", fps, captureStage));
+      statsWindowStart = timestamp;
+      framesInStatsWindow = 0;
+    }
+  }
+
+  //where the camera is in this frame, so anchors can be projected into the frame after it was picked for upload
+  //null if the camera is not tracking
+  private static FrameHistory.CameraPose cameraPose(Camera camera) {
+    if (camera.getTrackingState() != TrackingState.TRACKING) {
+      return null;
+    }
+    float[] cameraFromWorld = new float[16];
+    camera.getPose().inverse().toMatrix(cameraFromWorld, 0);
+    CameraIntrinsics intrinsics = camera.getImageIntrinsics();
+    return new FrameHistory.CameraPose(cameraFromWorld, intrinsics.getFocalLength(),
+            intrinsics.getPrincipalPoint(), intrinsics.getImageDimensions());
+  }
+
+  //the world positions of the newest anchor, or of every anchor, as {x, y, z, ...} newest first, null if there is none
+  private float[] anchorPoints(boolean allAnchors) {
+    synchronized (anchorLock) {
+      if (anchors.isEmpty()) {
+        return null;
+      }
+      int count = allAnchors ? anchors.size() : 1;
+      float[] points = new float[3 * count];
+      for (int i = 0; i < count; i++) {
+        Pose pose = anchors.get(anchors.size() - 1 - i).getPose();
+        points[3 * i] = pose.tx();
+        points[3 * i + 1] = pose.ty();
+        points[3 * i + 2] = pose.tz();
+      }
+      return points;
+    }
+  }
+
+  //projects the anchor points into the frame with its camera pose, returns the bounding box {left, top, right, bottom}
+  //in normalized camera image coordinates of those in view, or null if none is or the frame has no pose
+  private static float[] projectRoi(float[] points, FrameHistory.CameraPose pose) {
+    if (pose == null) {
+      return null;
+    }
+    float[] uv = new float[2];
+    float[] box = null;
+    for (int i = 0; i < points.length; i += 3) {
+      if (!pose.project(points[i], points[i + 1], points[i + 2], uv)
+              || uv[0] < 0 || uv[0] > 1 || uv[1] < 0 || uv[1] > 1) {
+        continue;
+      }
+      if (box == null) {
+        box = new float[] {uv[0], uv[1], uv[0], uv[1]};
+      } else {
+        box[0] = Math.min(box[0], uv[0]);
+        box[1] = Math.min(box[1], uv[1]);
+        box[2] = Math.max(box[2], uv[0]);
+        box[3] = Math.max(box[3], uv[1]);
+      }
+    }
+    return box;
+  }
+
+  //the region of a width x height frame around roi, grown by margin times the short edge on every side and
+  //clamped to the frame, as {x, y, width, height} with an even origin, or null if it is too small to be useful
+  private static int[] roiCrop(float[] roi, int width, int height, float margin) {
+    float grow = margin * Math.min(width, height);
+    int left = Math.max(0, (int) Math.floor(roi[0] * width - grow)) & ~1;
+    int top = Math.max(0, (int) Math.floor(roi[1] * height - grow)) & ~1;
+    int right = Math.min(width, (int) Math.ceil(roi[2] * width + grow));
+    int bottom = Math.min(height, (int) Math.ceil(roi[3] * height + grow));
+    if (right - left < 16 || bottom - top < 16) {
+      return null;
+    }
+    return new int[] {left, top, right - left, bottom - top};
+  }
+
+  //the crop {x, y, width, height} of a width x height frame, in the frame rotated clockwise by rotation degrees
+  private static int[] rotateCrop(int[] crop, int width, int height, int rotation) {
+    switch (rotation) {
+      case 90:
+        return new int[] {height - crop[1] - crop[3], crop[0], crop[3], crop[2]};
+      case 180:
+        return new int[] {width - crop[0] - crop[2], height - crop[1] - crop[3], crop[2], crop[3]};
+      case 270:
+        return new int[] {crop[1], width - crop[0] - crop[2], crop[3], crop[2]};
+      default:
+        return crop;
+    }
+  }
+
   double[] world2Screen(int screenWidth, int screenHeight, float[] world2cameraMatrix)
   {
     float[] origin = {0f, 0f, 0f, 1f};
@@ -776,120 +973,282 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
   }
 
   private static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss");
-  public void SavePicture() throws IOException {
+  //builds the classification request for the press at pressTime, runs on a classificationClient worker, never twice at once
+  //uploadId joins the thumbnail and full parts of a progressive upload, it is null when there is only one part
+  //progressiveFrame keeps the frame the thumbnail was made from for the full part, null without a progressive upload
+  private ClassificationRequest buildClassificationRequest(long pressTime, String visibleAnchorIDs, boolean multiUser,
+          float[] anchorPoints, String uploadId, FrameHistory.Frame progressiveFrame, boolean thumbnail)
+          throws IOException {
     Helper helper = new Helper();
     String gyroscope = helper.getConfigValue(this,"gyroscope");
     String accelerometer = helper.getConfigValue(this,"accelerometer");
     String anchors = helper.getConfigValue(this,"anchors");
     String previousFrames = helper.getConfigValue(this,"previousFrames");
-    String url = helper.getConfigValue(this,"url");
-      int positionTake = position - 1;
-      if(positionTake<0)
-          positionTake = 99;
-   Bitmap bmp = bitmaps[positionTake];
-    bmp = Bitmap.createScaledBitmap(
-            bmp, mWidth, mHeight, false);
-    LinkedList<Double> rightAngularVelocities = new LinkedList<>();
-    LinkedList<Float> rightAccX = new LinkedList<>();
-    LinkedList<Float> rightAccY = new LinkedList<>();
-    LinkedList<Float> rightAccZ = new LinkedList<>();
-    boolean moveOnGyro = true;
-    int indexGyro = w.size() -1;
-    while(indexGyro>=0 && moveOnGyro){
-      if(timesW.get(indexGyro)<=frameTaken + 300000000  && timesW.get(indexGyro)>=frameTaken-300000000)
-        rightAngularVelocities.add(w.get(indexGyro));
-      else
-        moveOnGyro = false;
-      indexGyro--;
-    }
-    boolean moveOnAcc = true;
-    int indexAcc = accX.size() - 1;
-    while(moveOnAcc && indexAcc>=0){
-      if(timesAcc.get(indexAcc)<=frameTaken+300000000 && timesAcc.get(indexAcc)>=frameTaken-300000000) {
-        rightAccX.add(accX.get(indexAcc));
-        rightAccY.add(accX.get(indexAcc));
-        rightAccZ.add(accX.get(indexAcc));
+    //upload the sharpest frame of the pre-roll before the press, or around the press, or the newest one before it
+    //the press frame itself may still be on a capture worker, the pre-roll does not wait for it
+    long selectWindow = frameSelectWindowNs;
+    float gyroWeight = Helper.getConfigFloat(this, "frameSelectGyroWeight", 2f);
+    //the full part of a progressive upload is the frame of its thumbnail, and so is its ROI crop, which follows from
+    //the frame's pose, the histories may have rotated past it during the round trip
+    if (progressiveFrame != null && !thumbnail) {
+      uploadFrame.copyFrom(progressiveFrame);
+    } else {
+      boolean selected = preRollHistory != null && preRollHistory.copySharpest(
+              pressTime - captureSampler.getPreRollNs(), pressTime, gyroWeight, uploadFrame);
+      if (!selected
+              && !frameHistory.copySharpest(pressTime - selectWindow, pressTime + selectWindow, gyroWeight, uploadFrame)
+              && !frameHistory.copyAtOrBefore(pressTime, uploadFrame)) {
+        throw new IOException("No camera frame captured yet, nothing to send");
+      }
+      if (progressiveFrame != null) {
+        progressiveFrame.copyFrom(uploadFrame);
       }
-      else{
-        moveOnAcc = false;
+    }
+    Log.d(TAG, "Uploading frame " + (uploadFrame.timestamp - pressTime) / 1000000 + " ms from the press, sharpness "
+            + uploadFrame.sharpness + ", gyro " + uploadFrame.gyroMagnitude);
+    ImageEncoder encoder = ImageEncoder.fromConfig(this);
+    //only the region around the anchors is converted and uploaded, the server gets its offset in the rotated frame
+    //the anchors are projected with the pose of the uploaded frame, the camera may have moved since the press
+    FrameHistory.Frame source = uploadFrame;
+    float[] roi = anchorPoints != null ? projectRoi(anchorPoints, uploadFrame.pose) : null;
+    int[] crop = roi != null
+            ? roiCrop(roi, uploadFrame.width, uploadFrame.height, Helper.getConfigFloat(this, "roiMargin", 0.15f))
+            : null;
+    if (crop != null) {
+      uploadFrame.cropInto(crop[0], crop[1], crop[2], crop[3], roiFrame);
+      source = roiFrame;
+    }
+    //the thumbnail only has to settle the easy cases, the history goes with the full frame
+    long[] historyTimestamps = previousFrames.equals("true") && !thumbnail
+            ? selectHistory(frameHistory.timestamps(), Helper.getConfigInt(this, "historyFrames", 100))
+            : null;
+    UploadSizer.Plan plan = null;
+    if (thumbnail) {
+      encoder = encoder.withMaxEdge(Helper.getConfigInt(this, "progressiveThumbnailEdge", 256));
+    } else {
+      //size, quality and history are lowered until the request is predicted to fit uploadLatencyBudgetMs
+      BandwidthEstimator bandwidth = HttpTransport.get().getBandwidth();
+      plan = uploadSizer.plan(bandwidth, source.width, source.height,
+              historyTimestamps != null ? historyTimestamps.length : 0, planarEncoder == null);
+      encoder = encoder.withQuality(plan.quality).withMaxEdge(plan.maxEdge);
+      if (!plan.history) {
+        historyTimestamps = null;
       }
-      indexAcc--;
+      Log.d(TAG, "Upload plan " + plan + ", bandwidth " + bandwidth);
+    }
+    ClassificationRequest.ImagePart image;
+    if (planarEncoder != null) {
+      //the planes are copied straight from the history frame, there is no ARGB conversion at all
+      //they are fitted to the same maximum edge as a bitmap would be, the plan's size holds for both
+      image = planarEncoder.encode(source, CAMERA_IMAGE_ROTATION, encoder, yuvConverter);
+      Log.d(TAG, "Encoded " + source.width + "x" + source.height + " of the " + uploadFrame.width + "x"
+              + uploadFrame.height + " frame as " + planarEncoder);
+    } else {
+      long convertStart = SystemClock.elapsedRealtimeNanos();
+      Bitmap bmp = encoder.fit(yuvConverter.convert(source, CAMERA_IMAGE_ROTATION,
+              encoder.downscaleFor(source.width, source.height)));
+      Log.d(TAG, "Converted " + source.width + "x" + source.height + " of the " + uploadFrame.width + "x"
+              + uploadFrame.height + " frame to " + bmp.getWidth() + "x" + bmp.getHeight() + " in "
+              + (SystemClock.elapsedRealtimeNanos() - convertStart) / 1000 + " us");
+      image = encoder.part(bmp);
+    }
+    if (plan != null) {
+      image = plan.measureImage(image);
+    }
+    //the IMU window is centered on the frame that is uploaded, readings carry their sensor timestamps
+    long windowStart = uploadFrame.timestamp - IMU_WINDOW_NS;
+    long windowEnd = uploadFrame.timestamp + IMU_WINDOW_NS;
+    gyroHistory.refresh();
+    gyroHistory.window(windowStart, windowEnd, gyroStats);
+    accHistory.refresh();
+    accHistory.window(windowStart, windowEnd, accStats);
+    Log.d(TAG, "Gyro window " + gyroStats + ", accelerometer window " + accStats);
+    ClassificationRequest request = new ClassificationRequest();
+    request.setEncoder(encoder);
+    //repeated presses at the same object are answered from the cache, keyed by the frame and the visible anchors
+    if (classificationClient.isCaching()) {
+      request.setCacheKey(new ResultCache.Key(ResultCache.dHash(uploadFrame), visibleAnchorIDs));
+    }
+    request.putImage("image_bytes", image);
+    if (uploadId != null) {
+      request.putField("upload_id", uploadId);
+      request.putField("upload_part", thumbnail ? "thumbnail" : "full");
+    }
+    //raw planes carry no header, so the server needs their size as well as their layout
+    if (planarEncoder != null) {
+      request.putField("pixel_format", planarEncoder.getPixelFormat());
+      request.putField("image_width", planarEncoder.getWidth() + "");
+      request.putField("image_height", planarEncoder.getHeight() + "");
+      request.putField("image_encoding", "deflate");
+    } else {
+      request.putField("pixel_format", "rgb");
+    }
+    if (crop != null) {
+      int[] rotated = rotateCrop(crop, uploadFrame.width, uploadFrame.height, CAMERA_IMAGE_ROTATION);
+      boolean swap = CAMERA_IMAGE_ROTATION % 180 != 0;
+      request.putField("roi_x", rotated[0] + "");
+      request.putField("roi_y", rotated[1] + "");
+      request.putField("roi_width", rotated[2] + "");
+      request.putField("roi_height", rotated[3] + "");
+      request.putField("roi_frame_width", (swap ? uploadFrame.height : uploadFrame.width) + "");
+      request.putField("roi_frame_height", (swap ? uploadFrame.width : uploadFrame.height) + "");
     }
-    HashMap<String, String> hm = new HashMap<>();
-    hm.put("image_bytes",BitMapToString(bmp));
     if(anchors.equals("true"))
-      hm.put("anchor_IDs",visibleAnchors.toString());
-    double sumW = 0;
-    double sumAccX = 0;
-    double sumAccY = 0;
-    double sumAccZ = 0;
-    for(int i=0;i<rightAngularVelocities.size();i++)
-      sumW+=rightAngularVelocities.get(i);
-    for(int i=0;i<rightAccX.size();i++) {
-      sumAccX += rightAccX.get(i);
-      sumAccY += rightAccY.get(i);
-      sumAccZ += rightAccZ.get(i);
-    }
-    double meanW = sumW/rightAngularVelocities.size();
-    if(gyroscope.equals("true"))
-      hm.put("gyro_readings",meanW+"");
-    double meanAccX = sumAccX/rightAccX.size();
-    double meanAccY = sumAccY/rightAccY.size();
-    double meanAccZ = sumAccZ/rightAccZ.size();
+      request.putField("anchor_IDs",visibleAnchorIDs);
+    double meanW = gyroStats.mean(ImuHistory.AXIS_MAGNITUDE);
+    if(gyroscope.equals("true")) {
+      request.putField("gyro_readings", meanW + "");
+      if (gyroHistory.interpolate(uploadFrame.timestamp, imuAtFrame)) {
+        float x = imuAtFrame[ImuHistory.AXIS_X];
+        float y = imuAtFrame[ImuHistory.AXIS_Y];
+        float z = imuAtFrame[ImuHistory.AXIS_Z];
+        request.putField("gyro_at_frame", Math.sqrt(x * x + y * y + z * z) + "");
+      }
+    }
+    double meanAccX = accStats.mean(ImuHistory.AXIS_X);
+    double meanAccY = accStats.mean(ImuHistory.AXIS_Y);
+    double meanAccZ = accStats.mean(ImuHistory.AXIS_Z);
     if(accelerometer.equals("true")) {
-      hm.put("accX_readings", meanAccX + "");
-      hm.put("accY_readings", meanAccY + "");
-      hm.put("accZ_readings", meanAccZ + "");
-    }
-    if(previousFrames.equals("true")) {
-      int cntValid = 0;
-      for (int i = 0; i < 100; i++) {
-        if (bitmaps[i] != null) {
-          cntValid++;
-          hm.put("frame" + i, BitMapToString(bitmaps[i]));
+      request.putField("accX_readings", meanAccX + "");
+      request.putField("accY_readings", meanAccY + "");
+      request.putField("accZ_readings", meanAccZ + "");
+      if (accHistory.interpolate(uploadFrame.timestamp, imuAtFrame)) {
+        request.putField("accX_at_frame", imuAtFrame[ImuHistory.AXIS_X] + "");
+        request.putField("accY_at_frame", imuAtFrame[ImuHistory.AXIS_Y] + "");
+        request.putField("accZ_at_frame", imuAtFrame[ImuHistory.AXIS_Z] + "");
+      }
+    }
+    if(historyTimestamps != null) {
+      //history frames are only converted and encoded while the body is written
+      if ("frames".equals(helper.getConfigValue(this, "historyMode"))) {
+        //one image per frame, as frame0, frame1, ..., all encoded in parallel when the first is written
+        HistoryImageBatch batch = new HistoryImageBatch(historyTimestamps, encoder);
+        for (int i = 0; i < historyTimestamps.length; i++) {
+          request.putImage("frame" + i, plan.measureHistory(new HistoryFramePart(batch, i), 1));
         }
+      } else {
+        //one keyframe plus luma residuals in a single part, see HistoryCodec for the layout
+        request.putImage("previous_frames", plan.measureHistory(new HistoryPart(historyTimestamps,
+                Helper.getConfigInt(this, "historyDownscale", 4)), historyTimestamps.length));
+        request.putField("history_format", HistoryCodec.FORMAT);
       }
-      hm.put("valid_frames",""+cntValid);
+      request.putField("valid_frames",""+historyTimestamps.length);
     }
     if(multiUser)
-      hm.put("multiUser","multi");
+      request.putField("multiUser","multi");
     else
-      hm.put("multiUser","single");
-    //snackbarHelper.showMessageWithDismiss(this, "SENDING MESSAGE TO SERVER");
-    CallAPI upload = new CallAPI();
-    upload.activity = this;
-    upload.snack = snackbarHelper;
-    upload.finalLabel = finalLabel;
-    upload.objType = objType;
-    upload.doInBackground(url,getPostDataString(hm));
-    timesW.clear();
-    w.clear();
-    accX.clear();
-    accY.clear();
-    accZ.clear();
+      request.putField("multiUser","single");
+    return request;
+  }
+
+  //picks at most max timestamps spread evenly over the history, always keeping the oldest and the newest
+  private static long[] selectHistory(long[] timestamps, int max) {
+    if (max <= 0 || timestamps.length <= max) {
+      return timestamps;
+    }
+    long[] selected = new long[max];
+    for (int i = 0; i < max; i++) {
+      selected[i] = timestamps[max == 1 ? timestamps.length - 1 : (int) ((long) i * (timestamps.length - 1) / (max - 1))];
+    }
+    return selected;
   }
-  public String BitMapToString(Bitmap bitmap){
-    ByteArrayOutputStream baos=new  ByteArrayOutputStream();
-    bitmap.compress(Bitmap.CompressFormat.PNG,100, baos);
-    byte [] b=baos.toByteArray();
-    String temp= Base64.encodeToString(b, Base64.DEFAULT);
-    return temp;
+
+  //classificationClient delivers on the UI thread, onDrawFrame picks the new objType up on the GL thread
+  private final ClassificationClient.Callback classificationCallback = new ClassificationClient.Callback() {
+    @Override
+    public void onResult(ClassificationResult result) {
+      Log.d(TAG, "Classified as " + result.getLabel());
+      objType.type = result.getLabel();
+      finalLabel.label = result.getLabel();
+      snackbarHelper.showMessageWithDismiss(CloudAnchorActivity.this, result.toString());
+    }
+
+    @Override
+    public void onFailure(Exception exception) {
+      // Keep the current model, the user can press HOST again once the server is back.
+      if (classificationClient.isServerUnhealthy()) {
+        snackbarHelper.showMessageWithDismiss(
+            CloudAnchorActivity.this, getString(R.string.snackbar_classifier_unavailable));
+      }
+    }
+  };
+
+  /** The history images of one request, encoded by {@link #historyEncoder} when first needed. */
+  private class HistoryImageBatch {
+    private final long[] timestamps;
+    private final ImageEncoder encoder;
+    private HistoryEncoder.Images images;
+
+    HistoryImageBatch(long[] timestamps, ImageEncoder encoder) {
+      this.timestamps = timestamps;
+      this.encoder = encoder;
+    }
+
+    // Encodes again if a later request has reused the buffers, e.g. when this one is retried.
+    synchronized HistoryEncoder.Images get() throws IOException {
+      if (images == null || !historyEncoder.isValid(images)) {
+        images = historyEncoder.encodeImages(timestamps, historySource, CAMERA_IMAGE_ROTATION, encoder);
+      }
+      return images;
+    }
   }
-  private String getPostDataString(HashMap<String, String> params) throws UnsupportedEncodingException {
-    StringBuilder result = new StringBuilder();
-    boolean first = true;
-    for(Map.Entry<String, String> entry : params.entrySet()){
-      if (first)
-        first = false;
-      else
-        result.append("&");
 
-      result.append(URLEncoder.encode(entry.getKey(), "UTF-8"));
-      result.append("=");
-      result.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+  /** One image of a {@link HistoryImageBatch}. */
+  private class HistoryFramePart implements ClassificationRequest.ImagePart {
+    private final HistoryImageBatch batch;
+    private final int index;
+
+    HistoryFramePart(HistoryImageBatch batch, int index) {
+      this.batch = batch;
+      this.index = index;
     }
 
-    return result.toString();
+    @Override
+    public String getContentType() {
+      return batch.encoder.getFormat().contentType;
+    }
+
+    @Override
+    public String getExtension() {
+      return batch.encoder.getFormat().extension;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      HistoryEncoder.Images images = batch.get();
+      if (images.data[index] != null) {
+        out.write(images.data[index], images.offsets[index], images.lengths[index]);
+      }
+    }
+  }
+
+  /**
+   * The history frames as one {@link HistoryCodec} blob, encoded by {@link #historyEncoder} only
+   * when the request body is written.
+   */
+  private class HistoryPart implements ClassificationRequest.ImagePart {
+    private final long[] timestamps;
+    private final int downscale;
+
+    HistoryPart(long[] timestamps, int downscale) {
+      this.timestamps = timestamps;
+      this.downscale = downscale;
+    }
+
+    @Override
+    public String getContentType() {
+      return "application/octet-stream";
+    }
+
+    @Override
+    public String getExtension() {
+      return "bin";
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      historyEncoder.writeDelta(timestamps, historySource, CAMERA_IMAGE_ROTATION, downscale, out);
+    }
   }
 
   /** Sets the new value of the current anchor. Detaches the old anchor, if it was non-null. */
@@ -907,6 +1266,7 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
   /** Callback function invoked when the Host Button is pressed. */
   private void onHostButtonPress() {
      // snackbarHelper.showMessageWithDismiss(this, "HOST BUTTON PRESSED");
+    sensorSampler.setHighRate(true);
     takePicture = true;
     //IF YOU WANT TO HOST JUST REMOVE COMMENTS
    /* if (currentMode == HostResolveMode.HOSTING) {
@@ -934,40 +1294,35 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
     new GetUrlContentTask(this).execute("http://10.197.53.148:5000/api/test2");
   }
 
-  private class GetUrlContentTask extends AsyncTask<String, Integer, String> {
+  private class GetUrlContentTask extends AsyncTask<String, Integer, Integer> {
     public CloudAnchorActivity cl;
     public GetUrlContentTask(CloudAnchorActivity c){
       cl=c;
     }
-    protected String doInBackground(String... urls) {
-      String content= "";
-      try {
-        URL url = new URL(urls[0]);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-        connection.setDoOutput(true);
-        connection.setConnectTimeout(5000);
-        connection.setReadTimeout(5000);
-        connection.connect();
-        BufferedReader rd = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        content = "";
-        String line;
-        while ((line = rd.readLine()) != null) {
-          content += line + "\n";
+    //reads nAnchorsHigh straight from the response, null if the request failed
+    protected Integer doInBackground(String... urls) {
+      try (HttpTransport.Exchange exchange = HttpTransport.get().open(urls[0], "GET")) {
+        JsonReader reader = new JsonReader(new InputStreamReader(exchange.getResponseBody(), "UTF-8"));
+        reader.beginObject();
+        while (reader.hasNext()) {
+          if (reader.nextName().equals("nAnchorsHigh"))
+            return reader.nextInt();
+          reader.skipValue();
         }
       }catch(Exception e){e.printStackTrace();}
-      return content;
+      return null;
     }
 
     protected void onProgressUpdate(Integer... progress) {
     }
 
-    protected void onPostExecute(String result) {
+    protected void onPostExecute(Integer result) {
       // this is executed on the main thread after the process is over
       // update your UI here\
+      if (result == null)
+        return;
       try {
-        JSONObject job = new JSONObject(result);
-        int num = job.getInt("nAnchorsHigh");
+        int num = result;
         ResolveDialogFragment dialogFragment = new ResolveDialogFragment(num);
         dialogFragment.num = num;
         dialogFragment.setOkListener(cl::onRoomCodeEntered);
@@ -1040,68 +1395,123 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
     }
   }
 
-    // NOTE: this runs on the background thread.
-    private void parseAsset(byte[] assetData) {
-        Log.d(TAG, "Got asset response (" + assetData.length + " bytes). Parsing.");
-        String assetBody = new String(assetData, Charset.forName("UTF-8"));
-        Log.d(TAG, assetBody);
-        try {
-            JSONObject response = new JSONObject(assetBody);
-            String displayName = response.getString("displayName");
-            String authorName = response.getString("authorName");
-            Log.d(TAG, "Display name: " + displayName);
-            Log.d(TAG, "Author name: " + authorName);
-            mAttributionText = displayName + " by " + authorName;
-
-            // The asset may have several formats (OBJ, GLTF, FBX, etc). We will look for the OBJ format.
-            JSONArray formats = response.getJSONArray("formats");
-            boolean foundObjFormat = false;
-            for (int i = 0; i < formats.length(); i++) {
-                JSONObject format = formats.getJSONObject(i);
-                if (format.getString("formatType").equals("OBJ")) {
-                    // Found the OBJ format. The format gives us the URL of the data files that we should
-                    // download (which include the OBJ file, the MTL file and the textures). We will now
-                    // request those files.
-                    requestDataFiles(format);
-                    foundObjFormat = true;
+    // NOTE: this runs on the asset request's background thread, while the response arrives.
+    // Only the names and the files of the OBJ format are kept, everything else is skipped.
+    private void parseAsset(InputStream assetBody) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(assetBody, "UTF-8"));
+        String displayName = null;
+        String authorName = null;
+        LinkedHashMap<String, String> objFiles = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "displayName":
+                    displayName = reader.nextString();
                     break;
-                }
+                case "authorName":
+                    authorName = reader.nextString();
+                    break;
+                case "formats":
+                    // The asset may have several formats (OBJ, GLTF, FBX, etc). We will look for the OBJ format.
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        LinkedHashMap<String, String> files = readFormat(reader);
+                        if (objFiles == null) {
+                            objFiles = files;
+                        }
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
             }
-            if (!foundObjFormat) {
-                // If this happens, it's because the asset doesn't have a representation in the OBJ
-                // format. Since this simple sample code can only parse OBJ, we can't proceed.
-                // But other formats might be available, so if your client supports multiple formats,
-                // you could still try a different format instead.
-                Log.e(TAG, "Could not find OBJ format in asset.");
-                return;
+        }
+        reader.endObject();
+        Log.d(TAG, "Display name: " + displayName);
+        Log.d(TAG, "Author name: " + authorName);
+        mAttributionText = displayName + " by " + authorName;
+        if (objFiles == null) {
+            // If this happens, it's because the asset doesn't have a representation in the OBJ
+            // format. Since this simple sample code can only parse OBJ, we can't proceed.
+            // But other formats might be available, so if your client supports multiple formats,
+            // you could still try a different format instead.
+            Log.e(TAG, "Could not find OBJ format in asset.");
+            return;
+        }
+        // Found the OBJ format. The format gives us the URL of the data files that we should
+        // download (which include the OBJ file, the MTL file and the textures). We will now
+        // request those files.
+        requestDataFiles(objFiles);
+    }
+
+    // Reads one entry of the formats array. Returns its files by relative path, the root file
+    // first, or null if it is not the OBJ format.
+    private static LinkedHashMap<String, String> readFormat(JsonReader reader) throws IOException {
+        String formatType = null;
+        String[] root = null;
+        LinkedHashMap<String, String> resources = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "formatType":
+                    formatType = reader.nextString();
+                    break;
+                case "root":
+                    root = readFile(reader);
+                    break;
+                case "resources":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String[] file = readFile(reader);
+                        // For this example, we only care about OBJ and PNG files.
+                        String path = file[0].toLowerCase();
+                        if (path.endsWith(".obj") || path.endsWith(".png")) {
+                            resources.put(file[0], file[1]);
+                        }
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
             }
-        } catch (JSONException jsonException) {
-            Log.e(TAG, "JSON parsing error while processing response: " + jsonException);
-            jsonException.printStackTrace();
         }
+        reader.endObject();
+        if (!"OBJ".equals(formatType) || root == null) {
+            return null;
+        }
+        LinkedHashMap<String, String> files = new LinkedHashMap<>();
+        files.put(root[0], root[1]);
+        files.putAll(resources);
+        return files;
     }
 
-    // Requests the data files for the OBJ format.
-    // NOTE: this runs on the background thread.
-    private void requestDataFiles(JSONObject objFormat) throws JSONException {
-        // objFormat has the list of data files for the OBJ format (OBJ file, MTL file, textures).
+    // Reads a file object and returns its relative path and URL.
+    private static String[] readFile(JsonReader reader) throws IOException {
+        String[] file = {"", ""};
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "relativePath":
+                    file[0] = reader.nextString();
+                    break;
+                case "url":
+                    file[1] = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return file;
+    }
+
+    // Requests the data files for the OBJ format, the root file first.
+    private void requestDataFiles(LinkedHashMap<String, String> objFiles) {
+        // objFiles has the list of data files for the OBJ format (OBJ file, MTL file, textures).
         // We will use a AsyncFileDownloader to download all those files.
         mFileDownloader = new AsyncFileDownloader();
-
-        // The "root file" is the OBJ.
-        JSONObject rootFile = objFormat.getJSONObject("root");
-        mFileDownloader.add(rootFile.getString("relativePath"), rootFile.getString("url"));
-
-        // The "resource files" are the MTL file and textures.
-        JSONArray resources = objFormat.getJSONArray("resources");
-        for (int i = 0; i < resources.length(); i++) {
-            JSONObject resourceFile = resources.getJSONObject(i);
-            String path = resourceFile.getString("relativePath");
-            String url = resourceFile.getString("url");
-            // For this example, we only care about OBJ and PNG files.
-            if (path.toLowerCase().endsWith(".obj") || path.toLowerCase().endsWith(".png")) {
-                mFileDownloader.add(path, url);
-            }
+        for (Map.Entry<String, String> file : objFiles.entrySet()) {
+            mFileDownloader.add(file.getKey(), file.getValue());
         }
 
         // Now start downloading the data files. When this is done, the callback will call
@@ -1195,6 +1605,7 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
       if(anchor!=null && cloudAnchorId!=null && cloudAnchorId.length()>0) {
         setNewAnchor(anchor, cloudAnchorId);
 
+        sensorSampler.setHighRate(true);
         takePicture = true;
       }
       checkAndMaybeShare();
@@ -1,5 +1,5 @@
 package com.google.ar.core.examples.java.cloudanchor;
 
 public class FinalLabel {
-    public String label = "";
+    public volatile String label = "";
 }
@@ -0,0 +1,188 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.media.Image;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded capture pipeline that takes camera image processing off the GL thread.
+ *
+ * <p>{@link #submit} never blocks the renderer. When the queue is full the oldest pending image is
+ * closed and dropped, so a slow worker can never exhaust the small pool of images ARCore lets us
+ * hold at the same time.
+ */
+class FrameCaptureStage {
+  private static final String TAG =
+      CloudAnchorActivity.class.getSimpleName() + "." + FrameCaptureStage.class.getSimpleName();
+
+  /** Processes one camera image on a capture worker. */
+  interface FrameProcessor {
+
+    /**
+     * Called on a worker thread. The stage closes {@code image} once this method returns.
+     *
+     * @param sampled whether the frame was picked for the frame history, see {@link
+     *     CaptureSampler#shouldCapture}
+     * @param pose where the camera was, null if it was not tracking
+     */
+    void process(Image image, long timestamp, boolean sampled, FrameHistory.CameraPose pose);
+  }
+
+  /** A camera image waiting in the queue, together with the timestamp of its frame. */
+  private static final class PendingFrame {
+    final Image image;
+    final long timestamp;
+    final boolean sampled;
+    final FrameHistory.CameraPose pose;
+
+    PendingFrame(Image image, long timestamp, boolean sampled, FrameHistory.CameraPose pose) {
+      this.image = image;
+      this.timestamp = timestamp;
+      this.sampled = sampled;
+      this.pose = pose;
+    }
+  }
+
+  private final FrameProcessor processor;
+  private final ArrayBlockingQueue<PendingFrame> queue;
+  private final Thread[] workers;
+
+  private final AtomicLong framesAccepted = new AtomicLong();
+  private final AtomicLong framesDropped = new AtomicLong();
+  private final AtomicLong framesEncoded = new AtomicLong();
+
+  // Held while an image is enqueued and while running is cleared, so an image is either enqueued
+  // before shutdown drains the queue or closed by submit itself. Never held while joining.
+  private final Object queueLock = new Object();
+  // Written under queueLock.
+  private volatile boolean running;
+
+  /**
+   * @param processor the work to run for every accepted image
+   * @param workerCount number of capture worker threads
+   * @param queueCapacity number of images that may wait for a free worker
+   */
+  FrameCaptureStage(FrameProcessor processor, int workerCount, int queueCapacity) {
+    this.processor = processor;
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    this.workers = new Thread[Math.max(1, workerCount)];
+  }
+
+  /** Starts the worker threads. */
+  synchronized void start() {
+    if (running) {
+      return;
+    }
+    synchronized (queueLock) {
+      running = true;
+    }
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Thread(this::workerMain, "Capture-" + i);
+      workers[i].start();
+    }
+  }
+
+  /** Stops the worker threads and releases every image that was still waiting in the queue. */
+  synchronized void shutdown() {
+    if (!running) {
+      return;
+    }
+    synchronized (queueLock) {
+      running = false;
+    }
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+    for (Thread worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    PendingFrame pending;
+    while ((pending = queue.poll()) != null) {
+      pending.image.close();
+      framesDropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Hands an image over to the capture workers and returns immediately. The stage takes ownership
+   * of {@code image} and closes it when it has been processed or dropped.
+   *
+   * <p>Must only be called from a single thread (the GL thread).
+   *
+   * @param sampled passed on to {@link FrameProcessor#process}
+   * @param pose passed on to {@link FrameProcessor#process}
+   */
+  void submit(Image image, long timestamp, boolean sampled, FrameHistory.CameraPose pose) {
+    PendingFrame frame = new PendingFrame(image, timestamp, sampled, pose);
+    synchronized (queueLock) {
+      if (!running) {
+        image.close();
+        framesDropped.incrementAndGet();
+        return;
+      }
+      while (!queue.offer(frame)) {
+        PendingFrame oldest = queue.poll();
+        if (oldest != null) {
+          oldest.image.close();
+          framesDropped.incrementAndGet();
+        }
+      }
+    }
+    framesAccepted.incrementAndGet();
+  }
+
+  /** Records a frame that could not even be acquired from the session. */
+  void recordDropped() {
+    framesDropped.incrementAndGet();
+  }
+
+  long getFramesAccepted() {
+    return framesAccepted.get();
+  }
+
+  long getFramesDropped() {
+    return framesDropped.get();
+  }
+
+  long getFramesEncoded() {
+    return framesEncoded.get();
+  }
+
+  @Override
+  public String toString() {
+    return "accepted="
+        + framesAccepted.get()
+        + " dropped="
+        + framesDropped.get()
+        + " encoded="
+        + framesEncoded.get()
+        + " queued="
+        + queue.size();
+  }
+
+  private void workerMain() {
+    while (running) {
+      PendingFrame frame;
+      try {
+        frame = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        processor.process(frame.image, frame.timestamp, frame.sampled, frame.pose);
+        framesEncoded.incrementAndGet();
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Failed to process camera image", e);
+      } finally {
+        frame.image.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,352 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.media.Image;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring of the most recent camera frames, kept as raw YUV_420_888 planes.
+ *
+ * <p>Every slot owns a set of direct {@link ByteBuffer}s that are allocated once and reused for
+ * every later frame, so capturing does not churn the Java heap. Converting to RGB is left to the
+ * caller and only done for the frames that are actually uploaded.
+ */
+class FrameHistory {
+  private static final String TAG =
+      CloudAnchorActivity.class.getSimpleName() + "." + FrameHistory.class.getSimpleName();
+
+  /**
+   * Where the camera was when a frame was captured, so world points can be projected into the
+   * frame later on any thread. Made from ARCore's physical camera pose and CPU image intrinsics,
+   * which both refer to the image in readout order: the camera looks down -z, +x is right and +y is
+   * up in the image. Immutable.
+   */
+  static final class CameraPose {
+    // Column-major world to camera transform.
+    private final float[] cameraFromWorld;
+    private final float focalX;
+    private final float focalY;
+    private final float principalX;
+    private final float principalY;
+    private final int imageWidth;
+    private final int imageHeight;
+
+    /**
+     * @param cameraFromWorld column-major world to camera transform, the inverse of the camera pose
+     * @param focalLength fx and fy in pixels
+     * @param principalPoint cx and cy in pixels
+     * @param imageDimensions the width and height of the image the intrinsics are for
+     */
+    CameraPose(
+        float[] cameraFromWorld,
+        float[] focalLength,
+        float[] principalPoint,
+        int[] imageDimensions) {
+      this.cameraFromWorld = cameraFromWorld.clone();
+      this.focalX = focalLength[0];
+      this.focalY = focalLength[1];
+      this.principalX = principalPoint[0];
+      this.principalY = principalPoint[1];
+      this.imageWidth = imageDimensions[0];
+      this.imageHeight = imageDimensions[1];
+    }
+
+    /**
+     * Projects the world point {@code x, y, z} into normalized image coordinates, u to the right
+     * and v down, written to {@code uv}. The result may lie outside [0, 1].
+     *
+     * @return false if the point is not in front of the camera
+     */
+    boolean project(float x, float y, float z, float[] uv) {
+      float[] m = cameraFromWorld;
+      float cameraX = m[0] * x + m[4] * y + m[8] * z + m[12];
+      float cameraY = m[1] * x + m[5] * y + m[9] * z + m[13];
+      float cameraZ = m[2] * x + m[6] * y + m[10] * z + m[14];
+      if (cameraZ >= 0) {
+        return false;
+      }
+      float depth = -cameraZ;
+      uv[0] = (principalX + focalX * cameraX / depth) / imageWidth;
+      uv[1] = (principalY - focalY * cameraY / depth) / imageHeight;
+      return true;
+    }
+  }
+
+  /** The Y, U and V planes of one camera frame. */
+  static final class Frame {
+    long timestamp;
+    int width;
+    int height;
+    final ByteBuffer[] planes = new ByteBuffer[3];
+    final int[] rowStrides = new int[3];
+    final int[] pixelStrides = new int[3];
+    // Laplacian variance of the luma plane, see FrameSharpness.
+    float sharpness;
+    // Gyroscope magnitude in rad/s when the frame was captured.
+    float gyroMagnitude;
+    // Null if the camera was not tracking.
+    CameraPose pose;
+
+    /** Returns the number of plane bytes this frame currently holds. */
+    int byteCount() {
+      int bytes = 0;
+      for (ByteBuffer plane : planes) {
+        if (plane != null) {
+          bytes += plane.limit();
+        }
+      }
+      return bytes;
+    }
+
+    /**
+     * Makes {@code dst} a view of the {@code width} x {@code height} region at {@code x}, {@code
+     * y}, sharing the planes of this frame instead of copying them. {@code x} and {@code y} must be
+     * even, so the region starts on a chroma sample.
+     */
+    void cropInto(int x, int y, int width, int height, Frame dst) {
+      if ((x & 1) != 0 || (y & 1) != 0) {
+        throw new IllegalArgumentException("Crop origin " + x + "," + y + " is not even");
+      }
+      for (int i = 0; i < 3; i++) {
+        // The chroma planes are subsampled by 2 in both directions.
+        int shift = i == 0 ? 0 : 1;
+        ByteBuffer view = planes[i].duplicate();
+        view.position((y >> shift) * rowStrides[i] + (x >> shift) * pixelStrides[i]);
+        dst.planes[i] = view.slice();
+        dst.rowStrides[i] = rowStrides[i];
+        dst.pixelStrides[i] = pixelStrides[i];
+      }
+      dst.timestamp = timestamp;
+      dst.width = width;
+      dst.height = height;
+      dst.sharpness = sharpness;
+      dst.gyroMagnitude = gyroMagnitude;
+      dst.pose = pose;
+    }
+
+    private void copyFrom(
+        Image image, long timestamp, float sharpness, float gyroMagnitude, CameraPose pose) {
+      Image.Plane[] src = image.getPlanes();
+      for (int i = 0; i < 3; i++) {
+        ByteBuffer buffer = src[i].getBuffer();
+        buffer.rewind();
+        planes[i] = copyInto(planes[i], buffer);
+        rowStrides[i] = src[i].getRowStride();
+        pixelStrides[i] = src[i].getPixelStride();
+      }
+      this.timestamp = timestamp;
+      this.width = image.getWidth();
+      this.height = image.getHeight();
+      this.sharpness = sharpness;
+      this.gyroMagnitude = gyroMagnitude;
+      this.pose = pose;
+    }
+
+    /** Makes this frame a copy of {@code other}, reusing its plane buffers where they fit. */
+    void copyFrom(Frame other) {
+      for (int i = 0; i < 3; i++) {
+        ByteBuffer buffer = other.planes[i].duplicate();
+        buffer.rewind();
+        planes[i] = copyInto(planes[i], buffer);
+        rowStrides[i] = other.rowStrides[i];
+        pixelStrides[i] = other.pixelStrides[i];
+      }
+      this.timestamp = other.timestamp;
+      this.width = other.width;
+      this.height = other.height;
+      this.sharpness = other.sharpness;
+      this.gyroMagnitude = other.gyroMagnitude;
+      this.pose = other.pose;
+    }
+
+    // Copies src into dst, growing dst only if it is too small. Returns the buffer that was used.
+    private static ByteBuffer copyInto(ByteBuffer dst, ByteBuffer src) {
+      if (dst == null || dst.capacity() < src.remaining()) {
+        dst = ByteBuffer.allocateDirect(src.remaining());
+      }
+      dst.clear();
+      dst.put(src);
+      dst.flip();
+      return dst;
+    }
+  }
+
+  private final Frame[] slots;
+  private final long maxBytes;
+
+  // Number of slots in use, limited by both the configured capacity and maxBytes.
+  private int capacity;
+  // Sequence number of the newest frame, slot is sequence % capacity. -1 while empty.
+  private long newestSequence = -1;
+  private int size;
+  // Late frames that were older than the whole full ring, see put.
+  private long droppedFrames;
+
+  /**
+   * @param capacity the maximum number of frames to keep
+   * @param maxBytes the most plane memory the history may hold, whatever the capacity
+   */
+  FrameHistory(int capacity, long maxBytes) {
+    this.slots = new Frame[Math.max(1, capacity)];
+    this.maxBytes = maxBytes;
+    this.capacity = slots.length;
+  }
+
+  /**
+   * Copies the planes of {@code image} into the next free slot, evicting the oldest frame. The
+   * sharpness and gyroscope magnitude are stored with the frame for {@link #copySharpest}, the
+   * camera pose, which may be null, for projecting into it.
+   *
+   * <p>Capture workers may finish out of order, so a late frame is moved back to its place by
+   * timestamp. Only a frame older than every frame of a full ring is dropped, and counted.
+   */
+  synchronized void put(
+      Image image, long timestamp, float sharpness, float gyroMagnitude, CameraPose pose) {
+    if (newestSequence < 0) {
+      capacity = capacityFor(image);
+    }
+    if (size == capacity && timestamp < slotFor(newestSequence - size + 1).timestamp) {
+      droppedFrames++;
+      Log.d(TAG, "Dropped a late frame, " + droppedFrames + " so far");
+      return;
+    }
+    long sequence = newestSequence + 1;
+    int index = (int) (sequence % capacity);
+    if (slots[index] == null) {
+      slots[index] = new Frame();
+    }
+    slots[index].copyFrom(image, timestamp, sharpness, gyroMagnitude, pose);
+    newestSequence = sequence;
+    size = Math.min(size + 1, capacity);
+    // Swapping the slot buffers keeps the ring sorted without copying any planes.
+    long oldestSequence = newestSequence - size + 1;
+    while (sequence > oldestSequence && slotFor(sequence - 1).timestamp > timestamp) {
+      int later = (int) (sequence % capacity);
+      int earlier = (int) ((sequence - 1) % capacity);
+      Frame frame = slots[later];
+      slots[later] = slots[earlier];
+      slots[earlier] = frame;
+      sequence--;
+    }
+  }
+
+  /** Returns the number of late frames dropped because the full ring only held newer ones. */
+  synchronized long droppedFrames() {
+    return droppedFrames;
+  }
+
+  /**
+   * Copies the newest frame taken at or before {@code timestamp} into {@code dst}.
+   *
+   * @return false if the history holds no such frame
+   */
+  synchronized boolean copyAtOrBefore(long timestamp, Frame dst) {
+    Frame frame = findAtOrBefore(timestamp);
+    if (frame == null) {
+      return false;
+    }
+    dst.copyFrom(frame);
+    return true;
+  }
+
+  /**
+   * Copies the best frame taken between {@code from} and {@code to} into {@code dst}, as ranked by
+   * {@link FrameSharpness#score}.
+   *
+   * @return false if the history holds no frame in that window
+   */
+  synchronized boolean copySharpest(long from, long to, float gyroWeight, Frame dst) {
+    Frame best = null;
+    float bestScore = 0;
+    for (long sequence = newestSequence; sequence > newestSequence - size; sequence--) {
+      Frame frame = slotFor(sequence);
+      if (frame.timestamp < from) {
+        break;
+      }
+      if (frame.timestamp > to) {
+        continue;
+      }
+      float score = FrameSharpness.score(frame.sharpness, frame.gyroMagnitude, gyroWeight);
+      if (best == null || score > bestScore) {
+        best = frame;
+        bestScore = score;
+      }
+    }
+    if (best == null) {
+      return false;
+    }
+    dst.copyFrom(best);
+    return true;
+  }
+
+  /**
+   * Copies the frame at {@code index} into {@code dst}, where 0 is the oldest frame held.
+   *
+   * @return false if there is no frame at that index
+   */
+  synchronized boolean copy(int index, Frame dst) {
+    if (index < 0 || index >= size) {
+      return false;
+    }
+    dst.copyFrom(slotFor(newestSequence - size + 1 + index));
+    return true;
+  }
+
+  /** Returns the timestamps of the frames currently held, oldest first. */
+  synchronized long[] timestamps() {
+    long[] timestamps = new long[size];
+    for (int i = 0; i < size; i++) {
+      timestamps[i] = slotFor(newestSequence - size + 1 + i).timestamp;
+    }
+    return timestamps;
+  }
+
+  /** Returns the number of frames currently held. */
+  synchronized int size() {
+    return size;
+  }
+
+  // Looks up the frame in O(1) for the common cases: the newest frame is asked for, or frames
+  // arrive at a steady rate so the slot can be estimated from the mean frame interval.
+  private Frame findAtOrBefore(long timestamp) {
+    if (size == 0) {
+      return null;
+    }
+    Frame newest = slotFor(newestSequence);
+    if (newest.timestamp <= timestamp) {
+      return newest;
+    }
+    long oldestSequence = newestSequence - size + 1;
+    Frame oldest = slotFor(oldestSequence);
+    if (oldest.timestamp > timestamp) {
+      return null;
+    }
+    long interval = (newest.timestamp - oldest.timestamp) / (size - 1);
+    long sequence = newestSequence - (newest.timestamp - timestamp + interval - 1) / interval;
+    sequence = Math.max(oldestSequence, Math.min(newestSequence, sequence));
+    while (slotFor(sequence).timestamp > timestamp) {
+      sequence--;
+    }
+    while (sequence < newestSequence && slotFor(sequence + 1).timestamp <= timestamp) {
+      sequence++;
+    }
+    return slotFor(sequence);
+  }
+
+  private Frame slotFor(long sequence) {
+    return slots[(int) (sequence % capacity)];
+  }
+
+  private int capacityFor(Image image) {
+    long frameBytes = 0;
+    for (Image.Plane plane : image.getPlanes()) {
+      frameBytes += plane.getBuffer().capacity();
+    }
+    int fit = (int) Math.max(1, Math.min(slots.length, maxBytes / Math.max(1, frameBytes)));
+    if (fit < slots.length) {
+      Log.w(TAG, "Frame history limited to " + fit + " frames of " + frameBytes + " bytes");
+    }
+    return fit;
+  }
+}
@@ -0,0 +1,46 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.nio.ByteBuffer;
+
+/** Cheap per-frame sharpness estimates used to pick the frame that is uploaded. */
+final class FrameSharpness {
+
+  private FrameSharpness() {}
+
+  /**
+   * Returns the variance of the Laplacian of the luma plane, sampled on a grid of every
+   * {@code step}-th pixel. Blurry frames have few edges and therefore a low variance.
+   */
+  static float laplacianVariance(
+      ByteBuffer luma, int rowStride, int pixelStride, int width, int height, int step) {
+    step = Math.max(1, step);
+    long count = 0;
+    double mean = 0;
+    double m2 = 0;
+    for (int y = step; y < height - step; y += step) {
+      int row = y * rowStride;
+      for (int x = step; x < width - step; x += step) {
+        int center = row + x * pixelStride;
+        int laplacian =
+            4 * (luma.get(center) & 0xff)
+                - (luma.get(center - step * pixelStride) & 0xff)
+                - (luma.get(center + step * pixelStride) & 0xff)
+                - (luma.get(center - step * rowStride) & 0xff)
+                - (luma.get(center + step * rowStride) & 0xff);
+        count++;
+        double delta = laplacian - mean;
+        mean += delta / count;
+        m2 += delta * (laplacian - mean);
+      }
+    }
+    return count > 1 ? (float) (m2 / (count - 1)) : 0f;
+  }
+
+  /**
+   * Combines the image sharpness with the rotation rate at capture time. Higher is better, and
+   * {@code gyroWeight} sets how strongly rotation in rad/s lowers the score.
+   */
+  static float score(float sharpness, float gyroMagnitude, float gyroWeight) {
+    return sharpness / (1f + gyroWeight * gyroMagnitude);
+  }
+}
@@ -27,4 +27,30 @@ public final class Helper {
 
         return null;
     }
+
+    public static int getConfigInt(Context context, String name, int defaultValue) {
+        String value = getConfigValue(context, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Config value " + name + " is not an integer: " + value);
+            return defaultValue;
+        }
+    }
+
+    public static float getConfigFloat(Context context, String name, float defaultValue) {
+        String value = getConfigValue(context, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Float.parseFloat(value.trim());
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Config value " + name + " is not a number: " + value);
+            return defaultValue;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,309 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Packs the frame history into one binary blob: luma keyframes followed by delta-coded residual
+ * frames, each compressed with Deflate.
+ *
+ * <p>Consecutive history frames differ little, so a residual against the previous frame is mostly
+ * zeros and compresses far better than an independent image. The residual is taken against the
+ * previous frame as the decoder reconstructs it, so quantization errors do not accumulate. A
+ * keyframe starts every {@code keyframeInterval} frames, and whenever the frame size changes, which
+ * bounds how far a lost or skipped frame propagates.
+ *
+ * <p>The blob is big-endian:
+ *
+ * <pre>
+ * int    MAGIC ("MUH1")
+ * int    quantizer
+ * int    frame count
+ * frame count times:
+ *   long timestamp, byte type (0 keyframe, 1 delta), int width, int height,
+ *   int offset into the data, int length of the data
+ * data   the deflated frames, in order
+ * </pre>
+ *
+ * A keyframe holds {@code width * height} luma samples. A delta frame holds one residual byte per
+ * sample: with a quantizer of 1 the difference to the previous frame modulo 256, which is lossless,
+ * otherwise the signed difference divided by the quantizer and rounded.
+ *
+ * <p>Encoding and {@link #decode} only use the JDK, so the server can decode with this class too.
+ * The codec itself holds no state, frames are encoded by per-thread {@link FrameEncoder}s, see
+ * {@link HistoryEncoder}.
+ */
+class HistoryCodec {
+  static final int MAGIC = 0x4d554831;
+  static final byte KEYFRAME = 0;
+  static final byte DELTA = 1;
+  /** The value of the {@code history_format} field that announces this encoding. */
+  static final String FORMAT = "delta-luma-v1";
+
+  /** One encoded frame. Its deflated bytes are a slice of a buffer owned by whoever encoded it. */
+  static final class EncodedFrame {
+    long timestamp;
+    byte type;
+    int width;
+    int height;
+    byte[] data;
+    int offset;
+    int length;
+  }
+
+  /**
+   * Encodes frames one after another. Each thread that encodes frames needs its own encoder, which
+   * keeps its buffers and native deflater between histories until it is {@link #close closed}. Not
+   * thread-safe.
+   */
+  final class FrameEncoder implements Closeable {
+    private final Deflater deflater = new Deflater(deflateLevel);
+    private final byte[] deflateBuffer = new byte[16384];
+    private final Buffer out = new Buffer();
+    // The previous frame of a lossy chain as the decoder reconstructs it, and the residual.
+    private byte[] reconstruction = new byte[0];
+    private byte[] residual = new byte[0];
+
+    /** Drops the frames encoded so far. Their slices must no longer be in use. */
+    void reset() {
+      out.reset();
+    }
+
+    /** Releases the native deflater. The encoder must not be used afterwards. */
+    @Override
+    public void close() {
+      deflater.end();
+    }
+
+    /**
+     * Encodes {@code luma} as a keyframe, or as a delta against {@code previous}, the source of the
+     * frame before it. A lossy delta ignores {@code previous} and uses the reconstruction of the
+     * frame this encoder encoded last, so a lossy chain must be encoded in order by one encoder.
+     */
+    void encode(
+        long timestamp, byte[] luma, int width, int height, byte type, byte[] previous,
+        EncodedFrame result) {
+      int samples = width * height;
+      if (residual.length < samples) {
+        residual = new byte[samples];
+        reconstruction = new byte[samples];
+      }
+      byte[] payload;
+      if (type == KEYFRAME) {
+        if (quantizer > 1) {
+          System.arraycopy(luma, 0, reconstruction, 0, samples);
+        }
+        payload = luma;
+      } else if (quantizer == 1) {
+        for (int i = 0; i < samples; i++) {
+          residual[i] = (byte) (luma[i] - previous[i]);
+        }
+        payload = residual;
+      } else {
+        quantize(luma, samples);
+        payload = residual;
+      }
+      result.timestamp = timestamp;
+      result.type = type;
+      result.width = width;
+      result.height = height;
+      result.offset = out.size();
+      deflater.reset();
+      deflater.setInput(payload, 0, samples);
+      deflater.finish();
+      while (!deflater.finished()) {
+        out.write(deflateBuffer, 0, deflater.deflate(deflateBuffer));
+      }
+      result.length = out.size() - result.offset;
+      // The buffer may have grown, earlier slices keep the array they were written to.
+      result.data = out.array();
+    }
+
+    // Sets the residual against the reconstruction and moves the reconstruction to the new frame.
+    private void quantize(byte[] luma, int samples) {
+      int half = quantizer / 2;
+      for (int i = 0; i < samples; i++) {
+        int ref = reconstruction[i] & 0xff;
+        int diff = (luma[i] & 0xff) - ref;
+        int q = diff >= 0 ? (diff + half) / quantizer : -((-diff + half) / quantizer);
+        q = Math.max(-127, Math.min(127, q));
+        residual[i] = (byte) q;
+        reconstruction[i] = (byte) clamp(ref + q * quantizer);
+      }
+    }
+  }
+
+  // Exposes its array, so encoded frames can be written without copying them.
+  private static final class Buffer extends ByteArrayOutputStream {
+    byte[] array() {
+      return buf;
+    }
+  }
+
+  private final int quantizer;
+  private final int keyframeInterval;
+  private final int deflateLevel;
+
+  /**
+   * @param quantizer residuals are divided by this, 1 for lossless
+   * @param keyframeInterval a keyframe is sent every this many frames, 0 for only the first
+   * @param deflateLevel the {@link Deflater} level, e.g. {@link Deflater#BEST_SPEED}
+   */
+  HistoryCodec(int quantizer, int keyframeInterval, int deflateLevel) {
+    this.quantizer = Math.max(1, Math.min(quantizer, 64));
+    this.keyframeInterval = Math.max(0, keyframeInterval);
+    this.deflateLevel = deflateLevel;
+  }
+
+  /** Returns a new encoder for one thread. */
+  FrameEncoder newEncoder() {
+    return new FrameEncoder();
+  }
+
+  /**
+   * Returns true if residuals are exact. Lossless deltas only depend on two source frames, so
+   * every frame can be encoded independently. Lossy deltas form chains from one keyframe to the
+   * next.
+   */
+  boolean isLossless() {
+    return quantizer == 1;
+  }
+
+  /**
+   * Returns the type of the frame at {@code position} in the history, given the size of the frame
+   * before it, or 0 for the first frame.
+   */
+  byte typeOf(int position, int width, int height, int previousWidth, int previousHeight) {
+    if (position == 0
+        || width != previousWidth
+        || height != previousHeight
+        || (keyframeInterval > 0 && position % keyframeInterval == 0)) {
+      return KEYFRAME;
+    }
+    return DELTA;
+  }
+
+  /** Writes the index and the frames, in the order given. */
+  void writeTo(OutputStream out, List<EncodedFrame> frames) throws IOException {
+    DataOutputStream header = new DataOutputStream(out);
+    header.writeInt(MAGIC);
+    header.writeInt(quantizer);
+    header.writeInt(frames.size());
+    int offset = 0;
+    for (EncodedFrame frame : frames) {
+      header.writeLong(frame.timestamp);
+      header.writeByte(frame.type);
+      header.writeInt(frame.width);
+      header.writeInt(frame.height);
+      header.writeInt(offset);
+      header.writeInt(frame.length);
+      offset += frame.length;
+    }
+    header.flush();
+    for (EncodedFrame frame : frames) {
+      out.write(frame.data, frame.offset, frame.length);
+    }
+  }
+
+  private static int clamp(int value) {
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+  }
+
+  /** A decoded history. */
+  static final class Decoded {
+    final long[] timestamps;
+    final int[] widths;
+    final int[] heights;
+    // The luma samples of every frame, row by row.
+    final byte[][] frames;
+
+    private Decoded(int count) {
+      timestamps = new long[count];
+      widths = new int[count];
+      heights = new int[count];
+      frames = new byte[count][];
+    }
+  }
+
+  /** Decodes a blob written by {@link #writeTo(OutputStream, List)}. */
+  static Decoded decode(InputStream blob) throws IOException {
+    DataInputStream in = new DataInputStream(blob);
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a frame history");
+    }
+    int quantizer = in.readInt();
+    int count = in.readInt();
+    if (quantizer < 1 || count < 0) {
+      throw new IOException("Corrupt frame history header");
+    }
+    Decoded decoded = new Decoded(count);
+    byte[] types = new byte[count];
+    int[] lengths = new int[count];
+    for (int i = 0; i < count; i++) {
+      decoded.timestamps[i] = in.readLong();
+      types[i] = in.readByte();
+      decoded.widths[i] = in.readInt();
+      decoded.heights[i] = in.readInt();
+      in.readInt(); // offset, frames are stored in order
+      lengths[i] = in.readInt();
+    }
+    Inflater inflater = new Inflater();
+    try {
+      byte[] compressed = new byte[0];
+      for (int i = 0; i < count; i++) {
+        if (compressed.length < lengths[i]) {
+          compressed = new byte[lengths[i]];
+        }
+        in.readFully(compressed, 0, lengths[i]);
+        byte[] frame = new byte[decoded.widths[i] * decoded.heights[i]];
+        inflater.reset();
+        inflater.setInput(compressed, 0, lengths[i]);
+        try {
+          int read = 0;
+          while (read < frame.length && !inflater.finished()) {
+            int n = inflater.inflate(frame, read, frame.length - read);
+            if (n == 0 && inflater.needsInput()) {
+              break;
+            }
+            read += n;
+          }
+          if (read != frame.length) {
+            throw new IOException("Frame " + i + " is truncated");
+          }
+        } catch (DataFormatException e) {
+          throw new IOException("Frame " + i + " is corrupt", e);
+        }
+        if (types[i] == DELTA) {
+          if (i == 0 || frame.length != decoded.frames[i - 1].length) {
+            throw new IOException("Delta frame " + i + " has no matching reference");
+          }
+          applyResidual(decoded.frames[i - 1], frame, quantizer);
+        }
+        decoded.frames[i] = frame;
+      }
+    } finally {
+      inflater.end();
+    }
+    return decoded;
+  }
+
+  // Turns the residual in place into the frame it encodes.
+  private static void applyResidual(byte[] reference, byte[] residual, int quantizer) {
+    for (int i = 0; i < residual.length; i++) {
+      if (quantizer == 1) {
+        residual[i] = (byte) (reference[i] + residual[i]);
+      } else {
+        residual[i] = (byte) clamp((reference[i] & 0xff) + residual[i] * quantizer);
+      }
+    }
+  }
+}
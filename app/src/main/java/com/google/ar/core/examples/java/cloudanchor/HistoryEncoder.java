@@ -0,0 +1,391 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes the frame history on a work-stealing pool, one task per frame or per lossy chain.
+ *
+ * <p>A running task borrows a worker: a scratch frame, converter, encoders and output buffer, which
+ * are reused for later histories, so tasks share nothing but the frame history they copy from.
+ * There are never more workers than threads running tasks at once. The encoded frames are slices
+ * of the worker buffers and are assembled in history order. The caller waits for the pool, and a
+ * history is only valid until the next one is encoded, so one thread at a time may use an
+ * instance, like the classification worker does.
+ */
+class HistoryEncoder {
+  private static final String TAG =
+      CloudAnchorActivity.class.getSimpleName() + "." + HistoryEncoder.class.getSimpleName();
+
+  /**
+   * Copies the newest history frame taken at or before {@code timestamp}, false if there is none.
+   */
+  interface FrameSource {
+    boolean copy(long timestamp, FrameHistory.Frame dst);
+  }
+
+  /** The history encoded as one image per frame, in order. Frames that were evicted are null. */
+  static final class Images {
+    private final long generation;
+    final byte[][] data;
+    final int[] offsets;
+    final int[] lengths;
+
+    private Images(long generation, int count) {
+      this.generation = generation;
+      data = new byte[count][];
+      offsets = new int[count];
+      lengths = new int[count];
+    }
+  }
+
+  // The state a running task borrows, never used by two tasks at once.
+  private final class Worker {
+    final FrameHistory.Frame scratch = new FrameHistory.Frame();
+    final YuvConverter converter = new YuvConverter();
+    final HistoryCodec.FrameEncoder frameEncoder = codec.newEncoder();
+    final ExposedBuffer images = new ExposedBuffer();
+    // Settings of the request being encoded, its statistics are merged into the request's encoder.
+    ImageEncoder imageEncoder;
+
+    void reset() {
+      frameEncoder.reset();
+      images.reset();
+      imageEncoder = null;
+    }
+
+    void close() {
+      frameEncoder.close();
+    }
+  }
+
+  // Exposes its array, so encoded images can be written without copying them.
+  private static final class ExposedBuffer extends ByteArrayOutputStream {
+    byte[] array() {
+      return buf;
+    }
+  }
+
+  private interface FrameTask {
+    void run(Worker worker, int index) throws IOException;
+  }
+
+  private final HistoryCodec codec;
+  private final ForkJoinPool pool;
+  private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();
+  // Every worker ever created, so they can all be reset before a history.
+  private final ConcurrentLinkedQueue<Worker> allWorkers = new ConcurrentLinkedQueue<>();
+
+  // Luma of every history frame, reused. Written by the pool, read once it is done.
+  private byte[][] lumas = new byte[0][];
+  private int[] widths = new int[0];
+  private int[] heights = new int[0];
+  private long generation;
+  private volatile boolean shutdown;
+
+  /** @param parallelism the number of pool threads, at least 1 */
+  HistoryEncoder(HistoryCodec codec, int parallelism) {
+    this.codec = codec;
+    this.pool = new ForkJoinPool(Math.max(1, parallelism));
+  }
+
+  /**
+   * Creates an encoder with {@code historyWorkers} threads, 0 for one per core, and a codec for the
+   * {@code historyQuantizer}, {@code historyKeyframeInterval} and {@code historyDeflateLevel}
+   * config.
+   */
+  static HistoryEncoder fromConfig(Context context) {
+    int parallelism = Helper.getConfigInt(context, "historyWorkers", 0);
+    if (parallelism <= 0) {
+      parallelism = Runtime.getRuntime().availableProcessors();
+    }
+    HistoryCodec codec =
+        new HistoryCodec(
+            Helper.getConfigInt(context, "historyQuantizer", 1),
+            Helper.getConfigInt(context, "historyKeyframeInterval", 0),
+            Helper.getConfigInt(context, "historyDeflateLevel", Deflater.BEST_SPEED));
+    return new HistoryEncoder(codec, parallelism);
+  }
+
+  /**
+   * Writes the frames at {@code timestamps} as one {@link HistoryCodec} blob. Frames evicted from
+   * the source meanwhile are left out.
+   */
+  void writeDelta(
+      final long[] timestamps,
+      final FrameSource source,
+      final int rotation,
+      final int downscale,
+      OutputStream out)
+      throws IOException {
+    long start = SystemClock.elapsedRealtimeNanos();
+    int count = timestamps.length;
+    startHistory(count);
+    // The luma of every frame first, lossless deltas need the source of the frame before them.
+    forEachFrame(
+        0,
+        count,
+        (worker, i) -> {
+          widths[i] = 0;
+          if (!source.copy(timestamps[i], worker.scratch)
+              || worker.scratch.timestamp != timestamps[i]) {
+            return;
+          }
+          byte[] luma = worker.converter.convertToLuma(worker.scratch, rotation, downscale);
+          widths[i] = worker.converter.getOutputWidth();
+          heights[i] = worker.converter.getOutputHeight();
+          int samples = widths[i] * heights[i];
+          if (lumas[i] == null || lumas[i].length < samples) {
+            lumas[i] = new byte[samples];
+          }
+          System.arraycopy(luma, 0, lumas[i], 0, samples);
+        });
+    long lumaNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+    // The frames that were still there, and which of them are keyframes.
+    final int[] present = new int[count];
+    final byte[] types = new byte[count];
+    int frames = 0;
+    for (int i = 0; i < count; i++) {
+      if (widths[i] > 0) {
+        int previous = frames > 0 ? present[frames - 1] : -1;
+        types[frames] =
+            codec.typeOf(
+                frames,
+                widths[i],
+                heights[i],
+                previous >= 0 ? widths[previous] : 0,
+                previous >= 0 ? heights[previous] : 0);
+        present[frames++] = i;
+      }
+    }
+    final List<HistoryCodec.EncodedFrame> encoded = new ArrayList<>(frames);
+    for (int i = 0; i < frames; i++) {
+      encoded.add(new HistoryCodec.EncodedFrame());
+    }
+    if (codec.isLossless()) {
+      forEachFrame(
+          0,
+          frames,
+          (worker, k) -> {
+            int i = present[k];
+            worker.frameEncoder.encode(
+                timestamps[i],
+                lumas[i],
+                widths[i],
+                heights[i],
+                types[k],
+                k > 0 ? lumas[present[k - 1]] : null,
+                encoded.get(k));
+          });
+    } else {
+      // A lossy chain runs from one keyframe to the next and is encoded by one worker.
+      final int[] chains = new int[frames + 1];
+      int chainCount = 0;
+      for (int k = 0; k < frames; k++) {
+        if (types[k] == HistoryCodec.KEYFRAME) {
+          chains[chainCount++] = k;
+        }
+      }
+      chains[chainCount] = frames;
+      forEachFrame(
+          0,
+          chainCount,
+          (worker, c) -> {
+            for (int k = chains[c]; k < chains[c + 1]; k++) {
+              int i = present[k];
+              worker.frameEncoder.encode(
+                  timestamps[i], lumas[i], widths[i], heights[i], types[k], null, encoded.get(k));
+            }
+          });
+    }
+    codec.writeTo(out, encoded);
+    long bytes = 0;
+    long rawBytes = 0;
+    for (int k = 0; k < frames; k++) {
+      bytes += encoded.get(k).length;
+      rawBytes += widths[present[k]] * heights[present[k]];
+    }
+    Log.d(
+        TAG,
+        String.format(
+            Locale.US,
+            "Frame history: %d frames, %d luma bytes deflated to %d (%.1f%%), luma %.1f ms,"
+                + " total %.1f ms on %d threads",
+            frames,
+            rawBytes,
+            bytes,
+            rawBytes > 0 ? 100.0 * bytes / rawBytes : 0.0,
+            lumaNanos / 1e6,
+            (SystemClock.elapsedRealtimeNanos() - start) / 1e6,
+            pool.getParallelism()));
+  }
+
+  /**
+   * Converts and encodes the frames at {@code timestamps} as separate images with the settings of
+   * {@code encoder}, whose statistics include them afterwards. The result is only valid until the
+   * next history is encoded, see {@link #isValid}.
+   */
+  Images encodeImages(
+      final long[] timestamps,
+      final FrameSource source,
+      final int rotation,
+      final ImageEncoder encoder)
+      throws IOException {
+    long start = SystemClock.elapsedRealtimeNanos();
+    startHistory(0);
+    final Images images = new Images(generation, timestamps.length);
+    forEachFrame(
+        0,
+        timestamps.length,
+        (worker, i) -> {
+          if (!source.copy(timestamps[i], worker.scratch)) {
+            return;
+          }
+          if (worker.imageEncoder == null) {
+            worker.imageEncoder = encoder.withSameSettings();
+          }
+          ImageEncoder imageEncoder = worker.imageEncoder;
+          int offset = worker.images.size();
+          imageEncoder.encode(
+              imageEncoder.fit(
+                  worker.converter.convert(
+                      worker.scratch,
+                      rotation,
+                      imageEncoder.downscaleFor(worker.scratch.width, worker.scratch.height))),
+              worker.images);
+          images.data[i] = worker.images.array();
+          images.offsets[i] = offset;
+          images.lengths[i] = worker.images.size() - offset;
+        });
+    for (Worker worker : allWorkers) {
+      if (worker.imageEncoder != null) {
+        encoder.add(worker.imageEncoder);
+      }
+    }
+    Log.d(
+        TAG,
+        String.format(
+            Locale.US,
+            "Encoded %d history images in %.1f ms on %d threads",
+            timestamps.length,
+            (SystemClock.elapsedRealtimeNanos() - start) / 1e6,
+            pool.getParallelism()));
+    return images;
+  }
+
+  /** Returns false once a later history has reused the buffers of {@code images}. */
+  boolean isValid(Images images) {
+    return images.generation == generation;
+  }
+
+  /**
+   * Stops the pool threads and releases the native deflaters of the workers. A worker that is still
+   * running a task is released when the task returns it.
+   */
+  void shutdown() {
+    shutdown = true;
+    pool.shutdownNow();
+    closeIdleWorkers();
+  }
+
+  private void startHistory(int frames) {
+    generation++;
+    for (Worker worker : allWorkers) {
+      worker.reset();
+    }
+    if (lumas.length < frames) {
+      lumas = Arrays.copyOf(lumas, frames);
+      widths = new int[frames];
+      heights = new int[frames];
+    }
+  }
+
+  // Runs task for every index in [from, to) on the pool and waits for all of them.
+  private void forEachFrame(int from, int to, FrameTask task) throws IOException {
+    if (from >= to) {
+      return;
+    }
+    Thread caller = Thread.currentThread();
+    try {
+      pool.invoke(new RangeAction(from, to, task, caller));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    if (caller.isInterrupted()) {
+      throw new InterruptedIOException("Superseded by a newer request");
+    }
+  }
+
+  // Polling makes sure a worker is closed once, and never while a task holds it.
+  private void closeIdleWorkers() {
+    Worker worker;
+    while ((worker = idleWorkers.poll()) != null) {
+      worker.close();
+    }
+  }
+
+  private Worker borrowWorker() {
+    Worker worker = idleWorkers.poll();
+    if (worker == null) {
+      worker = new Worker();
+      allWorkers.add(worker);
+    }
+    return worker;
+  }
+
+  // Splits the range in halves until single frames remain, idle threads steal the other halves.
+  private final class RangeAction extends RecursiveAction {
+    private final int from;
+    private final int to;
+    private final FrameTask task;
+    private final Thread caller;
+
+    RangeAction(int from, int to, FrameTask task, Thread caller) {
+      this.from = from;
+      this.to = to;
+      this.task = task;
+      this.caller = caller;
+    }
+
+    @Override
+    protected void compute() {
+      if (caller.isInterrupted() || shutdown) {
+        // The request was cancelled, forEachFrame reports it.
+        return;
+      }
+      if (to - from > 1) {
+        int middle = (from + to) >>> 1;
+        invokeAll(
+            new RangeAction(from, middle, task, caller), new RangeAction(middle, to, task, caller));
+        return;
+      }
+      Worker worker = borrowWorker();
+      try {
+        task.run(worker, from);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        idleWorkers.add(worker);
+        if (shutdown) {
+          closeIdleWorkers();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,385 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The HTTP layer shared by every request the app makes.
+ *
+ * <p>Connections are kept alive and pooled by the platform's {@link HttpURLConnection}. A
+ * connection only goes back to the pool when its response body has been read to the end and
+ * closed without {@code disconnect()}, which {@link Exchange#close} takes care of. Every request
+ * uses the same timeouts, and the number of requests in flight to one host is limited.
+ *
+ * <p>The platform does not say whether a connection was reused, so it is estimated from the time
+ * {@code connect()} takes: a pooled connection is handed out in well under a millisecond, while a
+ * new one needs at least a TCP handshake.
+ *
+ * <p>Exchanges marked with {@link Exchange#measureBandwidth} time their request body and the wait
+ * for the response status, and feed them to a shared {@link BandwidthEstimator}. Only the
+ * classification uploads are marked, so lookups, warm-ups and requests to other hosts do not skew
+ * the estimate the uploads are sized by.
+ */
+final class HttpTransport {
+  private static final String TAG =
+      CloudAnchorActivity.class.getSimpleName() + "." + HttpTransport.class.getSimpleName();
+
+  // Connects faster than this are counted as reused pooled connections.
+  private static final long REUSED_CONNECT_NS = 1000000L;
+
+  private static final HttpTransport instance = new HttpTransport();
+
+  private volatile int connectTimeoutMs = 10000;
+  private volatile int readTimeoutMs = 15000;
+  private volatile int maxRequestsPerHost = 4;
+  private volatile BandwidthEstimator bandwidth = new BandwidthEstimator(0.3, 32 * 1024);
+  private final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+  private final AtomicLong connects = new AtomicLong();
+  private final AtomicLong reusedConnects = new AtomicLong();
+  private final AtomicLong newConnectNanos = new AtomicLong();
+
+  private HttpTransport() {
+    System.setProperty("http.keepAlive", "true");
+  }
+
+  /** Returns the shared transport. */
+  static HttpTransport get() {
+    return instance;
+  }
+
+  /**
+   * Reads {@code httpConnectTimeoutMs}, {@code httpReadTimeoutMs}, {@code httpMaxPerHost}, {@code
+   * bandwidthSmoothing} and {@code bandwidthMinSampleKb} from the config. Call once at startup,
+   * before the first request.
+   */
+  void configure(Context context) {
+    connectTimeoutMs = Helper.getConfigInt(context, "httpConnectTimeoutMs", connectTimeoutMs);
+    readTimeoutMs = Helper.getConfigInt(context, "httpReadTimeoutMs", readTimeoutMs);
+    maxRequestsPerHost =
+        Math.max(1, Helper.getConfigInt(context, "httpMaxPerHost", maxRequestsPerHost));
+    System.setProperty("http.maxConnections", Integer.toString(maxRequestsPerHost));
+    bandwidth =
+        new BandwidthEstimator(
+            Helper.getConfigFloat(context, "bandwidthSmoothing", 0.3f),
+            Helper.getConfigInt(context, "bandwidthMinSampleKb", 32) * 1024L);
+  }
+
+  /** Returns the estimate of upload throughput and response time of the measured exchanges. */
+  BandwidthEstimator getBandwidth() {
+    return bandwidth;
+  }
+
+  /**
+   * Opens a connection to a pooled host, waiting while that host already has the maximum number of
+   * requests in flight. Headers and the streaming mode can be set on {@link
+   * Exchange#getConnection} before the body or response is touched.
+   */
+  Exchange open(String url, String method) throws IOException {
+    URL target = new URL(url);
+    Semaphore permits = permitsFor(target);
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for " + target.getHost());
+    }
+    try {
+      HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+      connection.setConnectTimeout(connectTimeoutMs);
+      connection.setReadTimeout(readTimeoutMs);
+      connection.setRequestMethod(method);
+      connection.setDoInput(true);
+      return new Exchange(connection, permits);
+    } catch (IOException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a connection to the host of {@code url} on a background thread, so the first real
+   * request finds it in the pool. Sends a HEAD request, whose status does not matter.
+   */
+  void warmUp(final String url) {
+    new Thread(
+            () -> {
+              long start = SystemClock.elapsedRealtimeNanos();
+              try (Exchange exchange = open(url, "HEAD")) {
+                exchange.getResponseCode();
+                Log.d(
+                    TAG,
+                    String.format(
+                        Locale.US,
+                        "Warmed up %s: connect %.1f ms, total %.1f ms",
+                        exchange.getConnection().getURL().getHost(),
+                        exchange.getConnectNanos() / 1e6,
+                        (SystemClock.elapsedRealtimeNanos() - start) / 1e6));
+              } catch (IOException e) {
+                Log.w(TAG, "Warm-up of " + url + " failed", e);
+              }
+            },
+            "HttpWarmUp")
+        .start();
+  }
+
+  /** Returns the number of connects, including reused ones. */
+  long getConnects() {
+    return connects.get();
+  }
+
+  /** Returns the estimated number of connects served from the pool. */
+  long getReusedConnects() {
+    return reusedConnects.get();
+  }
+
+  @Override
+  public String toString() {
+    long fresh = connects.get() - reusedConnects.get();
+    return String.format(
+        Locale.US,
+        "%d connects, %d reused, new connections %.1f ms on average",
+        connects.get(),
+        reusedConnects.get(),
+        fresh > 0 ? newConnectNanos.get() / 1e6 / fresh : 0.0);
+  }
+
+  private Semaphore permitsFor(URL url) {
+    String host = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+    Semaphore permits = hostPermits.get(host);
+    if (permits == null) {
+      Semaphore created = new Semaphore(maxRequestsPerHost);
+      permits = hostPermits.putIfAbsent(host, created);
+      if (permits == null) {
+        permits = created;
+      }
+    }
+    return permits;
+  }
+
+  private void recordConnect(long nanos) {
+    connects.incrementAndGet();
+    if (nanos < REUSED_CONNECT_NS) {
+      reusedConnects.incrementAndGet();
+    } else {
+      newConnectNanos.addAndGet(nanos);
+    }
+  }
+
+  /**
+   * One request and its response. Closing it reads whatever is left of the response, so the
+   * connection can be reused, and frees the host slot. An exchange whose body was not written to
+   * the end, or that is closed by an interrupted thread, is disconnected instead: asking for its
+   * response would send a truncated request or wait for the read timeout.
+   */
+  final class Exchange implements Closeable {
+    private final HttpURLConnection connection;
+    private final Semaphore permits;
+    private boolean connected;
+    private boolean closed;
+    private long connectNanos;
+    // The body as written so far, null if the request has none.
+    private CountingOutputStream body;
+    private int responseCode = -1;
+    private boolean measured;
+
+    private Exchange(HttpURLConnection connection, Semaphore permits) {
+      this.connection = connection;
+      this.permits = permits;
+    }
+
+    /** Returns the underlying connection, for headers and streaming modes. */
+    HttpURLConnection getConnection() {
+      return connection;
+    }
+
+    /** Records this exchange with the {@link BandwidthEstimator} once its status arrives. */
+    void measureBandwidth() {
+      measured = true;
+    }
+
+    /** Connects and returns the stream for the request body. */
+    OutputStream getRequestBody() throws IOException {
+      connection.setDoOutput(true);
+      connect();
+      if (body == null) {
+        body = new CountingOutputStream(connection.getOutputStream());
+      }
+      return body;
+    }
+
+    /**
+     * Sends the request if needed and returns the response status. The first call records a
+     * measured exchange with the {@link BandwidthEstimator}.
+     */
+    int getResponseCode() throws IOException {
+      connect();
+      if (responseCode < 0) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        int code = connection.getResponseCode();
+        long end = SystemClock.elapsedRealtimeNanos();
+        if (measured && body != null) {
+          // The body may not have been closed, e.g. by a caller that only flushed it.
+          long bodyEnd = body.endNanos > 0 ? body.endNanos : start;
+          bandwidth.record(body.count, bodyEnd - body.startNanos, end - bodyEnd);
+        } else if (measured) {
+          bandwidth.record(0, 0, end - start);
+        }
+        responseCode = code;
+      }
+      return responseCode;
+    }
+
+    /**
+     * Returns the response body as it arrives, or the error body for a failed status, so it can be
+     * parsed without buffering. The stream is closed with the exchange.
+     */
+    InputStream getResponseBody() throws IOException {
+      InputStream in = responseStream();
+      return in != null ? in : new ByteArrayInputStream(new byte[0]);
+    }
+
+    /** Reads the whole response body, or the error body for a failed status. */
+    byte[] readBody() throws IOException {
+      InputStream in = responseStream();
+      if (in == null) {
+        return new byte[0];
+      }
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[16384];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        body.write(buffer, 0, read);
+      }
+      return body.toByteArray();
+    }
+
+    /** Returns how long connecting took, 0 before the connection is made. */
+    long getConnectNanos() {
+      return connectNanos;
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        if (connected && !isAbandoned()) {
+          InputStream in = responseStream();
+          if (in != null) {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+              // Drain the rest, the connection is only pooled once the body is consumed.
+            }
+            in.close();
+          }
+        } else if (connected) {
+          connection.disconnect();
+        }
+      } catch (IOException e) {
+        // The connection is broken, make sure it is not pooled.
+        connection.disconnect();
+      } finally {
+        permits.release();
+      }
+    }
+
+    // True if the response was never asked for and cannot be asked for safely: the body is
+    // incomplete, or the request was cancelled.
+    private boolean isAbandoned() {
+      if (Thread.currentThread().isInterrupted()) {
+        return true;
+      }
+      return responseCode < 0 && body != null && !body.isComplete();
+    }
+
+    private void connect() throws IOException {
+      if (connected) {
+        return;
+      }
+      long start = SystemClock.elapsedRealtimeNanos();
+      connection.connect();
+      connectNanos = SystemClock.elapsedRealtimeNanos() - start;
+      connected = true;
+      recordConnect(connectNanos);
+    }
+
+    // Counts the body bytes and times writing them, from opening the stream to closing it.
+    private final class CountingOutputStream extends FilterOutputStream {
+      long count;
+      long startNanos;
+      long endNanos;
+      // Set once a write or the close fails, the body is then incomplete whatever follows.
+      private boolean failed;
+
+      CountingOutputStream(OutputStream out) {
+        super(out);
+        startNanos = SystemClock.elapsedRealtimeNanos();
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        try {
+          out.write(b);
+        } catch (IOException | RuntimeException e) {
+          failed = true;
+          throw e;
+        }
+        count++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        try {
+          out.write(b, off, len);
+        } catch (IOException | RuntimeException e) {
+          failed = true;
+          throw e;
+        }
+        count += len;
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } catch (IOException | RuntimeException e) {
+          failed = true;
+          throw e;
+        }
+        if (endNanos == 0) {
+          endNanos = SystemClock.elapsedRealtimeNanos();
+        }
+      }
+
+      // Written and closed without an error.
+      boolean isComplete() {
+        return endNanos > 0 && !failed;
+      }
+    }
+
+    private InputStream responseStream() throws IOException {
+      return getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST
+          ? connection.getInputStream()
+          : connection.getErrorStream();
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Encodes upload images with the format, quality and maximum size from the config.
+ *
+ * <p>Images are scaled down so that their long edge is at most {@code imageMaxEdge}, keeping the
+ * aspect ratio of the camera frame, and never scaled up. The encoded bytes and the time spent
+ * encoding are accumulated per instance, so one instance per request reports that request's cost.
+ * Instances are not thread-safe.
+ */
+class ImageEncoder {
+
+  /** Supported upload formats. */
+  enum Format {
+    PNG(Bitmap.CompressFormat.PNG, "image/png", "png"),
+    JPEG(Bitmap.CompressFormat.JPEG, "image/jpeg", "jpg"),
+    WEBP(Bitmap.CompressFormat.WEBP, "image/webp", "webp");
+
+    final Bitmap.CompressFormat compressFormat;
+    final String contentType;
+    final String extension;
+
+    Format(Bitmap.CompressFormat compressFormat, String contentType, String extension) {
+      this.compressFormat = compressFormat;
+      this.contentType = contentType;
+      this.extension = extension;
+    }
+  }
+
+  private final Format format;
+  private final int quality;
+  private final int maxEdge;
+  // Holds one encoded image at a time, so the encode time does not include waiting on the network.
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+  private int imageCount;
+  private long encodedBytes;
+  private long encodeNanos;
+
+  /**
+   * @param quality compression quality from 0 to 100, ignored for PNG
+   * @param maxEdge the largest allowed width or height in pixels, 0 for no limit
+   */
+  ImageEncoder(Format format, int quality, int maxEdge) {
+    this.format = format;
+    this.quality = Math.max(0, Math.min(100, quality));
+    this.maxEdge = Math.max(0, maxEdge);
+  }
+
+  /** Reads {@code imageFormat}, {@code imageQuality} and {@code imageMaxEdge} from the config. */
+  static ImageEncoder fromConfig(Context context) {
+    String name = Helper.getConfigValue(context, "imageFormat");
+    Format format = Format.JPEG;
+    if (name != null) {
+      format = Format.valueOf(name.trim().toUpperCase(Locale.US));
+    }
+    return new ImageEncoder(
+        format,
+        Helper.getConfigInt(context, "imageQuality", 85),
+        Helper.getConfigInt(context, "imageMaxEdge", 1024));
+  }
+
+  /** Returns an encoder with the same settings and statistics of its own, for another thread. */
+  ImageEncoder withSameSettings() {
+    return new ImageEncoder(format, quality, maxEdge);
+  }
+
+  /** Returns an encoder with the same format and quality and a smaller maximum edge. */
+  ImageEncoder withMaxEdge(int maxEdge) {
+    return new ImageEncoder(
+        format, quality, this.maxEdge > 0 ? Math.min(this.maxEdge, maxEdge) : maxEdge);
+  }
+
+  /** Returns an encoder with the same format and maximum edge and another quality. */
+  ImageEncoder withQuality(int quality) {
+    return new ImageEncoder(format, quality, maxEdge);
+  }
+
+  /** Adds the statistics of {@code other}, e.g. one returned by {@link #withSameSettings}. */
+  void add(ImageEncoder other) {
+    imageCount += other.imageCount;
+    encodedBytes += other.encodedBytes;
+    encodeNanos += other.encodeNanos;
+  }
+
+  /**
+   * Returns the integer factor by which a {@code width} x {@code height} frame can be reduced
+   * while converting, leaving its long edge at or just above the maximum. {@link #fit} and {@link
+   * #fitSize} remove the rest.
+   */
+  int downscaleFor(int width, int height) {
+    if (maxEdge == 0) {
+      return 1;
+    }
+    return Math.max(1, Math.max(width, height) / maxEdge);
+  }
+
+  /**
+   * Returns the {width, height} a {@code width} x {@code height} image is scaled down to so that
+   * its long edge is at most the maximum, keeping the aspect ratio.
+   */
+  int[] fitSize(int width, int height) {
+    int longEdge = Math.max(width, height);
+    if (maxEdge == 0 || longEdge <= maxEdge) {
+      return new int[] {width, height};
+    }
+    float scale = (float) maxEdge / longEdge;
+    return new int[] {
+      Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale))
+    };
+  }
+
+  /** Returns {@code bitmap} scaled down to the maximum edge, or {@code bitmap} if it already fits. */
+  Bitmap fit(Bitmap bitmap) {
+    int[] size = fitSize(bitmap.getWidth(), bitmap.getHeight());
+    if (size[0] == bitmap.getWidth() && size[1] == bitmap.getHeight()) {
+      return bitmap;
+    }
+    return Bitmap.createScaledBitmap(bitmap, size[0], size[1], true);
+  }
+
+  /** Encodes {@code bitmap} into {@code out}, counting its size and encode time. */
+  void encode(Bitmap bitmap, OutputStream out) throws IOException {
+    long start = SystemClock.elapsedRealtimeNanos();
+    buffer.reset();
+    bitmap.compress(format.compressFormat, quality, buffer);
+    encodeNanos += SystemClock.elapsedRealtimeNanos() - start;
+    encodedBytes += buffer.size();
+    imageCount++;
+    buffer.writeTo(out);
+  }
+
+  /** Returns a request part that encodes {@code bitmap} when the body is written. */
+  ClassificationRequest.ImagePart part(final Bitmap bitmap) {
+    return new ClassificationRequest.ImagePart() {
+      @Override
+      public String getContentType() {
+        return format.contentType;
+      }
+
+      @Override
+      public String getExtension() {
+        return format.extension;
+      }
+
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        encode(bitmap, out);
+      }
+    };
+  }
+
+  Format getFormat() {
+    return format;
+  }
+
+  int getImageCount() {
+    return imageCount;
+  }
+
+  long getEncodedBytes() {
+    return encodedBytes;
+  }
+
+  long getEncodeNanos() {
+    return encodeNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "%s q%d max %dpx: %d images, %d bytes, %.1f ms",
+        format,
+        quality,
+        maxEdge,
+        imageCount,
+        encodedBytes,
+        encodeNanos / 1e6);
+  }
+}
@@ -0,0 +1,170 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+/**
+ * Recent readings of one three-axis IMU sensor, with time-window statistics.
+ *
+ * <p>The sensor thread appends with {@link #add}. The consumer calls {@link #refresh} to take a
+ * snapshot and then queries windows of it. Windows are located by binary search on the sorted
+ * timestamps and aggregated in a single pass with Welford accumulators, so a query costs
+ * O(log n + k) for k samples in the window and does not allocate.
+ */
+class ImuHistory {
+  static final int AXIS_X = 0;
+  static final int AXIS_Y = 1;
+  static final int AXIS_Z = 2;
+  /** Euclidean norm of the three axes, e.g. the angular speed for a gyroscope. */
+  static final int AXIS_MAGNITUDE = 3;
+  private static final int AXIS_COUNT = 4;
+
+  /** Count, mean, variance, min and max of every axis over one time window. Reusable. */
+  static final class WindowStats {
+    private final double[] mean = new double[AXIS_COUNT];
+    private final double[] m2 = new double[AXIS_COUNT];
+    private final double[] min = new double[AXIS_COUNT];
+    private final double[] max = new double[AXIS_COUNT];
+    private int count;
+
+    /** Returns the number of samples in the window. */
+    int count() {
+      return count;
+    }
+
+    /** Returns the mean of {@code axis}, NaN for an empty window. */
+    double mean(int axis) {
+      return count > 0 ? mean[axis] : Double.NaN;
+    }
+
+    /** Returns the sample variance of {@code axis}, NaN with fewer than two samples. */
+    double variance(int axis) {
+      return count > 1 ? m2[axis] / (count - 1) : Double.NaN;
+    }
+
+    /** Returns the smallest value of {@code axis}, NaN for an empty window. */
+    double min(int axis) {
+      return count > 0 ? min[axis] : Double.NaN;
+    }
+
+    /** Returns the largest value of {@code axis}, NaN for an empty window. */
+    double max(int axis) {
+      return count > 0 ? max[axis] : Double.NaN;
+    }
+
+    private void reset() {
+      count = 0;
+      for (int axis = 0; axis < AXIS_COUNT; axis++) {
+        mean[axis] = 0;
+        m2[axis] = 0;
+        min[axis] = Double.POSITIVE_INFINITY;
+        max[axis] = Double.NEGATIVE_INFINITY;
+      }
+    }
+
+    private void add(double x, double y, double z) {
+      count++;
+      accumulate(AXIS_X, x);
+      accumulate(AXIS_Y, y);
+      accumulate(AXIS_Z, z);
+      accumulate(AXIS_MAGNITUDE, Math.sqrt(x * x + y * y + z * z));
+    }
+
+    private void accumulate(int axis, double value) {
+      double delta = value - mean[axis];
+      mean[axis] += delta / count;
+      m2[axis] += delta * (value - mean[axis]);
+      if (value < min[axis]) {
+        min[axis] = value;
+      }
+      if (value > max[axis]) {
+        max[axis] = value;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "n="
+          + count
+          + " mean="
+          + mean(AXIS_MAGNITUDE)
+          + " var="
+          + variance(AXIS_MAGNITUDE)
+          + " min="
+          + min(AXIS_MAGNITUDE)
+          + " max="
+          + max(AXIS_MAGNITUDE);
+    }
+  }
+
+  private final ImuRingBuffer samples;
+  private final ImuRingBuffer.Snapshot snapshot;
+
+  ImuHistory(int capacity) {
+    samples = new ImuRingBuffer(capacity);
+    snapshot = samples.newSnapshot();
+  }
+
+  /** Appends a reading. Sensor thread only. */
+  void add(long timestamp, float x, float y, float z) {
+    samples.add(timestamp, x, y, z);
+  }
+
+  /** Takes a new snapshot of the readings that later queries work on. Consumer thread only. */
+  void refresh() {
+    samples.snapshot(snapshot);
+  }
+
+  /**
+   * Aggregates the snapshot readings with timestamps in {@code [from, to]} into {@code out}.
+   *
+   * @return {@code out}, for chaining
+   */
+  WindowStats window(long from, long to, WindowStats out) {
+    out.reset();
+    int end = lowerBound(snapshot.timestamps, snapshot.size, to + 1);
+    for (int i = lowerBound(snapshot.timestamps, snapshot.size, from); i < end; i++) {
+      out.add(snapshot.x[i], snapshot.y[i], snapshot.z[i]);
+    }
+    return out;
+  }
+
+  /**
+   * Linearly interpolates the reading at {@code timestamp} between the two snapshot readings around
+   * it, writing x, y and z into {@code out}.
+   *
+   * @return false if {@code timestamp} is not between the oldest and newest reading
+   */
+  boolean interpolate(long timestamp, float[] out) {
+    int after = lowerBound(snapshot.timestamps, snapshot.size, timestamp);
+    if (after == snapshot.size || (after == 0 && snapshot.timestamps[0] != timestamp)) {
+      return false;
+    }
+    long afterTime = snapshot.timestamps[after];
+    if (afterTime == timestamp) {
+      out[AXIS_X] = snapshot.x[after];
+      out[AXIS_Y] = snapshot.y[after];
+      out[AXIS_Z] = snapshot.z[after];
+      return true;
+    }
+    int before = after - 1;
+    long beforeTime = snapshot.timestamps[before];
+    float t = (float) (timestamp - beforeTime) / (afterTime - beforeTime);
+    out[AXIS_X] = snapshot.x[before] + t * (snapshot.x[after] - snapshot.x[before]);
+    out[AXIS_Y] = snapshot.y[before] + t * (snapshot.y[after] - snapshot.y[before]);
+    out[AXIS_Z] = snapshot.z[before] + t * (snapshot.z[after] - snapshot.z[before]);
+    return true;
+  }
+
+  /** Returns the index of the first of the {@code size} sorted timestamps that is >= {@code t}. */
+  static int lowerBound(long[] timestamps, int size, long t) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (timestamps[mid] < t) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
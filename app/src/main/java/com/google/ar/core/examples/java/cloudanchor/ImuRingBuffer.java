@@ -0,0 +1,105 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity ring of three-axis IMU samples for one producer and one consumer thread.
+ *
+ * <p>Samples are kept in primitive atomic arrays, so adding one does not allocate or box. When the
+ * ring is full the oldest sample is overwritten. The producer never waits for the consumer: a
+ * {@link #snapshot} copies the ring and then discards any samples the producer may have
+ * overwritten while the copy was running.
+ *
+ * <p>That check re-reads the head after the copy, and is only sound if the copy's reads cannot be
+ * reordered after the re-read. Java 8 has no load fence outside Unsafe, so every slot is written
+ * with a release store ({@code lazySet}) and read with an acquire load ({@code get}): a copied
+ * value from an overwrite then guarantees that the re-read sees the head the overwrite came after.
+ */
+class ImuRingBuffer {
+
+  /** A consistent copy of the samples in the ring, oldest first. Reusable between snapshots. */
+  static final class Snapshot {
+    final long[] timestamps;
+    final float[] x;
+    final float[] y;
+    final float[] z;
+    int size;
+
+    Snapshot(int capacity) {
+      timestamps = new long[capacity];
+      x = new float[capacity];
+      y = new float[capacity];
+      z = new float[capacity];
+    }
+  }
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicLongArray timestamps;
+  // The raw bits of the float readings.
+  private final AtomicIntegerArray x;
+  private final AtomicIntegerArray y;
+  private final AtomicIntegerArray z;
+  // Number of samples ever added. Published with lazySet after the sample is written.
+  private final AtomicLong head = new AtomicLong();
+
+  /** @param capacity the number of samples kept, rounded up to a power of two */
+  ImuRingBuffer(int capacity) {
+    this.capacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    this.mask = this.capacity - 1;
+    timestamps = new AtomicLongArray(this.capacity);
+    x = new AtomicIntegerArray(this.capacity);
+    y = new AtomicIntegerArray(this.capacity);
+    z = new AtomicIntegerArray(this.capacity);
+  }
+
+  /** Returns the number of samples the ring can hold. */
+  int capacity() {
+    return capacity;
+  }
+
+  /** Appends a sample, overwriting the oldest one if the ring is full. Producer thread only. */
+  void add(long timestamp, float sampleX, float sampleY, float sampleZ) {
+    long index = head.get();
+    int slot = (int) (index & mask);
+    timestamps.lazySet(slot, timestamp);
+    x.lazySet(slot, Float.floatToRawIntBits(sampleX));
+    y.lazySet(slot, Float.floatToRawIntBits(sampleY));
+    z.lazySet(slot, Float.floatToRawIntBits(sampleZ));
+    head.lazySet(index + 1);
+  }
+
+  /** Returns a new snapshot sized for this ring. */
+  Snapshot newSnapshot() {
+    return new Snapshot(capacity);
+  }
+
+  /** Copies the current contents of the ring into {@code dst}. Consumer thread only. */
+  void snapshot(Snapshot dst) {
+    long end = head.get();
+    long start = Math.max(0, end - capacity);
+    int count = (int) (end - start);
+    for (int i = 0; i < count; i++) {
+      int slot = (int) ((start + i) & mask);
+      dst.timestamps[i] = timestamps.get(slot);
+      dst.x[i] = Float.intBitsToFloat(x.get(slot));
+      dst.y[i] = Float.intBitsToFloat(y.get(slot));
+      dst.z[i] = Float.intBitsToFloat(z.get(slot));
+    }
+
+    // The producer may have lapped the start of the copy meanwhile. Drop every sample whose slot
+    // was, or is about to be, rewritten.
+    long valid = head.get() + 1 - capacity;
+    int overwritten = (int) Math.max(0, Math.min(count, valid - start));
+    if (overwritten > 0) {
+      count -= overwritten;
+      System.arraycopy(dst.timestamps, overwritten, dst.timestamps, 0, count);
+      System.arraycopy(dst.x, overwritten, dst.x, 0, count);
+      System.arraycopy(dst.y, overwritten, dst.y, 0, count);
+      System.arraycopy(dst.z, overwritten, dst.z, 0, count);
+    }
+    dst.size = count;
+  }
+}
@@ -0,0 +1,51 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the last requests and reports their percentiles. Thread-safe.
+ *
+ * <p>The window is small, so a percentile is computed by sorting a copy of it, which is cheap next
+ * to the request it is used for and does not need any bucketing.
+ */
+class LatencyTracker {
+  private final long[] samples;
+  private final long[] sorted;
+  private int count;
+  private int next;
+
+  /** @param window the number of most recent latencies kept */
+  LatencyTracker(int window) {
+    samples = new long[Math.max(1, window)];
+    sorted = new long[samples.length];
+  }
+
+  synchronized void record(long latencyMs) {
+    samples[next] = latencyMs;
+    next = (next + 1) % samples.length;
+    if (count < samples.length) {
+      count++;
+    }
+  }
+
+  /** Returns the number of latencies currently kept. */
+  synchronized int count() {
+    return count;
+  }
+
+  /**
+   * Returns the latency below which {@code percentile} of the kept latencies fall, or -1 while
+   * fewer than {@code minSamples} are kept.
+   *
+   * @param percentile between 0 and 1, e.g. 0.95
+   */
+  synchronized long percentile(double percentile, int minSamples) {
+    if (count == 0 || count < minSamples) {
+      return -1;
+    }
+    System.arraycopy(samples, 0, sorted, 0, count);
+    Arrays.sort(sorted, 0, count);
+    int index = (int) Math.ceil(percentile * count) - 1;
+    return sorted[Math.max(0, Math.min(count - 1, index))];
+  }
+}
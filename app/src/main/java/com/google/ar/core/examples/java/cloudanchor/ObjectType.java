@@ -2,6 +2,6 @@ package com.google.ar.core.examples.java.cloudanchor;
 
 public class ObjectType {
 
-    public String type ="";
+    public volatile String type ="";
 
 }
@@ -0,0 +1,225 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes upload frames straight from their YUV planes, without converting them to RGB.
+ *
+ * <p>{@link PixelFormat#Y8} keeps the luma plane only, {@link PixelFormat#I420} adds the chroma
+ * planes at a quarter of the resolution each. The planes are rotated and downscaled by an integer
+ * factor while they are copied, resampled bilinearly to the maximum edge of the {@link
+ * ImageEncoder} like its bitmaps, then deflated. Instances are not thread-safe.
+ */
+class PlanarEncoder {
+
+  /** The pixel formats an upload can have, declared by the {@code pixel_format} field. */
+  enum PixelFormat {
+    /** Converted to RGB and compressed by {@link ImageEncoder}. */
+    RGB("rgb"),
+    /** 8-bit luma, row by row. */
+    Y8("y8"),
+    /** 8-bit luma, then the U and V planes at half the width and height. */
+    I420("i420");
+
+    final String value;
+
+    PixelFormat(String value) {
+      this.value = value;
+    }
+  }
+
+  private final PixelFormat pixelFormat;
+  private final Deflater deflater;
+  private final byte[] deflateBuffer = new byte[16384];
+  // The planes resampled to the maximum edge, reused between frames.
+  private byte[] fitted = new byte[0];
+
+  private int width;
+  private int height;
+  private int rawBytes;
+  private long convertNanos;
+  private long deflateNanos;
+
+  /** @param pixelFormat {@link PixelFormat#Y8} or {@link PixelFormat#I420} */
+  PlanarEncoder(PixelFormat pixelFormat, int deflateLevel) {
+    if (pixelFormat == PixelFormat.RGB) {
+      throw new IllegalArgumentException("RGB uploads are encoded by ImageEncoder");
+    }
+    this.pixelFormat = pixelFormat;
+    this.deflater = new Deflater(deflateLevel);
+  }
+
+  /**
+   * Reads {@code uploadPixelFormat} and {@code uploadDeflateLevel}. Returns null if uploads are
+   * converted to RGB, which is the default.
+   */
+  static PlanarEncoder fromConfig(Context context) {
+    String name = Helper.getConfigValue(context, "uploadPixelFormat");
+    PixelFormat pixelFormat =
+        name != null ? PixelFormat.valueOf(name.trim().toUpperCase(Locale.US)) : PixelFormat.RGB;
+    if (pixelFormat == PixelFormat.RGB) {
+      return null;
+    }
+    return new PlanarEncoder(pixelFormat, Helper.getConfigInt(context, "uploadDeflateLevel", 1));
+  }
+
+  /** Returns the value of the {@code pixel_format} field for the frames encoded here. */
+  String getPixelFormat() {
+    return pixelFormat.value;
+  }
+
+  /**
+   * Copies the planes of {@code frame} with {@code converter}, fits them to the maximum edge of
+   * {@code sizing} and deflates them. Returns a part that holds the deflated bytes, so the frame
+   * may be reused right away.
+   */
+  ClassificationRequest.ImagePart encode(
+      FrameHistory.Frame frame, int rotation, ImageEncoder sizing, YuvConverter converter) {
+    long start = SystemClock.elapsedRealtimeNanos();
+    int downscale = sizing.downscaleFor(frame.width, frame.height);
+    byte[] planes =
+        pixelFormat == PixelFormat.Y8
+            ? converter.convertToLuma(frame, rotation, downscale)
+            : converter.convertToI420(frame, rotation, downscale);
+    width = converter.getOutputWidth();
+    height = converter.getOutputHeight();
+    int[] size = sizing.fitSize(width, height);
+    if (size[0] != width || size[1] != height) {
+      planes = fit(planes, size[0], size[1]);
+      width = size[0];
+      height = size[1];
+    }
+    rawBytes = planesSize(width, height);
+    long converted = SystemClock.elapsedRealtimeNanos();
+    convertNanos = converted - start;
+
+    final ByteArrayOutputStream deflated = new ByteArrayOutputStream(rawBytes / 2);
+    deflater.reset();
+    deflater.setInput(planes, 0, rawBytes);
+    deflater.finish();
+    while (!deflater.finished()) {
+      deflated.write(deflateBuffer, 0, deflater.deflate(deflateBuffer));
+    }
+    deflateNanos = SystemClock.elapsedRealtimeNanos() - converted;
+    final String extension = pixelFormat.value;
+    return new ClassificationRequest.ImagePart() {
+      @Override
+      public String getContentType() {
+        return "application/octet-stream";
+      }
+
+      @Override
+      public String getExtension() {
+        return extension;
+      }
+
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        deflated.writeTo(out);
+      }
+    };
+  }
+
+  // Resamples the width x height planes to fitWidth x fitHeight into fitted, plane by plane.
+  private byte[] fit(byte[] planes, int fitWidth, int fitHeight) {
+    int size = planesSize(fitWidth, fitHeight);
+    if (fitted.length < size) {
+      fitted = new byte[size];
+    }
+    resample(planes, 0, width, height, fitted, 0, fitWidth, fitHeight);
+    if (pixelFormat == PixelFormat.I420) {
+      int chromaWidth = width / 2;
+      int chromaHeight = height / 2;
+      int fitChromaWidth = fitWidth / 2;
+      int fitChromaHeight = fitHeight / 2;
+      int src = width * height;
+      int dst = fitWidth * fitHeight;
+      for (int plane = 0; plane < 2; plane++) {
+        resample(
+            planes, src, chromaWidth, chromaHeight, fitted, dst, fitChromaWidth, fitChromaHeight);
+        src += chromaWidth * chromaHeight;
+        dst += fitChromaWidth * fitChromaHeight;
+      }
+    }
+    return fitted;
+  }
+
+  private int planesSize(int width, int height) {
+    return width * height + (pixelFormat == PixelFormat.I420 ? 2 * (width / 2) * (height / 2) : 0);
+  }
+
+  // Bilinear resampling of one tightly packed plane, with pixel centers aligned in both, the same
+  // filter Bitmap.createScaledBitmap uses for the RGB uploads. Positions are in 16.16 fixed point.
+  static void resample(
+      byte[] src,
+      int srcOffset,
+      int srcWidth,
+      int srcHeight,
+      byte[] dst,
+      int dstOffset,
+      int dstWidth,
+      int dstHeight) {
+    if (dstWidth == 0 || dstHeight == 0) {
+      return;
+    }
+    int[] x0 = new int[dstWidth];
+    int[] fx = new int[dstWidth];
+    for (int x = 0; x < dstWidth; x++) {
+      int pos = sourcePosition(x, srcWidth, dstWidth);
+      x0[x] = Math.min(pos >> 16, srcWidth - 1);
+      fx[x] = x0[x] == srcWidth - 1 ? 0 : pos & 0xffff;
+    }
+    int out = dstOffset;
+    for (int y = 0; y < dstHeight; y++) {
+      int pos = sourcePosition(y, srcHeight, dstHeight);
+      int y0 = Math.min(pos >> 16, srcHeight - 1);
+      int fy = y0 == srcHeight - 1 ? 0 : pos & 0xffff;
+      int row0 = srcOffset + y0 * srcWidth;
+      int row1 = fy == 0 ? row0 : row0 + srcWidth;
+      for (int x = 0; x < dstWidth; x++) {
+        int i = x0[x];
+        int j = fx[x] == 0 ? i : i + 1;
+        int top = (src[row0 + i] & 0xff) * (0x10000 - fx[x]) + (src[row0 + j] & 0xff) * fx[x];
+        int bottom = (src[row1 + i] & 0xff) * (0x10000 - fx[x]) + (src[row1 + j] & 0xff) * fx[x];
+        long value = (long) top * (0x10000 - fy) + (long) bottom * fy;
+        dst[out++] = (byte) ((value + (1L << 31)) >>> 32);
+      }
+    }
+  }
+
+  // Where the center of destination pixel i falls in the source, clamped to the first center.
+  private static int sourcePosition(int i, int srcSize, int dstSize) {
+    long pos = ((2L * i + 1) * srcSize * 0x10000 / dstSize - 0x10000) / 2;
+    return (int) Math.max(0, pos);
+  }
+
+  /** Returns the width of the last encoded frame. */
+  int getWidth() {
+    return width;
+  }
+
+  /** Returns the height of the last encoded frame. */
+  int getHeight() {
+    return height;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "%s %dx%d: %d bytes, copied in %.1f ms, deflated in %.1f ms",
+        pixelFormat.value,
+        width,
+        height,
+        rawBytes,
+        convertNanos / 1e6,
+        deflateNanos / 1e6);
+  }
+}
@@ -33,18 +33,18 @@ public class PolyApi {
   /**
    * Gets the asset with the given ID.
    * @param assetId The ID of the asset to get.
-   * @param handler The handler on which to call the listener.
-   * @param completionListener The listener to call when the asset request is completed.
+   * @param handler The handler on which to report failures.
+   * @param listener The listener that reads the asset response as it arrives.
    */
   public static void GetAsset(String assetId, Handler handler,
-                              AsyncHttpRequest.CompletionListener completionListener) {
+                              AsyncHttpRequest.StreamingListener listener) {
 
     // Let's check if the developer (that's you!) correctly replaced the API_KEY with their own
     // API key in this file. If not, complain.
     if (API_KEY.startsWith("***")) {
       Log.e(TAG, "***** API KEY WAS NOT SET.");
       Log.e(TAG, "***** Please enter your API key in PolyApi.java");
-      completionListener.onHttpRequestFailure(0, "API Key not set! Check PolyApi.java", null);
+      listener.onHttpRequestFailure(0, "API Key not set! Check PolyApi.java", null);
       return;
     }
 
@@ -60,7 +60,7 @@ public class PolyApi {
         .build().toString();
 
     // Send an asynchronous request.
-    AsyncHttpRequest request = new AsyncHttpRequest(url, handler, completionListener);
+    AsyncHttpRequest request = new AsyncHttpRequest(url, handler, listener);
     request.send();
   }
 }
@@ -0,0 +1,189 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the answers to recent requests, so that pressing HOST again at the same object can be
+ * answered without a round trip.
+ *
+ * <p>A request is keyed by a 64-bit difference hash of its frame and the anchors that were visible
+ * at the press. A lookup matches an entry with the same anchors whose hash differs in at most
+ * {@code maxDistance} bits, so small camera movements and noise still hit. Entries are evicted
+ * least recently used first once there are {@code maxEntries}, and expire {@code maxAgeMs} after
+ * they were stored. Thread-safe.
+ */
+class ResultCache {
+  // The hash compares each of HASH_ROWS rows of HASH_COLUMNS + 1 cells with its right neighbour.
+  private static final int HASH_COLUMNS = 8;
+  private static final int HASH_ROWS = 8;
+  // Every SAMPLE_STEP-th pixel of a cell is averaged, which is plenty for cells this large.
+  private static final int SAMPLE_STEP = 4;
+
+  /** What a request is looked up by. */
+  static final class Key {
+    final long hash;
+    // The visible anchor IDs as listed at the press.
+    final String anchors;
+
+    Key(long hash, String anchors) {
+      this.hash = hash;
+      this.anchors = anchors != null ? anchors : "";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hash == other.hash && anchors.equals(other.anchors);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Long.hashCode(hash) + anchors.hashCode();
+    }
+  }
+
+  private static final class Entry {
+    final Key key;
+    final ClassificationResult result;
+    final long storedMs;
+
+    Entry(Key key, ClassificationResult result, long storedMs) {
+      this.key = key;
+      this.result = result;
+      this.storedMs = storedMs;
+    }
+  }
+
+  private final int maxEntries;
+  private final long maxAgeMs;
+  private final int maxDistance;
+  // In access order, so the eldest entry is the least recently used one. Guarded by this.
+  private final LinkedHashMap<Key, Entry> entries;
+
+  private int hits;
+  private int misses;
+
+  /**
+   * @param maxEntries the most answers kept
+   * @param maxAgeMs how long an answer is used after it was stored
+   * @param maxDistance the most bits in which the hashes of matching frames may differ
+   */
+  ResultCache(int maxEntries, long maxAgeMs, int maxDistance) {
+    this.maxEntries = Math.max(1, maxEntries);
+    this.maxAgeMs = maxAgeMs;
+    this.maxDistance = maxDistance;
+    this.entries =
+        new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > ResultCache.this.maxEntries;
+          }
+        };
+  }
+
+  /**
+   * Reads {@code resultCacheEntries}, {@code resultCacheMaxAgeS} and {@code
+   * resultCacheMaxDistance}. Returns null if {@code resultCache} is not true.
+   */
+  static ResultCache fromConfig(Context context) {
+    if (!"true".equals(Helper.getConfigValue(context, "resultCache"))) {
+      return null;
+    }
+    return new ResultCache(
+        Helper.getConfigInt(context, "resultCacheEntries", 32),
+        Helper.getConfigInt(context, "resultCacheMaxAgeS", 300) * 1000L,
+        Helper.getConfigInt(context, "resultCacheMaxDistance", 10));
+  }
+
+  /** Returns the answer stored for the closest matching frame, or null if there is none. */
+  synchronized ClassificationResult get(Key key) {
+    long now = SystemClock.elapsedRealtime();
+    Entry best = null;
+    int bestDistance = Integer.MAX_VALUE;
+    // Iterating does not change the access order.
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (now - entry.storedMs > maxAgeMs) {
+        it.remove();
+        continue;
+      }
+      int distance = Long.bitCount(entry.key.hash ^ key.hash);
+      if (distance <= maxDistance
+          && distance < bestDistance
+          && entry.key.anchors.equals(key.anchors)) {
+        best = entry;
+        bestDistance = distance;
+      }
+    }
+    if (best == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    entries.get(best.key);
+    return best.result;
+  }
+
+  /** Stores {@code result}, replacing the answers stored for matching frames. */
+  synchronized void put(Key key, ClassificationResult result) {
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (Long.bitCount(entry.key.hash ^ key.hash) <= maxDistance
+          && entry.key.anchors.equals(key.anchors)) {
+        it.remove();
+      }
+    }
+    entries.put(key, new Entry(key, result, SystemClock.elapsedRealtime()));
+  }
+
+  /**
+   * Returns the difference hash of the luma plane of {@code frame}: the plane is averaged down to
+   * 9 x 8 cells, and every bit tells whether a cell is brighter than its right neighbour. Frames
+   * of the same scene give hashes that differ in few bits, whatever the exposure.
+   */
+  static long dHash(FrameHistory.Frame frame) {
+    ByteBuffer luma = frame.planes[0];
+    int rowStride = frame.rowStrides[0];
+    int pixelStride = frame.pixelStrides[0];
+    int columns = HASH_COLUMNS + 1;
+    long[] sums = new long[columns * HASH_ROWS];
+    int[] counts = new int[columns * HASH_ROWS];
+    for (int y = 0; y < frame.height; y += SAMPLE_STEP) {
+      int cellRow = y * HASH_ROWS / frame.height * columns;
+      int row = y * rowStride;
+      for (int x = 0; x < frame.width; x += SAMPLE_STEP) {
+        int cell = cellRow + x * columns / frame.width;
+        sums[cell] += luma.get(row + x * pixelStride) & 0xff;
+        counts[cell]++;
+      }
+    }
+    long hash = 0;
+    for (int r = 0; r < HASH_ROWS; r++) {
+      for (int c = 0; c < HASH_COLUMNS; c++) {
+        int left = r * columns + c;
+        // Compares the means without dividing: a / m > b / n is a * n > b * m.
+        hash <<= 1;
+        if (sums[left] * counts[left + 1] > sums[left + 1] * counts[left]) {
+          hash |= 1;
+        }
+      }
+    }
+    return hash;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return entries.size() + " entries, " + hits + " hits, " + misses + " misses";
+  }
+}
@@ -1,77 +1,37 @@
 package com.google.ar.core.examples.java.cloudanchor;
 
-import android.app.Activity;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
-import android.graphics.Matrix;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.media.Image;
-import android.os.AsyncTask;
 
+//stores camera images in the frame history as raw planes, it runs on the capture workers of FrameCaptureStage
+//conversion to a rotated bitmap is done by YuvConverter, only for the frames that are uploaded
+//every frame is stored with a blur score and the gyro reading, so the sharpest frame can be uploaded, and with
+//the camera pose, so the region around the anchors can be found in whichever frame that is
+//sampled frames go to the frame history, and every frame goes to the pre-roll ring if there is one
+public class SaveFrame implements FrameCaptureStage.FrameProcessor {
+    private final FrameHistory history;
+    private final FrameHistory preRoll;
+    private final CaptureSampler sampler;
+    //blur is estimated on every sharpnessStep-th pixel of the luma plane in both directions
+    private final int sharpnessStep;
+
+    public SaveFrame(FrameHistory history, FrameHistory preRoll, CaptureSampler sampler, int sharpnessStep) {
+        this.history = history;
+        this.preRoll = preRoll;
+        this.sampler = sampler;
+        this.sharpnessStep = sharpnessStep;
+    }
 
-import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
-
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.nio.ByteBuffer;
-import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
-
-public class SaveFrame extends AsyncTask<String,String,String> {
-    public Image image;
-    public Activity activity;
-    public Bitmap[] bitmaps;
-    public int position;
-    private static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss");
     @Override
-    protected String doInBackground(String... strings) {
-        assert (image.getFormat() == ImageFormat.NV21);
-
-        // NV21 is a plane of 8 bit Y values followed by interleaved  Cb Cr
-        ByteBuffer ib = ByteBuffer.allocate(image.getHeight() * image.getWidth() * 2);
-
-        ByteBuffer y = image.getPlanes()[0].getBuffer();
-        ByteBuffer cr = image.getPlanes()[1].getBuffer();
-        ByteBuffer cb = image.getPlanes()[2].getBuffer();
-        ib.put(y);
-        ib.put(cb);
-        ib.put(cr);
-
-        YuvImage yuvImage = new YuvImage(ib.array(),
-                ImageFormat.NV21, image.getWidth(), image.getHeight(), null);
-
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvImage.compressToJpeg(new Rect(0, 0,
-                image.getWidth(), image.getHeight()), 100, out);
-        byte[] imageBytes = out.toByteArray();
-        Bitmap bm = BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
-        Bitmap bitmap = bm;
-        Matrix matrix = new Matrix();
-        matrix.postRotate(90);
-        Bitmap scaledBitmap = Bitmap.createScaledBitmap(bm,
-                bm.getWidth(), bm.getHeight(), true);
-        bitmap = Bitmap.createBitmap(scaledBitmap, 0, 0,
-                scaledBitmap.getWidth(), scaledBitmap.getHeight(), matrix, true);
-        bitmaps[position] = bitmap;
-        if(position == -1) {
-            Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-            File out1 = new File(activity.getExternalFilesDir(null), "pic" + sdf.format(timestamp) + ".jpg");
-            // Make sure the directory exists
-            if (!out1.getParentFile().exists()) {
-                out1.getParentFile().mkdirs();
-            }
-            try {
-                FileOutputStream fos = new FileOutputStream(out1);
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-                fos.flush();
-                fos.close();
-            } catch (Exception e) {
-            }
+    public void process(Image image, long timestamp, boolean sampled, FrameHistory.CameraPose pose) {
+        Image.Plane luma = image.getPlanes()[0];
+        float sharpness = FrameSharpness.laplacianVariance(luma.getBuffer(), luma.getRowStride(),
+                luma.getPixelStride(), image.getWidth(), image.getHeight(), sharpnessStep);
+        float gyroMagnitude = sampler.getGyroMagnitude();
+        if (preRoll != null) {
+            preRoll.put(image, timestamp, sharpness, gyroMagnitude, pose);
+        }
+        if (sampled) {
+            history.put(image, timestamp, sharpness, gyroMagnitude, pose);
         }
-        image.close();
-        return null;
     }
 }
@@ -0,0 +1,204 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener2;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Samples the gyroscope and accelerometer on a dedicated thread and feeds the IMU histories.
+ *
+ * <p>Sensors are only registered between {@link #start} and {@link #stop}, which follow the
+ * activity's onResume and onPause. While idle, readings arrive at a low rate and are batched in the
+ * sensor hub for up to {@code maxReportLatencyUs}, so the CPU is woken up rarely. When a capture is
+ * imminent {@link #setHighRate} first flushes the pending batch, so the readings from just before
+ * the press are not lost, and then switches to the high rate. {@link #lowerRateAfter} switches back
+ * once the readings around the captured frame have arrived.
+ *
+ * <p>Readings are stored with {@link SensorEvent#timestamp}, the time the sensor took them, not the
+ * time they were delivered. Batching would otherwise shift them by up to the report latency.
+ */
+class SensorSampler implements SensorEventListener2 {
+  private static final String TAG =
+      CloudAnchorActivity.class.getSimpleName() + "." + SensorSampler.class.getSimpleName();
+
+  private final SensorManager sensorManager;
+  private final Sensor gyroscope;
+  private final Sensor accelerometer;
+  private final ImuHistory gyroHistory;
+  private final ImuHistory accHistory;
+  private final CaptureSampler captureSampler;
+  private final int idlePeriodUs;
+  private final int highPeriodUs;
+  private final int maxReportLatencyUs;
+
+  private final HandlerThread sensorThread = new HandlerThread("Sensors");
+  private final Handler sensorHandler;
+  private final Runnable lowerRate = () -> setHighRate(false);
+
+  private boolean running;
+  private boolean highRate;
+  // Flushes still outstanding before the switch to the high rate, one per sensor.
+  private int pendingFlushes;
+
+  // Events received since the last registration, and when that registration started. Written on
+  // the sensor thread, read when the registration changes.
+  private volatile long gyroEvents;
+  private volatile long accEvents;
+  private long registeredAtNs;
+  // Gyroscope rate achieved during the last completed registration, in Hz.
+  private double lastGyroRateHz;
+
+  SensorSampler(
+      SensorManager sensorManager,
+      ImuHistory gyroHistory,
+      ImuHistory accHistory,
+      CaptureSampler captureSampler,
+      int idlePeriodUs,
+      int highPeriodUs,
+      int maxReportLatencyUs) {
+    this.sensorManager = sensorManager;
+    this.gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+    this.accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+    this.gyroHistory = gyroHistory;
+    this.accHistory = accHistory;
+    this.captureSampler = captureSampler;
+    this.idlePeriodUs = idlePeriodUs;
+    this.highPeriodUs = highPeriodUs;
+    this.maxReportLatencyUs = maxReportLatencyUs;
+    sensorThread.start();
+    sensorHandler = new Handler(sensorThread.getLooper());
+  }
+
+  /** Registers the sensors at the current rate. Call from onResume. */
+  synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    register();
+  }
+
+  /** Unregisters the sensors. Call from onPause. */
+  synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    unregister();
+  }
+
+  /** Stops sampling and ends the sensor thread. Call from onDestroy. */
+  synchronized void shutdown() {
+    sensorHandler.removeCallbacks(lowerRate);
+    stop();
+    sensorThread.quitSafely();
+  }
+
+  /**
+   * Switches between the idle rate and the high rate used around a capture. Switching to the high
+   * rate cancels a pending {@link #lowerRateAfter}.
+   */
+  synchronized void setHighRate(boolean high) {
+    if (high) {
+      sensorHandler.removeCallbacks(lowerRate);
+    } else {
+      pendingFlushes = 0;
+    }
+    if (highRate == high || pendingFlushes > 0) {
+      return;
+    }
+    if (high && running && maxReportLatencyUs > 0) {
+      // Deliver the readings still batched at the idle rate first, onFlushCompleted switches.
+      pendingFlushes = (gyroscope != null ? 1 : 0) + (accelerometer != null ? 1 : 0);
+      if (pendingFlushes > 0 && sensorManager.flush(this)) {
+        return;
+      }
+      pendingFlushes = 0;
+    }
+    switchRate(high);
+  }
+
+  /**
+   * Switches to the idle rate {@code delayMs} from now, on the sensor thread, unless the high rate
+   * is asked for again before. A later call replaces the pending one.
+   */
+  void lowerRateAfter(long delayMs) {
+    sensorHandler.removeCallbacks(lowerRate);
+    sensorHandler.postDelayed(lowerRate, Math.max(0, delayMs));
+  }
+
+  /** Returns the gyroscope rate achieved during the last completed registration, in Hz. */
+  synchronized double getLastGyroRateHz() {
+    return lastGyroRateHz;
+  }
+
+  @Override
+  public void onSensorChanged(SensorEvent sensorEvent) {
+    float x = sensorEvent.values[0];
+    float y = sensorEvent.values[1];
+    float z = sensorEvent.values[2];
+    if (sensorEvent.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
+      gyroHistory.add(sensorEvent.timestamp, x, y, z);
+      captureSampler.setGyroMagnitude((float) Math.sqrt(x * x + y * y + z * z));
+      gyroEvents++;
+    } else {
+      accHistory.add(sensorEvent.timestamp, x, y, z);
+      accEvents++;
+    }
+  }
+
+  @Override
+  public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+  @Override
+  public synchronized void onFlushCompleted(Sensor sensor) {
+    if (pendingFlushes > 0 && --pendingFlushes == 0) {
+      switchRate(true);
+    }
+  }
+
+  private void switchRate(boolean high) {
+    if (highRate == high) {
+      return;
+    }
+    if (running) {
+      unregister();
+    }
+    highRate = high;
+    pendingFlushes = 0;
+    if (running) {
+      register();
+    }
+  }
+
+  private void register() {
+    int periodUs = highRate ? highPeriodUs : idlePeriodUs;
+    int latencyUs = highRate ? 0 : maxReportLatencyUs;
+    gyroEvents = 0;
+    accEvents = 0;
+    registeredAtNs = System.nanoTime();
+    sensorManager.registerListener(this, gyroscope, periodUs, latencyUs, sensorHandler);
+    sensorManager.registerListener(this, accelerometer, periodUs, latencyUs, sensorHandler);
+  }
+
+  // Unregisters the sensors and logs the rate that was actually achieved while registered.
+  private void unregister() {
+    sensorManager.unregisterListener(this);
+    double seconds = (System.nanoTime() - registeredAtNs) / 1e9;
+    if (seconds > 0) {
+      lastGyroRateHz = gyroEvents / seconds;
+      Log.d(
+          TAG,
+          String.format(
+              "%s rate for %.1f s: gyroscope %.1f Hz, accelerometer %.1f Hz",
+              highRate ? "High" : "Idle",
+              seconds,
+              gyroEvents / seconds,
+              accEvents / seconds));
+    }
+  }
+}
@@ -0,0 +1,622 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Classification requests persisted on disk until the server has answered them.
+ *
+ * <p>Requests are appended to segment files as records of a 12 byte header (magic, payload length,
+ * CRC32 of the payload) and the payload: id, creation time, the text fields and the encoded images.
+ * Images are written one at a time, so a request never has to fit in memory. Acknowledged ids are
+ * appended to a separate ack log. On open, segments are scanned and a torn or corrupt record ends
+ * its segment, which is truncated there.
+ *
+ * <p>A segment whose records are all acknowledged is deleted. A closed segment that is at least
+ * half acknowledged has its remaining records copied to the active segment first. The ack log is
+ * then rewritten without the ids of the deleted records.
+ *
+ * <p>Requests read back from the queue stream their images from the segment file, each write
+ * through its own file handle, so they can be sent concurrently and retried without encoding
+ * again. Thread-safe.
+ */
+class UploadQueue {
+  private static final String TAG =
+      CloudAnchorActivity.class.getSimpleName() + "." + UploadQueue.class.getSimpleName();
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int RECORD_MAGIC = 0x4d555131;
+  private static final int HEADER_BYTES = 12;
+  private static final int ACK_BYTES = 12;
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String ACK_FILE = "acks.log";
+
+  private static final class Segment {
+    final long number;
+    final File file;
+    // Ids of every record still in the file, acknowledged or not.
+    final List<Long> ids = new ArrayList<>();
+    int acked;
+
+    Segment(long number, File file) {
+      this.number = number;
+      this.file = file;
+    }
+  }
+
+  private static final class Entry {
+    final long id;
+    Segment segment;
+    // Offset of the record header in the segment.
+    long offset;
+    final int payloadLength;
+    boolean inFlight;
+
+    Entry(long id, Segment segment, long offset, int payloadLength) {
+      this.id = id;
+      this.segment = segment;
+      this.offset = offset;
+      this.payloadLength = payloadLength;
+    }
+  }
+
+  private final File dir;
+  private final long segmentMaxBytes;
+  private final long maxBytes;
+
+  // Serializes writes to the active segment, taken before the monitor of this.
+  private final Object appendLock = new Object();
+  // Encoded image bytes of the record being appended, reused.
+  private final ByteArrayOutputStream imageBuffer = new ByteArrayOutputStream();
+
+  // Guarded by this.
+  private final LinkedHashMap<Long, Entry> pending = new LinkedHashMap<>();
+  private final TreeMap<Long, Segment> segments = new TreeMap<>();
+  private final Set<Long> acked = new HashSet<>();
+  private Segment active;
+  private RandomAccessFile activeFile;
+  private RandomAccessFile ackFile;
+  private long nextId = 1;
+  private long pendingBytes;
+
+  private UploadQueue(File dir, long segmentMaxBytes, long maxBytes) {
+    this.dir = dir;
+    this.segmentMaxBytes = segmentMaxBytes;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Opens the queue in {@code dir}, recovering the requests that were not acknowledged.
+   *
+   * @param segmentMaxBytes the size after which a new segment is started
+   * @param maxBytes the total size of unacknowledged requests, the oldest are dropped beyond it
+   */
+  static UploadQueue open(File dir, long segmentMaxBytes, long maxBytes) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    UploadQueue queue = new UploadQueue(dir, segmentMaxBytes, maxBytes);
+    queue.recover();
+    return queue;
+  }
+
+  /** Persists {@code request}, encoding its images into the active segment, and returns its id. */
+  long append(ClassificationRequest request) throws IOException {
+    return append(request, false);
+  }
+
+  /**
+   * Like {@link #append}, but the request is already claimed when it becomes visible, so {@link
+   * #claimNext} cannot hand it to another thread first. A claimed request is neither claimed again
+   * nor moved by compaction until it is released or acknowledged.
+   */
+  long appendClaimed(ClassificationRequest request) throws IOException {
+    return append(request, true);
+  }
+
+  private long append(ClassificationRequest request, boolean claimed) throws IOException {
+    synchronized (appendLock) {
+      long id;
+      synchronized (this) {
+        if (activeFile.length() >= segmentMaxBytes) {
+          startSegment(active.number + 1);
+        }
+        id = nextId++;
+      }
+      long offset = activeFile.length();
+      int payloadLength;
+      try {
+        payloadLength = writeRecord(id, request, offset);
+      } catch (IOException | RuntimeException e) {
+        activeFile.setLength(offset);
+        throw e;
+      }
+      synchronized (this) {
+        Entry entry = new Entry(id, active, offset, payloadLength);
+        entry.inFlight = claimed;
+        active.ids.add(id);
+        pending.put(id, entry);
+        pendingBytes += payloadLength;
+        dropOldestBeyondLimit(id);
+      }
+      return id;
+    }
+  }
+
+  /**
+   * Reads the request with {@code id} back. Its images are streamed from disk when written.
+   *
+   * @return null if the request was acknowledged meanwhile
+   */
+  ClassificationRequest read(long id) throws IOException {
+    File file;
+    long offset;
+    synchronized (this) {
+      Entry entry = pending.get(id);
+      if (entry == null) {
+        return null;
+      }
+      file = entry.segment.file;
+      offset = entry.offset + HEADER_BYTES;
+    }
+    ClassificationRequest request = new ClassificationRequest();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+      channel.position(offset);
+      PositionedInput in = new PositionedInput(Channels.newInputStream(channel), offset);
+      in.readLong(); // id
+      in.readLong(); // creation time
+      int fieldCount = in.readInt();
+      for (int i = 0; i < fieldCount; i++) {
+        request.putField(in.readString(), in.readString());
+      }
+      int imageCount = in.readInt();
+      for (int i = 0; i < imageCount; i++) {
+        String name = in.readString();
+        String contentType = in.readString();
+        String extension = in.readString();
+        int length = in.readInt();
+        request.putImage(
+            name, new StoredImagePart(file, in.position, length, contentType, extension));
+        in.skip(length);
+      }
+    }
+    return request;
+  }
+
+  /** Claims the oldest request that is not being sent, or returns -1 if there is none. */
+  synchronized long claimNext() {
+    for (Entry entry : pending.values()) {
+      if (!entry.inFlight) {
+        entry.inFlight = true;
+        return entry.id;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns a claimed request to the queue, to be sent again later. */
+  synchronized void release(long id) {
+    Entry entry = pending.get(id);
+    if (entry != null) {
+      entry.inFlight = false;
+    }
+  }
+
+  /** Removes the request for good, e.g. once the server has answered it. */
+  void ack(long id) throws IOException {
+    synchronized (appendLock) {
+      synchronized (this) {
+        if (ackLocked(id)) {
+          compactLocked();
+        }
+      }
+    }
+  }
+
+  /** Returns the number of requests not acknowledged yet. */
+  synchronized int size() {
+    return pending.size();
+  }
+
+  /** Closes the files. The queue must not be used afterwards. */
+  void close() {
+    synchronized (appendLock) {
+      synchronized (this) {
+        closeQuietly(activeFile);
+        closeQuietly(ackFile);
+      }
+    }
+  }
+
+  private int writeRecord(long id, ClassificationRequest request, long offset) throws IOException {
+    FileChannel channel = activeFile.getChannel();
+    channel.position(offset + HEADER_BYTES);
+    CRC32 crc = new CRC32();
+    // Not closed, that would close the segment.
+    DataOutputStream out =
+        new DataOutputStream(
+            new CheckedOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 65536), crc));
+    out.writeLong(id);
+    out.writeLong(System.currentTimeMillis());
+    out.writeInt(request.getFields().size());
+    for (Map.Entry<String, String> field : request.getFields().entrySet()) {
+      writeString(out, field.getKey());
+      writeString(out, field.getValue());
+    }
+    out.writeInt(request.getImages().size());
+    for (Map.Entry<String, ClassificationRequest.ImagePart> image :
+        request.getImages().entrySet()) {
+      ClassificationRequest.ImagePart part = image.getValue();
+      writeString(out, image.getKey());
+      writeString(out, part.getContentType());
+      writeString(out, part.getExtension());
+      imageBuffer.reset();
+      part.writeTo(imageBuffer);
+      out.writeInt(imageBuffer.size());
+      imageBuffer.writeTo(out);
+    }
+    out.flush();
+    int payloadLength = out.size();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(RECORD_MAGIC).putInt(payloadLength).putInt((int) crc.getValue());
+    header.flip();
+    channel.write(header, offset);
+    channel.force(false);
+    return payloadLength;
+  }
+
+  // Drops the oldest requests that are not in flight while the queue is over its size limit.
+  private void dropOldestBeyondLimit(long keepId) throws IOException {
+    Iterator<Entry> entries = new ArrayList<>(pending.values()).iterator();
+    while (pendingBytes > maxBytes && entries.hasNext()) {
+      Entry entry = entries.next();
+      if (entry.id != keepId && !entry.inFlight) {
+        Log.w(TAG, "Upload queue is full, dropping request " + entry.id);
+        ackLocked(entry.id);
+      }
+    }
+    compactLocked();
+  }
+
+  private boolean ackLocked(long id) throws IOException {
+    Entry entry = pending.remove(id);
+    if (entry == null) {
+      return false;
+    }
+    pendingBytes -= entry.payloadLength;
+    entry.segment.acked++;
+    acked.add(id);
+    ByteBuffer record = ByteBuffer.allocate(ACK_BYTES);
+    record.putLong(id).putInt(checksum(id));
+    record.flip();
+    FileChannel channel = ackFile.getChannel();
+    channel.write(record, channel.size());
+    channel.force(false);
+    return true;
+  }
+
+  // Deletes fully acknowledged segments and moves the rest of mostly acknowledged ones.
+  private void compactLocked() throws IOException {
+    boolean deleted = false;
+    for (Iterator<Segment> it = segments.values().iterator(); it.hasNext(); ) {
+      Segment segment = it.next();
+      if (segment == active || segment.acked * 2 < segment.ids.size()) {
+        continue;
+      }
+      if (segment.acked < segment.ids.size() && !moveRecords(segment)) {
+        continue;
+      }
+      for (Long id : segment.ids) {
+        acked.remove(id);
+      }
+      if (!segment.file.delete()) {
+        Log.w(TAG, "Could not delete " + segment.file);
+      }
+      it.remove();
+      deleted = true;
+    }
+    if (deleted) {
+      rewriteAcks();
+    }
+  }
+
+  // Copies the unacknowledged records of the segment to the active one. False if one is in flight.
+  private boolean moveRecords(Segment segment) throws IOException {
+    List<Entry> moved = new ArrayList<>();
+    for (Long id : segment.ids) {
+      Entry entry = pending.get(id);
+      if (entry != null && entry.segment == segment) {
+        if (entry.inFlight) {
+          return false;
+        }
+        moved.add(entry);
+      }
+    }
+    FileChannel target = activeFile.getChannel();
+    try (RandomAccessFile source = new RandomAccessFile(segment.file, "r")) {
+      FileChannel channel = source.getChannel();
+      for (Entry entry : moved) {
+        long offset = target.size();
+        long length = HEADER_BYTES + entry.payloadLength;
+        long copied = 0;
+        while (copied < length) {
+          target.position(offset + copied);
+          copied += channel.transferTo(entry.offset + copied, length - copied, target);
+        }
+        entry.segment = active;
+        entry.offset = offset;
+        active.ids.add(entry.id);
+      }
+    }
+    target.force(false);
+    return true;
+  }
+
+  private void rewriteAcks() throws IOException {
+    File temp = new File(dir, ACK_FILE + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+      for (Long id : acked) {
+        out.writeLong(id);
+        out.writeInt(checksum(id));
+      }
+    }
+    closeQuietly(ackFile);
+    File file = new File(dir, ACK_FILE);
+    if (!temp.renameTo(file)) {
+      throw new IOException("Cannot replace " + file);
+    }
+    ackFile = new RandomAccessFile(file, "rw");
+  }
+
+  private synchronized void recover() throws IOException {
+    File ackPath = new File(dir, ACK_FILE);
+    Set<Long> ackedIds = readAcks(ackPath);
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          String number =
+              name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+          try {
+            long parsed = Long.parseLong(number);
+            segments.put(parsed, new Segment(parsed, file));
+          } catch (NumberFormatException e) {
+            Log.w(TAG, "Ignoring " + file);
+          }
+        }
+      }
+    }
+    for (Segment segment : segments.values()) {
+      scanSegment(segment, ackedIds);
+    }
+    // Compaction moves records behind newer ones, the queue is sent oldest first.
+    TreeMap<Long, Entry> byId = new TreeMap<>(pending);
+    pending.clear();
+    pending.putAll(byId);
+    ackFile = new RandomAccessFile(ackPath, "rw");
+    if (segments.isEmpty()) {
+      startSegment(1);
+    } else {
+      active = segments.lastEntry().getValue();
+      activeFile = new RandomAccessFile(active.file, "rw");
+    }
+    compactLocked();
+    Log.d(TAG, "Recovered " + pending.size() + " pending requests, " + pendingBytes + " bytes");
+  }
+
+  private Set<Long> readAcks(File file) throws IOException {
+    Set<Long> ids = new HashSet<>();
+    if (!file.exists()) {
+      return ids;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        long id = in.readLong();
+        if (in.readInt() == checksum(id)) {
+          ids.add(id);
+        }
+      }
+    } catch (EOFException e) {
+      // A torn last ack only loses that ack, its request is sent again.
+    }
+    return ids;
+  }
+
+  // Registers the valid records of the segment and truncates it at the first torn or corrupt one.
+  private void scanSegment(Segment segment, Set<Long> ackedIds) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(segment.file, "rw")) {
+      long length = raf.length();
+      long offset = 0;
+      byte[] buffer = new byte[65536];
+      while (offset + HEADER_BYTES <= length) {
+        raf.seek(offset);
+        int magic = raf.readInt();
+        int payloadLength = raf.readInt();
+        int expectedCrc = raf.readInt();
+        if (magic != RECORD_MAGIC
+            || payloadLength < 16
+            || offset + HEADER_BYTES + payloadLength > length) {
+          break;
+        }
+        CRC32 crc = new CRC32();
+        long id = raf.readLong();
+        raf.seek(offset + HEADER_BYTES);
+        int remaining = payloadLength;
+        while (remaining > 0) {
+          int read = raf.read(buffer, 0, Math.min(buffer.length, remaining));
+          crc.update(buffer, 0, read);
+          remaining -= read;
+        }
+        if ((int) crc.getValue() != expectedCrc) {
+          break;
+        }
+        segment.ids.add(id);
+        nextId = Math.max(nextId, id + 1);
+        Entry previous = pending.remove(id);
+        if (previous != null) {
+          // Left behind by a compaction that did not get to delete the segment it moved from.
+          previous.segment.acked++;
+          pendingBytes -= previous.payloadLength;
+        }
+        if (ackedIds.contains(id)) {
+          segment.acked++;
+          acked.add(id);
+        } else {
+          pending.put(id, new Entry(id, segment, offset, payloadLength));
+          pendingBytes += payloadLength;
+        }
+        offset += HEADER_BYTES + payloadLength;
+      }
+      if (offset < length) {
+        Log.w(TAG, "Truncating " + segment.file + " at " + offset + " of " + length + " bytes");
+        raf.setLength(offset);
+      }
+    }
+  }
+
+  private void startSegment(long number) throws IOException {
+    closeQuietly(activeFile);
+    active = new Segment(number, new File(dir, SEGMENT_PREFIX + number + SEGMENT_SUFFIX));
+    segments.put(number, active);
+    activeFile = new RandomAccessFile(active.file, "rw");
+  }
+
+  private static int checksum(long id) {
+    CRC32 crc = new CRC32();
+    crc.update(ByteBuffer.allocate(8).putLong(id).array());
+    return (int) crc.getValue();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void closeQuietly(RandomAccessFile file) {
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Close failed", e);
+      }
+    }
+  }
+
+  // Reads a record payload while tracking the file offset, so images can be located later.
+  private static final class PositionedInput {
+    private final DataInputStream in;
+    long position;
+
+    PositionedInput(InputStream in, long position) {
+      this.in = new DataInputStream(new BufferedInputStream(in));
+      this.position = position;
+    }
+
+    long readLong() throws IOException {
+      position += 8;
+      return in.readLong();
+    }
+
+    int readInt() throws IOException {
+      position += 4;
+      return in.readInt();
+    }
+
+    String readString() throws IOException {
+      byte[] bytes = new byte[readInt()];
+      in.readFully(bytes);
+      position += bytes.length;
+      return new String(bytes, UTF_8);
+    }
+
+    void skip(int length) throws IOException {
+      int skipped = 0;
+      while (skipped < length) {
+        int step = (int) in.skip(length - skipped);
+        if (step <= 0) {
+          throw new EOFException();
+        }
+        skipped += step;
+      }
+      position += length;
+    }
+  }
+
+  /** An encoded image inside a segment file, copied out through its own file handle. */
+  private static final class StoredImagePart implements ClassificationRequest.ImagePart {
+    private final File file;
+    private final long offset;
+    private final int length;
+    private final String contentType;
+    private final String extension;
+
+    StoredImagePart(File file, long offset, int length, String contentType, String extension) {
+      this.file = file;
+      this.offset = offset;
+      this.length = length;
+      this.contentType = contentType;
+      this.extension = extension;
+    }
+
+    @Override
+    public String getContentType() {
+      return contentType;
+    }
+
+    @Override
+    public String getExtension() {
+      return extension;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        raf.seek(offset);
+        byte[] buffer = new byte[16384];
+        int remaining = length;
+        while (remaining > 0) {
+          int read = raf.read(buffer, 0, Math.min(buffer.length, remaining));
+          if (read < 0) {
+            throw new EOFException(file + " ended inside an image");
+          }
+          out.write(buffer, 0, read);
+          remaining -= read;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,239 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.content.Context;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Picks the image size, quality and history of each upload so that it fits a latency budget.
+ *
+ * <p>The body size of a request is predicted from the bytes per pixel of recent images and the
+ * bytes per frame of recent histories, which {@link Plan#measureImage} and {@link
+ * Plan#measureHistory} learn as the parts are written. The latency of that body comes from a
+ * {@link BandwidthEstimator}. Settings are lowered one step at a time until the prediction fits:
+ * the history is dropped first, then the quality is lowered to {@code minQuality}, then the long
+ * edge is halved down to {@code minEdge}. Without a budget or a bandwidth estimate, the configured
+ * settings are used as they are. Thread-safe.
+ */
+class UploadSizer {
+  // Image sizes are learned relative to this quality and scaled by qualityFactor for others.
+  private static final int REFERENCE_QUALITY = 85;
+  private static final int QUALITY_STEP = 10;
+  private static final double SMOOTHING = 0.3;
+
+  /** The settings chosen for one request. */
+  final class Plan {
+    /** The longest edge of the image in pixels. */
+    final int maxEdge;
+    /** The compression quality of the image. */
+    final int quality;
+    /** Whether the frame history is sent. */
+    final boolean history;
+    final long predictedBytes;
+    // -1 without a bandwidth estimate.
+    final long predictedMs;
+    private final long pixels;
+
+    private Plan(
+        int maxEdge,
+        int quality,
+        boolean history,
+        long pixels,
+        long predictedBytes,
+        long predictedMs) {
+      this.maxEdge = maxEdge;
+      this.quality = quality;
+      this.history = history;
+      this.pixels = pixels;
+      this.predictedBytes = predictedBytes;
+      this.predictedMs = predictedMs;
+    }
+
+    /** Returns {@code part}, counting the bytes it writes as the image of this plan. */
+    ClassificationRequest.ImagePart measureImage(ClassificationRequest.ImagePart part) {
+      return new MeasuredPart(part) {
+        @Override
+        void measured(long bytes) {
+          recordImage(pixels, quality, bytes);
+        }
+      };
+    }
+
+    /** Returns {@code part}, counting the bytes it writes as {@code frames} history frames. */
+    ClassificationRequest.ImagePart measureHistory(
+        ClassificationRequest.ImagePart part, final int frames) {
+      return new MeasuredPart(part) {
+        @Override
+        void measured(long bytes) {
+          recordHistory(frames, bytes);
+        }
+      };
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "max %dpx q%d history %s, predicted %d bytes in %d ms",
+          maxEdge,
+          quality,
+          history ? "on" : "off",
+          predictedBytes,
+          predictedMs);
+    }
+  }
+
+  private final long budgetMs;
+  private final int maxEdge;
+  private final int quality;
+  private final int minEdge;
+  private final int minQuality;
+
+  // Bytes per pixel at REFERENCE_QUALITY. Guarded by this.
+  private double bytesPerPixel = 0.15;
+  // NaN until a history has been sent, which is then assumed to cost nothing. Guarded by this.
+  private double historyBytesPerFrame = Double.NaN;
+
+  /**
+   * @param budgetMs the latency a request should stay within, 0 to always use the settings given
+   * @param maxEdge the largest long edge, 0 for no limit
+   * @param quality the highest compression quality
+   * @param minEdge the long edge below which images are not shrunk for the budget
+   * @param minQuality the quality below which images are not compressed for the budget
+   */
+  UploadSizer(long budgetMs, int maxEdge, int quality, int minEdge, int minQuality) {
+    this.budgetMs = budgetMs;
+    this.maxEdge = maxEdge;
+    this.quality = quality;
+    this.minEdge = Math.max(1, minEdge);
+    this.minQuality = Math.min(quality, minQuality);
+  }
+
+  /**
+   * Reads {@code uploadLatencyBudgetMs}, {@code imageMaxEdge}, {@code imageQuality}, {@code
+   * uploadMinEdge} and {@code uploadMinQuality} from the config.
+   */
+  static UploadSizer fromConfig(Context context) {
+    return new UploadSizer(
+        Helper.getConfigInt(context, "uploadLatencyBudgetMs", 0),
+        Helper.getConfigInt(context, "imageMaxEdge", 1024),
+        Helper.getConfigInt(context, "imageQuality", 85),
+        Helper.getConfigInt(context, "uploadMinEdge", 256),
+        Helper.getConfigInt(context, "uploadMinQuality", 50));
+  }
+
+  /**
+   * Chooses the settings for a request with a {@code width} x {@code height} image.
+   *
+   * @param historyFrames the number of history frames the request would carry, 0 for none
+   * @param qualityAdjustable false if the image is not compressed with a quality, e.g. raw planes
+   */
+  synchronized Plan plan(
+      BandwidthEstimator bandwidth,
+      int width,
+      int height,
+      int historyFrames,
+      boolean qualityAdjustable) {
+    long budgetBytes = budgetMs > 0 ? bandwidth.affordableBytes(budgetMs) : Long.MAX_VALUE;
+    int longEdge = Math.max(width, height);
+    int edge = maxEdge > 0 ? Math.min(maxEdge, longEdge) : longEdge;
+    int q = quality;
+    boolean history = historyFrames > 0;
+    while (true) {
+      long bytes = predictBytes(width, height, edge, q, history ? historyFrames : 0);
+      if (bytes <= budgetBytes) {
+        break;
+      }
+      if (history) {
+        history = false;
+      } else if (qualityAdjustable && q > minQuality) {
+        q = Math.max(minQuality, q - QUALITY_STEP);
+      } else if (edge / 2 >= minEdge) {
+        edge /= 2;
+      } else {
+        break;
+      }
+    }
+    long bytes = predictBytes(width, height, edge, q, history ? historyFrames : 0);
+    return new Plan(
+        edge, q, history, pixelsAt(width, height, edge), bytes, bandwidth.predictMs(bytes));
+  }
+
+  private long predictBytes(int width, int height, int edge, int q, int historyFrames) {
+    double image = pixelsAt(width, height, edge) * bytesPerPixel * qualityFactor(q);
+    double history = Double.isNaN(historyBytesPerFrame) ? 0 : historyFrames * historyBytesPerFrame;
+    return (long) (image + history);
+  }
+
+  private synchronized void recordImage(long pixels, int q, long bytes) {
+    if (pixels > 0) {
+      double sample = bytes / (pixels * qualityFactor(q));
+      bytesPerPixel += SMOOTHING * (sample - bytesPerPixel);
+    }
+  }
+
+  private synchronized void recordHistory(int frames, long bytes) {
+    if (frames > 0) {
+      double sample = (double) bytes / frames;
+      historyBytesPerFrame =
+          Double.isNaN(historyBytesPerFrame)
+              ? sample
+              : historyBytesPerFrame + SMOOTHING * (sample - historyBytesPerFrame);
+    }
+  }
+
+  // The image is scaled to the edge, never up, keeping its aspect ratio.
+  private static long pixelsAt(int width, int height, int edge) {
+    double scale = Math.min(1, (double) edge / Math.max(1, Math.max(width, height)));
+    return Math.round(width * scale) * Math.round(height * scale);
+  }
+
+  // Roughly how JPEG and WebP sizes grow with quality, 1 at REFERENCE_QUALITY.
+  private static double qualityFactor(int quality) {
+    return Math.exp((quality - REFERENCE_QUALITY) / 25.0);
+  }
+
+  // Counts the bytes written by a part and reports them once it is done.
+  private abstract static class MeasuredPart implements ClassificationRequest.ImagePart {
+    private final ClassificationRequest.ImagePart part;
+
+    MeasuredPart(ClassificationRequest.ImagePart part) {
+      this.part = part;
+    }
+
+    abstract void measured(long bytes);
+
+    @Override
+    public String getContentType() {
+      return part.getContentType();
+    }
+
+    @Override
+    public String getExtension() {
+      return part.getExtension();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      final long[] count = new long[1];
+      part.writeTo(
+          new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+              out.write(b);
+              count[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+              out.write(b, off, len);
+              count[0] += len;
+            }
+          });
+      measured(count[0]);
+    }
+  }
+}
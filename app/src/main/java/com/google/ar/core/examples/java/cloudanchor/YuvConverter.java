@@ -0,0 +1,198 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts YUV_420_888 frames to ARGB pixels in a single pass.
+ *
+ * <p>Plane row and pixel strides are honoured, so padded planes and both planar and semi-planar
+ * chroma layouts work. Rotation and an integer downscale are applied while converting, and the
+ * output pixels and bitmap are reused between calls, so steady-state conversion does not allocate.
+ * Instances are not thread-safe.
+ */
+class YuvConverter {
+  private int[] pixels = new int[0];
+  private byte[] planar = new byte[0];
+  private Bitmap bitmap;
+  private int outputWidth;
+  private int outputHeight;
+
+  /**
+   * Converts {@code frame} into the reusable bitmap. The bitmap is overwritten by the next call, so
+   * callers that need to keep it must copy it.
+   *
+   * @param rotation clockwise rotation in degrees, one of 0, 90, 180 or 270
+   * @param downscale integer factor by which both dimensions are reduced, at least 1
+   */
+  Bitmap convert(FrameHistory.Frame frame, int rotation, int downscale) {
+    convertToArgb(frame, rotation, downscale);
+    if (bitmap == null
+        || bitmap.getWidth() != outputWidth
+        || bitmap.getHeight() != outputHeight) {
+      bitmap = Bitmap.createBitmap(outputWidth, outputHeight, Bitmap.Config.ARGB_8888);
+    }
+    bitmap.setPixels(pixels, 0, outputWidth, 0, 0, outputWidth, outputHeight);
+    return bitmap;
+  }
+
+  /**
+   * Converts {@code frame} into the reusable pixel array, row by row in output orientation. Use
+   * {@link #getOutputWidth()} and {@link #getOutputHeight()} for the dimensions of the result.
+   */
+  int[] convertToArgb(FrameHistory.Frame frame, int rotation, int downscale) {
+    if (rotation % 90 != 0) {
+      throw new IllegalArgumentException("Unsupported rotation " + rotation);
+    }
+    rotation = ((rotation % 360) + 360) % 360;
+    int step = Math.max(1, downscale);
+    // Dimensions of the downscaled, unrotated image.
+    int width = frame.width / step;
+    int height = frame.height / step;
+    boolean swap = rotation == 90 || rotation == 270;
+    outputWidth = swap ? height : width;
+    outputHeight = swap ? width : height;
+    if (pixels.length < outputWidth * outputHeight) {
+      pixels = new int[outputWidth * outputHeight];
+    }
+
+    ByteBuffer yPlane = frame.planes[0];
+    ByteBuffer uPlane = frame.planes[1];
+    ByteBuffer vPlane = frame.planes[2];
+    int yRowStride = frame.rowStrides[0];
+    int yPixelStride = frame.pixelStrides[0];
+    int uRowStride = frame.rowStrides[1];
+    int uPixelStride = frame.pixelStrides[1];
+    int vRowStride = frame.rowStrides[2];
+    int vPixelStride = frame.pixelStrides[2];
+
+    int out = 0;
+    for (int oy = 0; oy < outputHeight; oy++) {
+      for (int ox = 0; ox < outputWidth; ox++) {
+        int sx = gridX(rotation, ox, oy, width, height) * step;
+        int sy = gridY(rotation, ox, oy, width, height) * step;
+        int y = yPlane.get(sy * yRowStride + sx * yPixelStride) & 0xff;
+        int u = (uPlane.get((sy >> 1) * uRowStride + (sx >> 1) * uPixelStride) & 0xff) - 128;
+        int v = (vPlane.get((sy >> 1) * vRowStride + (sx >> 1) * vPixelStride) & 0xff) - 128;
+        pixels[out++] = toArgb(y, u, v);
+      }
+    }
+    return pixels;
+  }
+
+  /**
+   * Copies the luma plane of {@code frame} into a reusable array, rotated and downscaled like
+   * {@link #convertToArgb}. Use {@link #getOutputWidth()} and {@link #getOutputHeight()} for the
+   * dimensions of the result.
+   */
+  byte[] convertToLuma(FrameHistory.Frame frame, int rotation, int downscale) {
+    return convertToPlanar(frame, rotation, downscale, false);
+  }
+
+  /**
+   * Copies {@code frame} into a reusable array as planar YUV 4:2:0 (I420), rotated and downscaled
+   * like {@link #convertToArgb}: the luma plane, then the U and V planes at half the width and
+   * height, rounded down. No color conversion is done.
+   */
+  byte[] convertToI420(FrameHistory.Frame frame, int rotation, int downscale) {
+    return convertToPlanar(frame, rotation, downscale, true);
+  }
+
+  private byte[] convertToPlanar(
+      FrameHistory.Frame frame, int rotation, int downscale, boolean chroma) {
+    if (rotation % 90 != 0) {
+      throw new IllegalArgumentException("Unsupported rotation " + rotation);
+    }
+    rotation = ((rotation % 360) + 360) % 360;
+    int step = Math.max(1, downscale);
+    int width = frame.width / step;
+    int height = frame.height / step;
+    boolean swap = rotation == 90 || rotation == 270;
+    outputWidth = swap ? height : width;
+    outputHeight = swap ? width : height;
+    int lumaSize = outputWidth * outputHeight;
+    int chromaWidth = outputWidth / 2;
+    int chromaHeight = outputHeight / 2;
+    int size = chroma ? lumaSize + 2 * chromaWidth * chromaHeight : lumaSize;
+    if (planar.length < size) {
+      planar = new byte[size];
+    }
+
+    ByteBuffer yPlane = frame.planes[0];
+    int rowStride = frame.rowStrides[0];
+    int pixelStride = frame.pixelStrides[0];
+    int out = 0;
+    for (int oy = 0; oy < outputHeight; oy++) {
+      for (int ox = 0; ox < outputWidth; ox++) {
+        int sx = gridX(rotation, ox, oy, width, height) * step;
+        int sy = gridY(rotation, ox, oy, width, height) * step;
+        planar[out++] = yPlane.get(sy * rowStride + sx * pixelStride);
+      }
+    }
+    if (!chroma) {
+      return planar;
+    }
+    for (int plane = 1; plane <= 2; plane++) {
+      ByteBuffer buffer = frame.planes[plane];
+      int chromaRowStride = frame.rowStrides[plane];
+      int chromaPixelStride = frame.pixelStrides[plane];
+      for (int cy = 0; cy < chromaHeight; cy++) {
+        for (int cx = 0; cx < chromaWidth; cx++) {
+          // The chroma sample covering the top left luma sample of the output 2x2 block.
+          int sx = gridX(rotation, cx * 2, cy * 2, width, height) * step;
+          int sy = gridY(rotation, cx * 2, cy * 2, width, height) * step;
+          planar[out++] = buffer.get((sy >> 1) * chromaRowStride + (sx >> 1) * chromaPixelStride);
+        }
+      }
+    }
+    return planar;
+  }
+
+  // The column of the downscaled, unrotated source that output pixel ox, oy comes from.
+  private static int gridX(int rotation, int ox, int oy, int width, int height) {
+    switch (rotation) {
+      case 90:
+        return oy;
+      case 180:
+        return width - 1 - ox;
+      case 270:
+        return width - 1 - oy;
+      default:
+        return ox;
+    }
+  }
+
+  // The row of the downscaled, unrotated source that output pixel ox, oy comes from.
+  private static int gridY(int rotation, int ox, int oy, int width, int height) {
+    switch (rotation) {
+      case 90:
+        return height - 1 - ox;
+      case 180:
+        return height - 1 - oy;
+      case 270:
+        return ox;
+      default:
+        return oy;
+    }
+  }
+
+  int getOutputWidth() {
+    return outputWidth;
+  }
+
+  int getOutputHeight() {
+    return outputHeight;
+  }
+
+  // Full-range BT.601 conversion in 16.16 fixed point, as used by the camera's JPEG encoder.
+  private static int toArgb(int y, int u, int v) {
+    int r = y + ((91881 * v) >> 16);
+    int g = y - ((22554 * u + 46802 * v) >> 16);
+    int b = y + ((116130 * u) >> 16);
+    r = r < 0 ? 0 : (r > 255 ? 255 : r);
+    g = g < 0 ? 0 : (g > 255 ? 255 : g);
+    b = b < 0 ? 0 : (b > 255 ? 255 : b);
+    return 0xff000000 | (r << 16) | (g << 8) | b;
+  }
+}
@@ -0,0 +1,97 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the trial ownership of {@link CircuitBreaker}. The breakers are open for 0 ms, so they
+ * move to HALF_OPEN at the next request, whatever the clock says.
+ */
+public class CircuitBreakerTest {
+
+  @Test
+  public void closed_letsEveryRequestThrough() {
+    CircuitBreaker breaker = new CircuitBreaker(2, 0);
+    CircuitBreaker.Permit first = breaker.allowRequest();
+    CircuitBreaker.Permit second = breaker.allowRequest();
+    assertNotNull(first);
+    assertNotNull(second);
+    assertFalse(first.isTrial());
+    breaker.release(first);
+    breaker.release(second);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void open_refusesRequests() {
+    CircuitBreaker breaker = new CircuitBreaker(2, 60_000);
+    breaker.recordFailure();
+    assertNotNull(breaker.allowRequest());
+    breaker.recordFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertNull(breaker.allowRequest());
+  }
+
+  @Test
+  public void halfOpen_letsOneTrialThrough() {
+    CircuitBreaker breaker = openBreaker();
+    CircuitBreaker.Permit trial = breaker.allowRequest();
+    assertNotNull(trial);
+    assertTrue(trial.isTrial());
+    assertNull(breaker.allowRequest());
+  }
+
+  @Test
+  public void releasingTheTrial_letsAnotherThrough() {
+    CircuitBreaker breaker = openBreaker();
+    breaker.release(breaker.allowRequest());
+    assertNotNull(breaker.allowRequest());
+  }
+
+  @Test
+  public void releasingAnotherPermit_keepsTheTrialClaimed() {
+    CircuitBreaker breaker = new CircuitBreaker(1, 0);
+    // Let through while closed, still in flight when the breaker opens.
+    CircuitBreaker.Permit late = breaker.allowRequest();
+    breaker.recordFailure();
+    CircuitBreaker.Permit trial = breaker.allowRequest();
+    assertTrue(trial.isTrial());
+    breaker.release(late);
+    breaker.release(null);
+    assertNull(breaker.allowRequest());
+  }
+
+  @Test
+  public void releasingAnEndedTrial_keepsTheNextTrialClaimed() {
+    CircuitBreaker breaker = openBreaker();
+    CircuitBreaker.Permit first = breaker.allowRequest();
+    breaker.recordFailure();
+    CircuitBreaker.Permit second = breaker.allowRequest();
+    assertTrue(second.isTrial());
+    // The first trial's request returns after its outcome was recorded.
+    breaker.release(first);
+    assertNull(breaker.allowRequest());
+  }
+
+  @Test
+  public void trialSuccess_closesTheBreaker() {
+    CircuitBreaker breaker = openBreaker();
+    CircuitBreaker.Permit trial = breaker.allowRequest();
+    breaker.recordSuccess();
+    breaker.release(trial);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertFalse(breaker.allowRequest().isTrial());
+  }
+
+  private static CircuitBreaker openBreaker() {
+    CircuitBreaker breaker = new CircuitBreaker(1, 0);
+    breaker.recordFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    return breaker;
+  }
+}
@@ -0,0 +1,309 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+import org.junit.After;
+import org.junit.Test;
+
+/** Round-trips frame histories through {@link HistoryCodec} and {@link HistoryEncoder}. */
+public class HistoryCodecTest {
+  // Bytes of the blob header before the index, and of one index entry.
+  private static final int HEADER_BYTES = 12;
+  private static final int INDEX_BYTES = 25;
+
+  private final Random random = new Random(3);
+  private final Map<Long, FrameHistory.Frame> frames = new HashMap<>();
+  private final HistoryEncoder.FrameSource source =
+      (timestamp, dst) -> {
+        FrameHistory.Frame frame = frames.get(timestamp);
+        if (frame == null) {
+          return false;
+        }
+        copy(frame, dst);
+        return true;
+      };
+  private final List<HistoryEncoder> encoders = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    for (HistoryEncoder encoder : encoders) {
+      encoder.shutdown();
+    }
+  }
+
+  @Test
+  public void lossless_roundTripsExactly() throws IOException {
+    long[] timestamps = addScene(12, 40, 30);
+    byte[] blob = writeDelta(new HistoryCodec(1, 0, Deflater.BEST_SPEED), timestamps, 0, 1);
+
+    HistoryCodec.Decoded decoded = HistoryCodec.decode(new ByteArrayInputStream(blob));
+    assertArrayEquals(timestamps, decoded.timestamps);
+    for (int i = 0; i < timestamps.length; i++) {
+      assertArrayEquals("frame " + i, luma(timestamps[i], 0, 1), decoded.frames[i]);
+    }
+    assertTypes(blob, "KDDDDDDDDDDD");
+  }
+
+  @Test
+  public void lossy_errorStaysWithinHalfTheQuantizer() throws IOException {
+    int quantizer = 6;
+    long[] timestamps = addScene(30, 33, 21);
+    byte[] blob =
+        writeDelta(new HistoryCodec(quantizer, 0, Deflater.BEST_SPEED), timestamps, 0, 1);
+
+    HistoryCodec.Decoded decoded = HistoryCodec.decode(new ByteArrayInputStream(blob));
+    assertEquals(timestamps.length, decoded.frames.length);
+    // The first frame is a keyframe and exact. Later ones must not drift, however long the chain.
+    assertArrayEquals(luma(timestamps[0], 0, 1), decoded.frames[0]);
+    for (int i = 1; i < timestamps.length; i++) {
+      byte[] expected = luma(timestamps[i], 0, 1);
+      for (int s = 0; s < expected.length; s++) {
+        int error = Math.abs((expected[s] & 0xff) - (decoded.frames[i][s] & 0xff));
+        if (error > quantizer / 2) {
+          fail("frame " + i + " sample " + s + " is off by " + error);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void keyframeInterval_startsNewChains() throws IOException {
+    long[] timestamps = addScene(8, 16, 12);
+    for (int quantizer : new int[] {1, 4}) {
+      byte[] blob =
+          writeDelta(new HistoryCodec(quantizer, 3, Deflater.BEST_SPEED), timestamps, 0, 1);
+      assertTypes(blob, "KDDKDDKD");
+      HistoryCodec.Decoded decoded = HistoryCodec.decode(new ByteArrayInputStream(blob));
+      // Keyframes are always exact.
+      for (int i = 0; i < timestamps.length; i += 3) {
+        assertArrayEquals(luma(timestamps[i], 0, 1), decoded.frames[i]);
+      }
+    }
+  }
+
+  @Test
+  public void resolutionChange_startsAKeyframe() throws IOException {
+    long[] small = addScene(3, 16, 12);
+    long[] large = addScene(3, 20, 14, 1000);
+    long[] timestamps = {small[0], small[1], large[0], large[1], large[2], small[2]};
+    for (int quantizer : new int[] {1, 4}) {
+      byte[] blob =
+          writeDelta(new HistoryCodec(quantizer, 0, Deflater.BEST_SPEED), timestamps, 90, 1);
+      assertTypes(blob, "KDKDDK");
+      HistoryCodec.Decoded decoded = HistoryCodec.decode(new ByteArrayInputStream(blob));
+      // Rotated by 90 degrees, so the width is the source height.
+      assertArrayEquals(new int[] {12, 12, 14, 14, 14, 12}, decoded.widths);
+      assertArrayEquals(new int[] {16, 16, 20, 20, 20, 16}, decoded.heights);
+      if (quantizer == 1) {
+        for (int i = 0; i < timestamps.length; i++) {
+          assertArrayEquals(luma(timestamps[i], 90, 1), decoded.frames[i]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void evictedFrames_areLeftOut() throws IOException {
+    long[] timestamps = addScene(6, 24, 16);
+    frames.remove(timestamps[0]);
+    frames.remove(timestamps[3]);
+    byte[] blob = writeDelta(new HistoryCodec(1, 0, Deflater.BEST_SPEED), timestamps, 0, 2);
+
+    HistoryCodec.Decoded decoded = HistoryCodec.decode(new ByteArrayInputStream(blob));
+    long[] kept = {timestamps[1], timestamps[2], timestamps[4], timestamps[5]};
+    assertArrayEquals(kept, decoded.timestamps);
+    // The first frame left is the keyframe, the delta after the gap refers to the frame before it.
+    assertTypes(blob, "KDDD");
+    for (int i = 0; i < kept.length; i++) {
+      assertEquals(12, decoded.widths[i]);
+      assertEquals(8, decoded.heights[i]);
+      assertArrayEquals(luma(kept[i], 0, 2), decoded.frames[i]);
+    }
+  }
+
+  @Test
+  public void everyFrameEvicted_writesAnEmptyHistory() throws IOException {
+    long[] timestamps = addScene(3, 8, 8);
+    frames.clear();
+    byte[] blob = writeDelta(new HistoryCodec(1, 0, Deflater.BEST_SPEED), timestamps, 0, 1);
+    assertEquals(0, HistoryCodec.decode(new ByteArrayInputStream(blob)).frames.length);
+  }
+
+  @Test
+  public void encoderIsReusedAcrossHistories() throws IOException {
+    HistoryEncoder encoder = newEncoder(new HistoryCodec(1, 0, Deflater.BEST_SPEED));
+    long[] first = addScene(4, 16, 12);
+    long[] second = addScene(5, 10, 10, 1000);
+    writeDelta(encoder, first, 0, 1);
+    byte[] blob = writeDelta(encoder, second, 0, 1);
+    HistoryCodec.Decoded decoded = HistoryCodec.decode(new ByteArrayInputStream(blob));
+    for (int i = 0; i < second.length; i++) {
+      assertArrayEquals(luma(second[i], 0, 1), decoded.frames[i]);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void decode_rejectsOtherData() throws IOException {
+    HistoryCodec.decode(new ByteArrayInputStream(new byte[] {'P', 'N', 'G', 0, 0, 0, 0, 0}));
+  }
+
+  @Test(expected = IOException.class)
+  public void decode_rejectsTruncatedFrames() throws IOException {
+    long[] timestamps = addScene(3, 16, 12);
+    byte[] blob = writeDelta(new HistoryCodec(1, 0, Deflater.BEST_SPEED), timestamps, 0, 1);
+    byte[] truncated = new byte[blob.length - 4];
+    System.arraycopy(blob, 0, truncated, 0, truncated.length);
+    HistoryCodec.decode(new ByteArrayInputStream(truncated));
+  }
+
+  /**
+   * Compares the blob with base64 PNGs, one form field per frame, as the history was sent before.
+   * The PNGs are 8-bit grayscale here, which flatters them: the app compressed ARGB bitmaps.
+   * Prints the sizes and timings; run with {@code --info} to see them.
+   */
+  @Test
+  public void benchmarkSizeAndThroughput() throws IOException {
+    long[] timestamps = addScene(30, 320, 240);
+    HistoryEncoder lossless = newEncoder(new HistoryCodec(1, 0, Deflater.BEST_SPEED));
+    HistoryEncoder lossy = newEncoder(new HistoryCodec(4, 10, Deflater.BEST_SPEED));
+    // Warms up the pool threads and buffers.
+    writeDelta(lossless, timestamps, 0, 1);
+    writeDelta(lossy, timestamps, 0, 1);
+
+    long start = System.nanoTime();
+    int losslessBytes = writeDelta(lossless, timestamps, 0, 1).length;
+    long losslessNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    int lossyBytes = writeDelta(lossy, timestamps, 0, 1).length;
+    long lossyNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    long pngBytes = 0;
+    for (long timestamp : timestamps) {
+      byte[] luma = luma(timestamp, 0, 1);
+      BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_BYTE_GRAY);
+      image.getRaster().setDataElements(0, 0, 320, 240, luma);
+      ByteArrayOutputStream png = new ByteArrayOutputStream();
+      ImageIO.write(image, "png", png);
+      pngBytes += Base64.getEncoder().encode(png.toByteArray()).length;
+    }
+    long pngNanos = System.nanoTime() - start;
+
+    System.out.println(
+        String.format(
+            Locale.US,
+            "30 frames 320x240: base64 png %d bytes in %.1f ms, lossless %d bytes in %.1f ms,"
+                + " q4 %d bytes in %.1f ms",
+            pngBytes,
+            pngNanos / 1e6,
+            losslessBytes,
+            losslessNanos / 1e6,
+            lossyBytes,
+            lossyNanos / 1e6));
+    assertTrue(losslessBytes < pngBytes);
+    assertTrue(lossyBytes < losslessBytes);
+  }
+
+  private HistoryEncoder newEncoder(HistoryCodec codec) {
+    HistoryEncoder encoder = new HistoryEncoder(codec, 2);
+    encoders.add(encoder);
+    return encoder;
+  }
+
+  private byte[] writeDelta(HistoryCodec codec, long[] timestamps, int rotation, int downscale)
+      throws IOException {
+    return writeDelta(newEncoder(codec), timestamps, rotation, downscale);
+  }
+
+  private byte[] writeDelta(
+      HistoryEncoder encoder, long[] timestamps, int rotation, int downscale) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    encoder.writeDelta(timestamps, source, rotation, downscale, out);
+    return out.toByteArray();
+  }
+
+  // The expected luma of a frame, converted the way HistoryEncoder does.
+  private byte[] luma(long timestamp, int rotation, int downscale) {
+    YuvConverter converter = new YuvConverter();
+    byte[] luma = converter.convertToLuma(frames.get(timestamp), rotation, downscale);
+    byte[] copy = new byte[converter.getOutputWidth() * converter.getOutputHeight()];
+    System.arraycopy(luma, 0, copy, 0, copy.length);
+    return copy;
+  }
+
+  private long[] addScene(int count, int width, int height) {
+    return addScene(count, width, height, 0);
+  }
+
+  // A textured scene that pans one pixel per frame, with sensor noise, at 30 fps.
+  private long[] addScene(int count, int width, int height, long firstTimestamp) {
+    long[] timestamps = new long[count];
+    int padding = 4;
+    for (int i = 0; i < count; i++) {
+      FrameHistory.Frame frame = new FrameHistory.Frame();
+      frame.timestamp = firstTimestamp + i * 33_333_333L;
+      frame.width = width;
+      frame.height = height;
+      frame.rowStrides[0] = width + padding;
+      frame.pixelStrides[0] = 1;
+      byte[] y = new byte[frame.rowStrides[0] * height];
+      for (int row = 0; row < height; row++) {
+        for (int column = 0; column < width; column++) {
+          int x = column + i;
+          int value = 128 + (int) (60 * Math.sin(x / 7.0) * Math.cos(row / 5.0));
+          y[row * frame.rowStrides[0] + column] = (byte) (value + random.nextInt(5) - 2);
+        }
+      }
+      frame.planes[0] = ByteBuffer.wrap(y);
+      for (int plane = 1; plane <= 2; plane++) {
+        frame.rowStrides[plane] = (width + 1) / 2;
+        frame.pixelStrides[plane] = 1;
+        frame.planes[plane] = ByteBuffer.allocate(frame.rowStrides[plane] * ((height + 1) / 2));
+      }
+      frames.put(frame.timestamp, frame);
+      timestamps[i] = frame.timestamp;
+    }
+    return timestamps;
+  }
+
+  private static void copy(FrameHistory.Frame src, FrameHistory.Frame dst) {
+    for (int i = 0; i < 3; i++) {
+      dst.planes[i] = src.planes[i].duplicate();
+      dst.rowStrides[i] = src.rowStrides[i];
+      dst.pixelStrides[i] = src.pixelStrides[i];
+    }
+    dst.timestamp = src.timestamp;
+    dst.width = src.width;
+    dst.height = src.height;
+  }
+
+  // Checks the frame types in the index, K for a keyframe and D for a delta.
+  private static void assertTypes(byte[] blob, String expected) {
+    ByteBuffer index = ByteBuffer.wrap(blob);
+    assertEquals(HistoryCodec.MAGIC, index.getInt(0));
+    assertEquals(expected.length(), index.getInt(8));
+    StringBuilder actual = new StringBuilder();
+    for (int i = 0; i < expected.length(); i++) {
+      byte type = blob[HEADER_BYTES + i * INDEX_BYTES + 8];
+      actual.append(type == HistoryCodec.KEYFRAME ? 'K' : 'D');
+    }
+    assertEquals(expected, actual.toString());
+  }
+}
@@ -0,0 +1,257 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/** Checks the time-window queries and interpolation of {@link ImuHistory}. */
+public class ImuHistoryTest {
+  private static final double EPSILON = 1e-9;
+  private static final long WINDOW = 300;
+
+  private final ImuHistory.WindowStats stats = new ImuHistory.WindowStats();
+
+  @Test
+  public void window_includesSamplesExactlyOnBothEdges() {
+    ImuHistory history = historyAt(700, 800, 900, 1000, 1100, 1200, 1300, 1400);
+    long t = 1000;
+    history.window(t - WINDOW, t + WINDOW, stats);
+    // 700 and 1300 are on the edges, 1400 is past them.
+    assertEquals(7, stats.count());
+    assertEquals(700, stats.min(ImuHistory.AXIS_X), EPSILON);
+    assertEquals(1300, stats.max(ImuHistory.AXIS_X), EPSILON);
+  }
+
+  @Test
+  public void window_excludesSamplesJustOutsideTheEdges() {
+    ImuHistory history = historyAt(699, 700, 1300, 1301);
+    history.window(700, 1300, stats);
+    assertEquals(2, stats.count());
+    assertEquals(700, stats.min(ImuHistory.AXIS_X), EPSILON);
+    assertEquals(1300, stats.max(ImuHistory.AXIS_X), EPSILON);
+  }
+
+  @Test
+  public void window_emptyBetweenSamples() {
+    ImuHistory history = historyAt(100, 200, 900, 1000);
+    history.window(300, 800, stats);
+    assertEmpty(stats);
+  }
+
+  @Test
+  public void window_emptyBeforeAndAfterTheBuffer() {
+    ImuHistory history = historyAt(1000, 1100, 1200);
+    history.window(0, 999, stats);
+    assertEmpty(stats);
+    history.window(1201, 5000, stats);
+    assertEmpty(stats);
+  }
+
+  @Test
+  public void window_emptyHistory() {
+    ImuHistory history = new ImuHistory(8);
+    history.refresh();
+    history.window(Long.MIN_VALUE / 2, Long.MAX_VALUE / 2, stats);
+    assertEmpty(stats);
+  }
+
+  @Test
+  public void window_singleSample() {
+    ImuHistory history = new ImuHistory(8);
+    history.add(500, 3, -4, 12);
+    history.refresh();
+    history.window(500, 500, stats);
+    assertEquals(1, stats.count());
+    assertEquals(3, stats.mean(ImuHistory.AXIS_X), EPSILON);
+    assertEquals(-4, stats.min(ImuHistory.AXIS_Y), EPSILON);
+    assertEquals(12, stats.max(ImuHistory.AXIS_Z), EPSILON);
+    assertEquals(13, stats.mean(ImuHistory.AXIS_MAGNITUDE), EPSILON);
+    // A single sample has no sample variance.
+    assertTrue(Double.isNaN(stats.variance(ImuHistory.AXIS_X)));
+  }
+
+  @Test
+  public void window_matchesTwoPassReference() {
+    Random random = new Random(7);
+    int count = 200;
+    long[] timestamps = new long[count];
+    float[][] values = new float[3][count];
+    ImuHistory history = new ImuHistory(count);
+    long t = 0;
+    for (int i = 0; i < count; i++) {
+      t += 1 + random.nextInt(20);
+      timestamps[i] = t;
+      for (int axis = 0; axis < 3; axis++) {
+        // A large offset makes a naive sum of squares lose precision.
+        values[axis][i] = 1000 + (float) random.nextGaussian();
+      }
+      history.add(t, values[0][i], values[1][i], values[2][i]);
+    }
+    history.refresh();
+
+    long from = timestamps[40];
+    long to = timestamps[160];
+    history.window(from, to, stats);
+    assertEquals(121, stats.count());
+    for (int axis = 0; axis < 4; axis++) {
+      double[] window = new double[121];
+      for (int i = 40; i <= 160; i++) {
+        double x = values[0][i];
+        double y = values[1][i];
+        double z = values[2][i];
+        window[i - 40] =
+            axis == ImuHistory.AXIS_MAGNITUDE ? Math.sqrt(x * x + y * y + z * z) : values[axis][i];
+      }
+      double mean = 0;
+      for (double value : window) {
+        mean += value;
+      }
+      mean /= window.length;
+      double variance = 0;
+      for (double value : window) {
+        variance += (value - mean) * (value - mean);
+      }
+      variance /= window.length - 1;
+      assertEquals("mean of axis " + axis, mean, stats.mean(axis), 1e-9 * Math.abs(mean));
+      assertEquals("variance of axis " + axis, variance, stats.variance(axis), 1e-6 * variance);
+    }
+  }
+
+  @Test
+  public void window_onlySeesSamplesStillInTheRing() {
+    ImuHistory history = new ImuHistory(4);
+    for (long t = 100; t <= 1000; t += 100) {
+      history.add(t, t, 0, 0);
+    }
+    history.refresh();
+    history.window(0, 2000, stats);
+    // A snapshot also drops the oldest sample, whose slot the next add overwrites.
+    assertEquals(3, stats.count());
+    assertEquals(800, stats.min(ImuHistory.AXIS_X), EPSILON);
+  }
+
+  @Test
+  public void window_reflectsOnlyTheLastRefresh() {
+    ImuHistory history = historyAt(100, 200);
+    history.add(300, 300, 0, 0);
+    history.window(0, 1000, stats);
+    assertEquals(2, stats.count());
+    history.refresh();
+    history.window(0, 1000, stats);
+    assertEquals(3, stats.count());
+  }
+
+  @Test
+  public void interpolate_betweenTwoSamples() {
+    ImuHistory history = new ImuHistory(8);
+    history.add(1000, 0, 10, -4);
+    history.add(2000, 1, 20, 4);
+    history.refresh();
+    float[] out = new float[3];
+    assertTrue(history.interpolate(1250, out));
+    assertArrayEquals(new float[] {0.25f, 12.5f, -2}, out, 1e-6f);
+  }
+
+  @Test
+  public void interpolate_exactlyOnSamples() {
+    ImuHistory history = historyAt(100, 200, 300);
+    float[] out = new float[3];
+    for (long t = 100; t <= 300; t += 100) {
+      assertTrue(history.interpolate(t, out));
+      assertEquals(t, out[ImuHistory.AXIS_X], 0);
+    }
+  }
+
+  @Test
+  public void interpolate_outsideTheBuffer() {
+    ImuHistory history = historyAt(100, 200, 300);
+    float[] out = {7, 7, 7};
+    assertFalse(history.interpolate(99, out));
+    assertFalse(history.interpolate(301, out));
+    // The output is left alone.
+    assertArrayEquals(new float[] {7, 7, 7}, out, 0);
+  }
+
+  @Test
+  public void interpolate_emptyAndSingleSample() {
+    ImuHistory history = new ImuHistory(8);
+    history.refresh();
+    float[] out = new float[3];
+    assertFalse(history.interpolate(0, out));
+
+    history.add(500, 1, 2, 3);
+    history.refresh();
+    assertFalse(history.interpolate(499, out));
+    assertFalse(history.interpolate(501, out));
+    assertTrue(history.interpolate(500, out));
+    assertArrayEquals(new float[] {1, 2, 3}, out, 0);
+  }
+
+  @Test
+  public void interpolate_largeNanosecondTimestamps() {
+    // Sensor timestamps are nanoseconds since boot, far beyond what a float holds exactly.
+    long base = 86_400_000_000_000L;
+    ImuHistory history = new ImuHistory(8);
+    history.add(base, 0, 0, 0);
+    history.add(base + 5_000_000, 5, 0, 0);
+    history.refresh();
+    float[] out = new float[3];
+    assertTrue(history.interpolate(base + 1_000_000, out));
+    assertEquals(1, out[ImuHistory.AXIS_X], 1e-5f);
+  }
+
+  @Test
+  public void refresh_consistentWhileTheSensorThreadWrites() throws InterruptedException {
+    final ImuHistory history = new ImuHistory(64);
+    final int total = 2_000_000;
+    // Every sample carries its timestamp in all axes, so a torn or lapped slot shows up.
+    Thread producer =
+        new Thread(
+            () -> {
+              for (int t = 1; t <= total; t++) {
+                history.add(t, t, -t, t);
+              }
+            });
+    producer.start();
+    long lastOldest = 0;
+    while (producer.isAlive()) {
+      history.refresh();
+      history.window(Long.MIN_VALUE / 2, Long.MAX_VALUE / 2, stats);
+      if (stats.count() == 0) {
+        continue;
+      }
+      double oldest = stats.min(ImuHistory.AXIS_X);
+      double newest = stats.max(ImuHistory.AXIS_X);
+      assertEquals(newest - oldest + 1, stats.count(), 0);
+      assertEquals(-newest, stats.min(ImuHistory.AXIS_Y), 0);
+      assertEquals(newest, stats.max(ImuHistory.AXIS_Z), 0);
+      assertTrue(oldest >= lastOldest);
+      lastOldest = (long) oldest;
+    }
+    producer.join();
+  }
+
+  // A refreshed history with one sample per timestamp, whose x value is the timestamp.
+  private static ImuHistory historyAt(long... timestamps) {
+    ImuHistory history = new ImuHistory(16);
+    for (long t : timestamps) {
+      history.add(t, t, 0, 0);
+    }
+    history.refresh();
+    return history;
+  }
+
+  private static void assertEmpty(ImuHistory.WindowStats stats) {
+    assertEquals(0, stats.count());
+    for (int axis = 0; axis < 4; axis++) {
+      assertTrue(Double.isNaN(stats.mean(axis)));
+      assertTrue(Double.isNaN(stats.variance(axis)));
+      assertTrue(Double.isNaN(stats.min(axis)));
+      assertTrue(Double.isNaN(stats.max(axis)));
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * Checks the lookups of {@link ResultCache}. The clock stands still in local tests, so entries
+ * never expire here.
+ */
+public class ResultCacheTest {
+  private static final long HASH = 0x0123456789abcdefL;
+
+  private final ClassificationResult first = new ClassificationResult("chair", "first", "jpeg");
+  private final ClassificationResult second = new ClassificationResult("chair", "second", "jpeg");
+
+  @Test
+  public void sameHashDifferentAnchors_keepsBothEntries() {
+    ResultCache cache = new ResultCache(8, 60_000, 4);
+    cache.put(new ResultCache.Key(HASH, "a,b"), first);
+    cache.put(new ResultCache.Key(HASH, "c"), second);
+    assertSame(first, cache.get(new ResultCache.Key(HASH, "a,b")));
+    assertSame(second, cache.get(new ResultCache.Key(HASH, "c")));
+  }
+
+  @Test
+  public void sameHashDifferentAnchors_evictsIndependently() {
+    ResultCache cache = new ResultCache(2, 60_000, 4);
+    cache.put(new ResultCache.Key(HASH, "a"), first);
+    cache.put(new ResultCache.Key(HASH, "b"), second);
+    cache.get(new ResultCache.Key(HASH, "a"));
+    // "b" is now the least recently used entry.
+    cache.put(new ResultCache.Key(~HASH, "a"), second);
+    assertSame(first, cache.get(new ResultCache.Key(HASH, "a")));
+    assertNull(cache.get(new ResultCache.Key(HASH, "b")));
+  }
+
+  @Test
+  public void nearbyHash_matchesWithinTheDistance() {
+    ResultCache cache = new ResultCache(8, 60_000, 4);
+    cache.put(new ResultCache.Key(HASH, "a"), first);
+    assertSame(first, cache.get(new ResultCache.Key(HASH ^ 0xf, "a")));
+    assertNull(cache.get(new ResultCache.Key(HASH ^ 0x1f, "a")));
+    assertNull(cache.get(new ResultCache.Key(HASH, "b")));
+  }
+
+  @Test
+  public void closestEntryWins() {
+    ResultCache cache = new ResultCache(8, 60_000, 6);
+    cache.put(new ResultCache.Key(HASH ^ 0x7, "a"), first);
+    // Seven bits from the first entry, so it is not replaced.
+    cache.put(new ResultCache.Key(HASH ^ 0x780, "a"), second);
+    // One bit from one entry and within the distance of the other.
+    assertSame(first, cache.get(new ResultCache.Key(HASH ^ 0x3, "a")));
+    assertSame(second, cache.get(new ResultCache.Key(HASH ^ 0x380, "a")));
+  }
+
+  @Test
+  public void put_replacesMatchingEntries() {
+    ResultCache cache = new ResultCache(8, 60_000, 4);
+    cache.put(new ResultCache.Key(HASH, "a"), first);
+    cache.put(new ResultCache.Key(HASH ^ 0x3, "a"), second);
+    assertSame(second, cache.get(new ResultCache.Key(HASH, "a")));
+    assertTrue(cache.toString().startsWith("1 entries"));
+  }
+
+  @Test
+  public void nullAnchors_matchEmptyAnchors() {
+    assertEquals(new ResultCache.Key(HASH, null), new ResultCache.Key(HASH, ""));
+    assertEquals(
+        new ResultCache.Key(HASH, null).hashCode(), new ResultCache.Key(HASH, "").hashCode());
+  }
+
+  @Test
+  public void dHash_ignoresExposure() {
+    FrameHistory.Frame frame = gradientFrame(64, 48, 0);
+    FrameHistory.Frame brighter = gradientFrame(64, 48, 40);
+    assertEquals(ResultCache.dHash(frame), ResultCache.dHash(brighter));
+  }
+
+  // A luma plane that grows brighter to the right and down, plus offset.
+  private static FrameHistory.Frame gradientFrame(int width, int height, int offset) {
+    FrameHistory.Frame frame = new FrameHistory.Frame();
+    frame.width = width;
+    frame.height = height;
+    frame.rowStrides[0] = width;
+    frame.pixelStrides[0] = 1;
+    byte[] luma = new byte[width * height];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        luma[y * width + x] = (byte) (offset + (x * 7 + y * 3) % 160);
+      }
+    }
+    frame.planes[0] = ByteBuffer.wrap(luma);
+    return frame;
+  }
+}
@@ -0,0 +1,168 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Checks that {@link UploadQueue} recovers its requests from disk after a reopen. */
+public class UploadQueueTest {
+  private static final long LARGE = 1 << 20;
+
+  private File dir;
+  private UploadQueue queue;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("upload-queue").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    if (queue != null) {
+      queue.close();
+    }
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void reopen_returnsFieldsAndImages() throws IOException {
+    queue = UploadQueue.open(dir, LARGE, LARGE);
+    long id = queue.append(request("chair", 1000));
+    queue.close();
+
+    queue = UploadQueue.open(dir, LARGE, LARGE);
+    assertEquals(1, queue.size());
+    assertEquals(id, queue.claimNext());
+    ClassificationRequest read = queue.read(id);
+    assertEquals("chair", read.getFields().get("label"));
+    assertArrayEquals(imageBytes(1000), bytesOf(read.getImages().get("image")));
+    assertEquals("image/jpeg", read.getImages().get("image").getContentType());
+  }
+
+  @Test
+  public void reopen_dropsTornLastRecord() throws IOException {
+    queue = UploadQueue.open(dir, LARGE, LARGE);
+    long first = queue.append(request("chair", 1000));
+    queue.append(request("table", 1000));
+    queue.close();
+    File segment = new File(dir, "segment-1.log");
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      raf.setLength(raf.length() - 10);
+    }
+
+    queue = UploadQueue.open(dir, LARGE, LARGE);
+    assertEquals(1, queue.size());
+    assertEquals("chair", queue.read(first).getFields().get("label"));
+    // The torn bytes were truncated, so a new record is readable after the next reopen.
+    long third = queue.append(request("lamp", 10));
+    queue.close();
+
+    queue = UploadQueue.open(dir, LARGE, LARGE);
+    assertEquals(2, queue.size());
+    assertEquals("lamp", queue.read(third).getFields().get("label"));
+  }
+
+  @Test
+  public void reopen_dropsRecordWithCorruptCrc() throws IOException {
+    queue = UploadQueue.open(dir, LARGE, LARGE);
+    long first = queue.append(request("chair", 1000));
+    long second = queue.append(request("table", 1000));
+    queue.close();
+    File segment = new File(dir, "segment-1.log");
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      // The last byte belongs to the image of the second record.
+      raf.seek(raf.length() - 1);
+      int last = raf.read();
+      raf.seek(raf.length() - 1);
+      raf.write(last ^ 0xff);
+    }
+
+    queue = UploadQueue.open(dir, LARGE, LARGE);
+    assertEquals(1, queue.size());
+    assertNotNull(queue.read(first));
+    assertNull(queue.read(second));
+  }
+
+  @Test
+  public void reopen_afterCompaction_keepsMovedRecords() throws IOException {
+    queue = UploadQueue.open(dir, LARGE, LARGE);
+    long first = queue.append(request("chair", 1000));
+    long second = queue.append(request("table", 1000));
+    queue.close();
+
+    // Any size starts a new segment for the next append.
+    queue = UploadQueue.open(dir, 1, LARGE);
+    long third = queue.append(request("lamp", 1000));
+    // Half of the first segment is acknowledged, so the second record moves behind the third.
+    queue.ack(first);
+    assertFalse(new File(dir, "segment-1.log").exists());
+    queue.close();
+
+    queue = UploadQueue.open(dir, LARGE, LARGE);
+    assertEquals(2, queue.size());
+    assertNull(queue.read(first));
+    // Still sent oldest first.
+    assertEquals(second, queue.claimNext());
+    assertEquals(third, queue.claimNext());
+    assertEquals("table", queue.read(second).getFields().get("label"));
+    assertArrayEquals(imageBytes(1000), bytesOf(queue.read(second).getImages().get("image")));
+    assertEquals("lamp", queue.read(third).getFields().get("label"));
+  }
+
+  private static ClassificationRequest request(String label, int imageLength) {
+    ClassificationRequest request = new ClassificationRequest();
+    request.putField("label", label);
+    final byte[] image = imageBytes(imageLength);
+    request.putImage(
+        "image",
+        new ClassificationRequest.ImagePart() {
+          @Override
+          public String getContentType() {
+            return "image/jpeg";
+          }
+
+          @Override
+          public String getExtension() {
+            return "jpg";
+          }
+
+          @Override
+          public void writeTo(OutputStream out) throws IOException {
+            out.write(image);
+          }
+        });
+    return request;
+  }
+
+  private static byte[] imageBytes(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (i * 31);
+    }
+    return bytes;
+  }
+
+  private static byte[] bytesOf(ClassificationRequest.ImagePart part) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    part.writeTo(out);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,211 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import javax.imageio.ImageIO;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Times {@link YuvConverter} against the JPEG round trip it replaced: pack the planes into NV21,
+ * compress them to JPEG, decode the JPEG and rotate the decoded pixels. ImageIO stands in for
+ * YuvImage and BitmapFactory, so the absolute numbers are the JVM's, not the phone's.
+ *
+ * <p>Only runs with {@code -Pbenchmarks}. The timings are written to {@code
+ * build/reports/benchmarks}, see {@code benchmarkReportDir} in the app's build.gradle.
+ */
+public class YuvConverterBenchmark {
+  private static final int WIDTH = 1280;
+  private static final int HEIGHT = 720;
+  private static final int WARM_UP = 5;
+  private static final int ITERATIONS = 20;
+
+  @Before
+  public void setUp() {
+    assumeTrue("Run with -Pbenchmarks", Boolean.getBoolean("benchmarks"));
+  }
+
+  @Test
+  public void converterBeatsJpegRoundTrip() throws IOException {
+    FrameHistory.Frame frame = gradientFrame(WIDTH, HEIGHT, 64);
+    YuvConverter converter = new YuvConverter();
+    // The round trip's JPEG is made from the same pixels, so it compresses like a camera frame.
+    BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    image.setRGB(0, 0, WIDTH, HEIGHT, converter.convertToArgb(frame, 0, 1), 0, WIDTH);
+    byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+    byte[] jpeg = encodeJpeg(image);
+    BufferedImage decoded = decodeJpeg(jpeg);
+    for (int i = 0; i < WARM_UP; i++) {
+      converter.convertToArgb(frame, 90, 1);
+      packNv21(frame, nv21);
+      encodeJpeg(image);
+      rotate90(decodeJpeg(jpeg));
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      converter.convertToArgb(frame, 90, 1);
+    }
+    long argbNanos = (System.nanoTime() - start) / ITERATIONS;
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      converter.convertToArgb(frame, 90, 2);
+    }
+    long halfNanos = (System.nanoTime() - start) / ITERATIONS;
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      converter.convertToI420(frame, 90, 1);
+    }
+    long i420Nanos = (System.nanoTime() - start) / ITERATIONS;
+
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      packNv21(frame, nv21);
+    }
+    long packNanos = (System.nanoTime() - start) / ITERATIONS;
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      encodeJpeg(image);
+    }
+    long encodeNanos = (System.nanoTime() - start) / ITERATIONS;
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      decoded = decodeJpeg(jpeg);
+    }
+    long decodeNanos = (System.nanoTime() - start) / ITERATIONS;
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      rotate90(decoded);
+    }
+    long rotateNanos = (System.nanoTime() - start) / ITERATIONS;
+    long roundTripNanos = packNanos + encodeNanos + decodeNanos + rotateNanos;
+
+    String report =
+        String.format(
+            Locale.US,
+            "%dx%d rotated%n"
+                + "converter: argb %.2f ms, argb/2 %.2f ms, i420 %.2f ms%n"
+                + "round trip: %.2f ms (nv21 pack %.2f, jpeg encode %.2f, decode %.2f,"
+                + " rotate %.2f)%n",
+            WIDTH,
+            HEIGHT,
+            argbNanos / 1e6,
+            halfNanos / 1e6,
+            i420Nanos / 1e6,
+            roundTripNanos / 1e6,
+            packNanos / 1e6,
+            encodeNanos / 1e6,
+            decodeNanos / 1e6,
+            rotateNanos / 1e6);
+    writeReport("YuvConverter.txt", report);
+    assertTrue(report, argbNanos < roundTripNanos);
+  }
+
+  private static void writeReport(String name, String report) throws IOException {
+    String dir = System.getProperty("benchmarkReportDir");
+    if (dir == null) {
+      return;
+    }
+    File file = new File(dir, name);
+    if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+      throw new IOException("Cannot create " + file.getParentFile());
+    }
+    try (Writer writer =
+        new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"))) {
+      writer.write(report);
+    }
+  }
+
+  // Smooth planes with the given luma row padding and interleaved chroma, like the camera's NV21.
+  private static FrameHistory.Frame gradientFrame(int width, int height, int padding) {
+    FrameHistory.Frame frame = new FrameHistory.Frame();
+    frame.width = width;
+    frame.height = height;
+    frame.rowStrides[0] = width + padding;
+    frame.pixelStrides[0] = 1;
+    byte[] luma = new byte[frame.rowStrides[0] * (height - 1) + width];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        luma[y * frame.rowStrides[0] + x] = (byte) ((x + y) * 255 / (width + height));
+      }
+    }
+    frame.planes[0] = ByteBuffer.wrap(luma);
+    int chromaRowStride = width + padding;
+    byte[] vu = new byte[chromaRowStride * (height / 2 - 1) + width];
+    for (int y = 0; y < height / 2; y++) {
+      for (int x = 0; x < width / 2; x++) {
+        vu[y * chromaRowStride + 2 * x] = (byte) (96 + x * 64 / width);
+        vu[y * chromaRowStride + 2 * x + 1] = (byte) (160 - y * 64 / height);
+      }
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(vu);
+    frame.planes[2] = buffer;
+    buffer.position(1);
+    frame.planes[1] = buffer.slice();
+    buffer.position(0);
+    for (int plane = 1; plane <= 2; plane++) {
+      frame.rowStrides[plane] = chromaRowStride;
+      frame.pixelStrides[plane] = 2;
+    }
+    return frame;
+  }
+
+  private static void packNv21(FrameHistory.Frame frame, byte[] nv21) {
+    int out = 0;
+    for (int y = 0; y < frame.height; y++) {
+      for (int x = 0; x < frame.width; x++) {
+        nv21[out++] = sample(frame, 0, x, y);
+      }
+    }
+    for (int y = 0; y < frame.height; y += 2) {
+      for (int x = 0; x < frame.width; x += 2) {
+        nv21[out++] = sample(frame, 2, x, y);
+        nv21[out++] = sample(frame, 1, x, y);
+      }
+    }
+  }
+
+  private static byte sample(FrameHistory.Frame frame, int plane, int x, int y) {
+    int shift = plane == 0 ? 0 : 1;
+    return frame.planes[plane].get(
+        (y >> shift) * frame.rowStrides[plane] + (x >> shift) * frame.pixelStrides[plane]);
+  }
+
+  private static byte[] encodeJpeg(BufferedImage image) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (!ImageIO.write(image, "jpg", out)) {
+      throw new IOException("No JPEG writer");
+    }
+    return out.toByteArray();
+  }
+
+  private static BufferedImage decodeJpeg(byte[] jpeg) throws IOException {
+    return ImageIO.read(new ByteArrayInputStream(jpeg));
+  }
+
+  // Turns the image clockwise, as the Matrix rotation of the decoded bitmap did.
+  private static int[] rotate90(BufferedImage image) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+    int[] rotated = new int[pixels.length];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        rotated[x * height + (height - 1 - y)] = pixels[y * width + x];
+      }
+    }
+    return rotated;
+  }
+}
@@ -0,0 +1,247 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks {@link YuvConverter} against a straightforward reference conversion on synthetic planes.
+ */
+public class YuvConverterTest {
+  private static final int[] ROTATIONS = {0, 90, 180, 270};
+  private static final int[] DOWNSCALES = {1, 2, 3, 4};
+  // Width, height, luma row padding, chroma pixel stride (1 planar, 2 semi-planar).
+  private static final int[][] LAYOUTS = {
+    {8, 6, 0, 1},
+    {8, 6, 0, 2},
+    {7, 5, 0, 1},
+    {7, 5, 3, 2},
+    {13, 9, 16, 1},
+    {13, 9, 5, 2},
+    {1, 1, 0, 1},
+    {2, 11, 1, 2},
+  };
+
+  private final Random random = new Random(42);
+
+  @Test
+  public void convertToArgb_matchesReference() {
+    YuvConverter converter = new YuvConverter();
+    for (int[] layout : LAYOUTS) {
+      FrameHistory.Frame frame = newFrame(layout[0], layout[1], layout[2], layout[3]);
+      for (int rotation : ROTATIONS) {
+        for (int downscale : DOWNSCALES) {
+          if (frame.width / downscale == 0 || frame.height / downscale == 0) {
+            continue;
+          }
+          String name = describe(frame, rotation, downscale);
+          int[][] source = sourceCoordinates(frame, rotation, downscale);
+          int[] pixels = converter.convertToArgb(frame, rotation, downscale);
+          assertEquals(
+              name, source.length, converter.getOutputWidth() * converter.getOutputHeight());
+          for (int i = 0; i < source.length; i++) {
+            int expected = referenceArgb(frame, source[i][0], source[i][1]);
+            assertArgbClose(name + " pixel " + i, expected, pixels[i]);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void convertToLuma_matchesReference() {
+    YuvConverter converter = new YuvConverter();
+    for (int[] layout : LAYOUTS) {
+      FrameHistory.Frame frame = newFrame(layout[0], layout[1], layout[2], layout[3]);
+      for (int rotation : ROTATIONS) {
+        for (int downscale : DOWNSCALES) {
+          if (frame.width / downscale == 0 || frame.height / downscale == 0) {
+            continue;
+          }
+          String name = describe(frame, rotation, downscale);
+          int[][] source = sourceCoordinates(frame, rotation, downscale);
+          byte[] luma = converter.convertToLuma(frame, rotation, downscale);
+          byte[] expected = new byte[source.length];
+          for (int i = 0; i < source.length; i++) {
+            expected[i] = sample(frame, 0, source[i][0], source[i][1]);
+          }
+          assertArrayEquals(name, expected, copyOf(luma, expected.length));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void convertToI420_matchesReference() {
+    YuvConverter converter = new YuvConverter();
+    for (int[] layout : LAYOUTS) {
+      FrameHistory.Frame frame = newFrame(layout[0], layout[1], layout[2], layout[3]);
+      for (int rotation : ROTATIONS) {
+        for (int downscale : DOWNSCALES) {
+          if (frame.width / downscale == 0 || frame.height / downscale == 0) {
+            continue;
+          }
+          String name = describe(frame, rotation, downscale);
+          int[][] source = sourceCoordinates(frame, rotation, downscale);
+          byte[] i420 = converter.convertToI420(frame, rotation, downscale);
+          int width = converter.getOutputWidth();
+          int height = converter.getOutputHeight();
+          int chromaWidth = width / 2;
+          int chromaHeight = height / 2;
+          byte[] expected = new byte[width * height + 2 * chromaWidth * chromaHeight];
+          int out = 0;
+          for (int[] xy : source) {
+            expected[out++] = sample(frame, 0, xy[0], xy[1]);
+          }
+          for (int plane = 1; plane <= 2; plane++) {
+            for (int cy = 0; cy < chromaHeight; cy++) {
+              for (int cx = 0; cx < chromaWidth; cx++) {
+                int[] xy = source[cy * 2 * width + cx * 2];
+                expected[out++] = sample(frame, plane, xy[0], xy[1]);
+              }
+            }
+          }
+          assertArrayEquals(name, expected, copyOf(i420, expected.length));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void convertToArgb_reusesPixelsBetweenFrames() {
+    YuvConverter converter = new YuvConverter();
+    FrameHistory.Frame large = newFrame(16, 12, 0, 2);
+    FrameHistory.Frame small = newFrame(8, 6, 0, 2);
+    int[] first = converter.convertToArgb(large, 0, 1);
+    int[] second = converter.convertToArgb(small, 90, 1);
+    assertTrue(first == second);
+    assertEquals(6, converter.getOutputWidth());
+    assertEquals(8, converter.getOutputHeight());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void convertToArgb_rejectsOddRotation() {
+    new YuvConverter().convertToArgb(newFrame(8, 6, 0, 1), 45, 1);
+  }
+
+  // Random planes with the given luma row padding; chroma planes are subsampled by 2 and rounded
+  // up. With a chroma pixel stride of 2, U and V interleave in one buffer like the camera's NV21.
+  private FrameHistory.Frame newFrame(int width, int height, int padding, int chromaPixelStride) {
+    FrameHistory.Frame frame = new FrameHistory.Frame();
+    frame.width = width;
+    frame.height = height;
+    frame.rowStrides[0] = width + padding;
+    frame.pixelStrides[0] = 1;
+    frame.planes[0] = randomBuffer(frame.rowStrides[0] * (height - 1) + width);
+    int chromaWidth = (width + 1) / 2;
+    int chromaHeight = (height + 1) / 2;
+    int chromaRowStride = chromaWidth * chromaPixelStride + padding;
+    if (chromaPixelStride == 1) {
+      int size = chromaRowStride * (chromaHeight - 1) + chromaWidth;
+      frame.planes[1] = randomBuffer(size);
+      frame.planes[2] = randomBuffer(size);
+    } else {
+      int size = chromaRowStride * (chromaHeight - 1) + chromaWidth * chromaPixelStride;
+      ByteBuffer vu = randomBuffer(size);
+      frame.planes[2] = vu;
+      vu.position(1);
+      frame.planes[1] = vu.slice();
+      vu.position(0);
+    }
+    for (int plane = 1; plane <= 2; plane++) {
+      frame.rowStrides[plane] = chromaRowStride;
+      frame.pixelStrides[plane] = chromaPixelStride;
+    }
+    return frame;
+  }
+
+  private ByteBuffer randomBuffer(int size) {
+    byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  // For every output pixel in row order, the source x and y it samples. Built by downscaling the
+  // coordinate grid and then turning it clockwise 90 degrees at a time.
+  private static int[][] sourceCoordinates(FrameHistory.Frame frame, int rotation, int downscale) {
+    int width = frame.width / downscale;
+    int height = frame.height / downscale;
+    int[][][] grid = new int[height][width][];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        grid[y][x] = new int[] {x * downscale, y * downscale};
+      }
+    }
+    for (int turn = 0; turn < rotation / 90; turn++) {
+      int[][][] turned = new int[grid[0].length][grid.length][];
+      for (int y = 0; y < turned.length; y++) {
+        for (int x = 0; x < turned[0].length; x++) {
+          turned[y][x] = grid[grid.length - 1 - x][y];
+        }
+      }
+      grid = turned;
+    }
+    int[][] coordinates = new int[grid.length * grid[0].length][];
+    int i = 0;
+    for (int[][] row : grid) {
+      for (int[] xy : row) {
+        coordinates[i++] = xy;
+      }
+    }
+    return coordinates;
+  }
+
+  private static String describe(FrameHistory.Frame frame, int rotation, int downscale) {
+    return String.format(
+        Locale.US,
+        "%dx%d strides %d/%d rotation %d downscale %d",
+        frame.width,
+        frame.height,
+        frame.rowStrides[0],
+        frame.pixelStrides[1],
+        rotation,
+        downscale);
+  }
+
+  private static byte sample(FrameHistory.Frame frame, int plane, int x, int y) {
+    int shift = plane == 0 ? 0 : 1;
+    return frame.planes[plane].get(
+        (y >> shift) * frame.rowStrides[plane] + (x >> shift) * frame.pixelStrides[plane]);
+  }
+
+  // Full-range BT.601 in floating point.
+  private static int referenceArgb(FrameHistory.Frame frame, int x, int y) {
+    int luma = sample(frame, 0, x, y) & 0xff;
+    int u = (sample(frame, 1, x, y) & 0xff) - 128;
+    int v = (sample(frame, 2, x, y) & 0xff) - 128;
+    int r = clamp(luma + 1.402 * v);
+    int g = clamp(luma - 0.344136 * u - 0.714136 * v);
+    int b = clamp(luma + 1.772 * u);
+    return 0xff000000 | (r << 16) | (g << 8) | b;
+  }
+
+  private static int clamp(double value) {
+    return (int) Math.max(0, Math.min(255, Math.round(value)));
+  }
+
+  // The fixed-point conversion rounds down, so each channel may be one below the reference.
+  private static void assertArgbClose(String message, int expected, int actual) {
+    assertEquals(message + " alpha", expected >>> 24, actual >>> 24);
+    for (int shift = 0; shift <= 16; shift += 8) {
+      int e = (expected >> shift) & 0xff;
+      int a = (actual >> shift) & 0xff;
+      assertTrue(message + ": expected " + e + " got " + a, Math.abs(e - a) <= 1);
+    }
+  }
+
+  private static byte[] copyOf(byte[] array, int length) {
+    byte[] copy = new byte[length];
+    System.arraycopy(array, 0, copy, 0, length);
+    return copy;
+  }
+}
@@ -0,0 +1,293 @@
+package com.google.ar.core.examples.java.cloudanchor.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends classification requests from simulated clients and reports throughput and latency.
+ *
+ * <p>Every client is a thread that sends one request at a time over a kept-alive connection, like
+ * the app does. Bodies are replayed round robin from requests captured by {@link StandInServer},
+ * or synthesized as a multipart request with one random image of the given size.
+ */
+final class LoadGenerator {
+  /** A request body together with its content type. */
+  static final class Body {
+    final String contentType;
+    final byte[] bytes;
+
+    Body(String contentType, byte[] bytes) {
+      this.contentType = contentType;
+      this.bytes = bytes;
+    }
+  }
+
+  /** The outcome of a run. */
+  static final class Report {
+    final long elapsedMs;
+    final int requests;
+    final long bytesSent;
+    // Requests by status, 0 for requests that failed without a status.
+    final Map<Integer, Integer> statuses;
+    // Latencies of all requests in milliseconds, sorted.
+    final long[] latencies;
+
+    Report(long elapsedMs, long bytesSent, Map<Integer, Integer> statuses, long[] latencies) {
+      this.elapsedMs = elapsedMs;
+      this.requests = latencies.length;
+      this.bytesSent = bytesSent;
+      this.statuses = statuses;
+      this.latencies = latencies;
+    }
+
+    /** Returns the latency below which {@code percentile} of the requests finished. */
+    long percentile(double percentile) {
+      if (latencies.length == 0) {
+        return 0;
+      }
+      int index = (int) Math.ceil(percentile * latencies.length) - 1;
+      return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+    }
+
+    @Override
+    public String toString() {
+      double seconds = Math.max(1, elapsedMs) / 1000.0;
+      return String.format(
+          Locale.US,
+          "%d requests in %.1f s: %.1f req/s, %.2f MB/s sent%n"
+              + "statuses %s%n"
+              + "latency ms p50 %d, p90 %d, p95 %d, p99 %d, max %d",
+          requests,
+          seconds,
+          requests / seconds,
+          bytesSent / 1e6 / seconds,
+          statuses,
+          percentile(0.5),
+          percentile(0.9),
+          percentile(0.95),
+          percentile(0.99),
+          latencies.length > 0 ? latencies[latencies.length - 1] : 0);
+    }
+  }
+
+  private final String url;
+  private final int clients;
+  private final int maxRequests;
+  private final int durationS;
+  private final int thinkMs;
+  private final List<Body> bodies;
+
+  /**
+   * @param maxRequests the total number of requests, ignored when {@code durationS} is set
+   * @param durationS how long to send requests, 0 to send {@code maxRequests}
+   * @param thinkMs the pause of a client between two requests
+   */
+  LoadGenerator(
+      String url, int clients, int maxRequests, int durationS, int thinkMs, List<Body> bodies) {
+    if (bodies.isEmpty()) {
+      throw new IllegalArgumentException("No request bodies to send");
+    }
+    this.url = url;
+    this.clients = Math.max(1, clients);
+    this.maxRequests = maxRequests;
+    this.durationS = durationS;
+    this.thinkMs = thinkMs;
+    this.bodies = bodies;
+  }
+
+  /**
+   * Loads the bodies captured in {@code replayDir}, or synthesizes one with an image of {@code
+   * bodyKb} kilobytes if it is null.
+   */
+  static List<Body> loadBodies(File replayDir, int bodyKb) throws IOException {
+    List<Body> bodies = new ArrayList<>();
+    if (replayDir == null) {
+      bodies.add(syntheticBody(bodyKb));
+      return bodies;
+    }
+    File[] files = replayDir.listFiles((dir, name) -> name.endsWith(".body"));
+    if (files == null) {
+      throw new IOException("Cannot list " + replayDir);
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      String name = file.getName();
+      File type = new File(file.getParentFile(), name.substring(0, name.length() - 5) + ".type");
+      bodies.add(
+          new Body(
+              new String(Files.readAllBytes(type.toPath()), StandardCharsets.UTF_8).trim(),
+              Files.readAllBytes(file.toPath())));
+    }
+    System.out.println("Replaying " + bodies.size() + " captured requests from " + replayDir);
+    return bodies;
+  }
+
+  // A multipart request shaped like the app's, with random bytes standing in for the image.
+  private static Body syntheticBody(int imageKb) {
+    String boundary = "----multiUserARloadtest";
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    writeField(body, boundary, "gyro_readings", "0.01");
+    writeField(body, boundary, "anchor_IDs", "[]");
+    writeField(body, boundary, "multiUser", "single");
+    byte[] image = new byte[Math.max(0, imageKb) * 1024];
+    new Random(42).nextBytes(image);
+    writeAscii(
+        body,
+        "--"
+            + boundary
+            + "\r\nContent-Disposition: form-data; name=\"image_bytes\"; filename=\"image_bytes.jpg\""
+            + "\r\nContent-Type: image/jpeg\r\n\r\n");
+    body.write(image, 0, image.length);
+    writeAscii(body, "\r\n--" + boundary + "--\r\n");
+    return new Body("multipart/form-data; boundary=" + boundary, body.toByteArray());
+  }
+
+  private static void writeField(ByteArrayOutputStream out, String boundary, String name, String v) {
+    writeAscii(
+        out,
+        "--"
+            + boundary
+            + "\r\nContent-Disposition: form-data; name=\""
+            + name
+            + "\"\r\nContent-Type: text/plain; charset=UTF-8\r\n\r\n"
+            + v
+            + "\r\n");
+  }
+
+  private static void writeAscii(ByteArrayOutputStream out, String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  /** Runs the clients until the requests are sent or the duration is over. */
+  Report run() throws InterruptedException {
+    System.setProperty("http.keepAlive", "true");
+    System.setProperty("http.maxConnections", Integer.toString(clients));
+    final AtomicInteger issued = new AtomicInteger();
+    final long deadline =
+        durationS > 0 ? System.currentTimeMillis() + durationS * 1000L : Long.MAX_VALUE;
+    final Client[] workers = new Client[clients];
+    Thread[] threads = new Thread[clients];
+    long start = System.nanoTime();
+    for (int i = 0; i < clients; i++) {
+      workers[i] = new Client(issued, deadline);
+      threads[i] = new Thread(workers[i], "LoadClient-" + i);
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+    int total = 0;
+    for (Client client : workers) {
+      total += client.count;
+    }
+    long[] latencies = new long[total];
+    int next = 0;
+    long bytesSent = 0;
+    Map<Integer, Integer> statuses = new TreeMap<>();
+    for (Client client : workers) {
+      System.arraycopy(client.latencies, 0, latencies, next, client.count);
+      next += client.count;
+      bytesSent += client.bytesSent;
+      for (Map.Entry<Integer, Integer> status : client.statuses.entrySet()) {
+        statuses.merge(status.getKey(), status.getValue(), Integer::sum);
+      }
+    }
+    Arrays.sort(latencies);
+    return new Report(elapsedMs, bytesSent, statuses, latencies);
+  }
+
+  // One simulated app, its counters are only read once its thread has ended.
+  private final class Client implements Runnable {
+    private final AtomicInteger issued;
+    private final long deadline;
+    private final byte[] buffer = new byte[16384];
+    long[] latencies = new long[256];
+    int count;
+    long bytesSent;
+    final Map<Integer, Integer> statuses = new TreeMap<>();
+
+    Client(AtomicInteger issued, long deadline) {
+      this.issued = issued;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public void run() {
+      while (System.currentTimeMillis() < deadline) {
+        int sequence = issued.getAndIncrement();
+        if (durationS <= 0 && sequence >= maxRequests) {
+          return;
+        }
+        Body body = bodies.get(sequence % bodies.size());
+        long start = System.nanoTime();
+        int status = send(body);
+        record((System.nanoTime() - start) / 1000000, status);
+        bytesSent += body.bytes.length;
+        if (thinkMs > 0) {
+          try {
+            Thread.sleep(thinkMs);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }
+
+    // Returns the status, or 0 if the request failed without one.
+    private int send(Body body) {
+      HttpURLConnection connection = null;
+      try {
+        connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.bytes.length);
+        connection.setRequestProperty("Content-Type", body.contentType);
+        try (OutputStream out = connection.getOutputStream()) {
+          out.write(body.bytes);
+        }
+        int status = connection.getResponseCode();
+        InputStream in =
+            status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+          // Read to the end, so the connection goes back to the pool.
+          while (in.read(buffer) != -1) {
+            // Discard.
+          }
+          in.close();
+        }
+        return status;
+      } catch (IOException e) {
+        if (connection != null) {
+          connection.disconnect();
+        }
+        return 0;
+      }
+    }
+
+    private void record(long latencyMs, int status) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = latencyMs;
+      statuses.merge(status, 1, Integer::sum);
+    }
+  }
+}
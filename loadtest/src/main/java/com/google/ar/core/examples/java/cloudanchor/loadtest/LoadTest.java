@@ -0,0 +1,113 @@
+package com.google.ar.core.examples.java.cloudanchor.loadtest;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line entry point of the load test tools.
+ *
+ * <pre>
+ * server [--port 5000] [--threads 16] [--latency-ms 0] [--jitter-ms 0] [--error-rate 0]
+ *        [--confidence C] [--need-full-rate R] [--reject-multipart] [--padding-bytes 0]
+ *        [--anchors 3] [--capture-dir DIR]
+ * load   [--url http://127.0.0.1:5000/api/test] [--clients 4] [--requests 200]
+ *        [--duration-s 0] [--replay-dir DIR] [--body-kb 200] [--think-ms 0]
+ * </pre>
+ *
+ * <p>Run the server with {@code ./gradlew :loadtest:run --args='server'}, point the app's {@code
+ * url} at it or capture its requests with {@code --capture-dir}, then replay them with {@code
+ * ./gradlew :loadtest:run --args='load --replay-dir DIR --clients 8'}. With {@code --confidence}
+ * or {@code --need-full-rate} the server answers with those fields, which drive the app's
+ * progressive upload; without them it sends neither.
+ */
+public final class LoadTest {
+  private LoadTest() {}
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      usage();
+      return;
+    }
+    Options options = new Options(args);
+    switch (args[0]) {
+      case "server":
+        new StandInServer(
+                options.getInt("port", 5000),
+                options.getInt("threads", 16),
+                options.getInt("latency-ms", 0),
+                options.getInt("jitter-ms", 0),
+                options.getDouble("error-rate", 0),
+                options.getDouble("confidence", Double.NaN),
+                options.getDouble("need-full-rate", Double.NaN),
+                options.has("reject-multipart"),
+                options.getInt("padding-bytes", 0),
+                options.getInt("anchors", 3),
+                options.getFile("capture-dir"))
+            .start();
+        break;
+      case "load":
+        LoadGenerator.Report report =
+            new LoadGenerator(
+                    options.get("url", "http://127.0.0.1:5000/api/test"),
+                    options.getInt("clients", 4),
+                    options.getInt("requests", 200),
+                    options.getInt("duration-s", 0),
+                    options.getInt("think-ms", 0),
+                    LoadGenerator.loadBodies(
+                        options.getFile("replay-dir"), options.getInt("body-kb", 200)))
+                .run();
+        System.out.println(report);
+        break;
+      default:
+        usage();
+    }
+  }
+
+  private static void usage() {
+    System.err.println("usage: LoadTest server [options] | LoadTest load [options], see LoadTest");
+  }
+
+  // Parses --name value pairs and --flag switches after the command.
+  private static final class Options {
+    private final Map<String, String> values = new HashMap<>();
+
+    Options(String[] args) {
+      for (int i = 1; i < args.length; i++) {
+        if (!args[i].startsWith("--")) {
+          throw new IllegalArgumentException("Unexpected argument " + args[i]);
+        }
+        String name = args[i].substring(2);
+        if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+          values.put(name, args[++i]);
+        } else {
+          values.put(name, "true");
+        }
+      }
+    }
+
+    boolean has(String name) {
+      return values.containsKey(name);
+    }
+
+    String get(String name, String defaultValue) {
+      String value = values.get(name);
+      return value != null ? value : defaultValue;
+    }
+
+    int getInt(String name, int defaultValue) {
+      String value = values.get(name);
+      return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    double getDouble(String name, double defaultValue) {
+      String value = values.get(name);
+      return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    File getFile(String name) {
+      String value = values.get(name);
+      return value != null ? new File(value) : null;
+    }
+  }
+}
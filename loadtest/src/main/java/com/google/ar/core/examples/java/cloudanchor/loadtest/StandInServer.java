@@ -0,0 +1,235 @@
+package com.google.ar.core.examples.java.cloudanchor.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the two endpoints of the classification server the app talks to, without any model.
+ *
+ * <ul>
+ *   <li>{@code POST /api/test} takes a classification request as multipart/form-data or as the
+ *       url-encoded form, and answers {@code labels}, {@code single} and {@code type}, and when
+ *       configured the {@code confidence} and {@code need_full} a progressive upload acts on.
+ *   <li>{@code GET /api/test2} answers {@code nAnchorsHigh}.
+ * </ul>
+ *
+ * Every classification is delayed by the configured latency plus a uniform jitter, fails with a
+ * 500 at the configured rate, and carries a {@code padding} field of the configured size, so the
+ * client's behaviour under slow, failing or large responses can be reproduced. The label is picked
+ * from the body size, so the same request always gets the same answer.
+ */
+final class StandInServer {
+  private static final List<String> LABELS =
+      Arrays.asList("tv", "cup", "cell phone", "keyboard", "person", "pens", "shoes", "chair");
+
+  private final int port;
+  private final int threads;
+  private final int latencyMs;
+  private final int jitterMs;
+  private final double errorRate;
+  private final double confidence;
+  private final double needFullRate;
+  private final boolean rejectMultipart;
+  private final String padding;
+  private final int anchors;
+  private final File captureDir;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+
+  /**
+   * @param threads the number of requests handled at once
+   * @param errorRate the fraction of classifications answered with a 500, from 0 to 1
+   * @param confidence the {@code confidence} sent with every label, NaN to not send one
+   * @param needFullRate the fraction of classifications answered with {@code need_full} true, NaN
+   *     to not send the field
+   * @param rejectMultipart answer multipart bodies with a 415, like an endpoint that only reads the
+   *     form, which makes the app fall back to the form
+   * @param paddingBytes the size of the filler added to every classification response
+   * @param captureDir where every classification body is saved for replay, null to not save them
+   */
+  StandInServer(
+      int port,
+      int threads,
+      int latencyMs,
+      int jitterMs,
+      double errorRate,
+      double confidence,
+      double needFullRate,
+      boolean rejectMultipart,
+      int paddingBytes,
+      int anchors,
+      File captureDir) {
+    this.port = port;
+    this.threads = Math.max(1, threads);
+    this.latencyMs = Math.max(0, latencyMs);
+    this.jitterMs = Math.max(0, jitterMs);
+    this.errorRate = errorRate;
+    this.confidence = confidence;
+    this.needFullRate = needFullRate;
+    this.rejectMultipart = rejectMultipart;
+    char[] filler = new char[Math.max(0, paddingBytes)];
+    Arrays.fill(filler, 'x');
+    this.padding = new String(filler);
+    this.anchors = anchors;
+    this.captureDir = captureDir;
+  }
+
+  /** Starts serving on a pool of {@code threads} threads. Returns once the port is bound. */
+  HttpServer start() throws IOException {
+    if (captureDir != null && !captureDir.isDirectory() && !captureDir.mkdirs()) {
+      throw new IOException("Cannot create " + captureDir);
+    }
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 128);
+    server.createContext("/api/test", this::classify);
+    server.createContext("/api/test2", this::anchors);
+    server.setExecutor(Executors.newFixedThreadPool(threads));
+    server.start();
+    System.out.println(
+        String.format(
+            Locale.US,
+            "Serving /api/test and /api/test2 on port %d: latency %d+-%d ms, error rate %.2f,"
+                + " padding %d bytes%s%s%s",
+            server.getAddress().getPort(),
+            latencyMs,
+            jitterMs,
+            errorRate,
+            padding.length(),
+            Double.isNaN(confidence)
+                ? ""
+                : String.format(Locale.US, ", confidence %.2f", confidence),
+            Double.isNaN(needFullRate)
+                ? ""
+                : String.format(Locale.US, ", need_full rate %.2f", needFullRate),
+            rejectMultipart ? ", multipart rejected" : ""));
+    return server;
+  }
+
+  private void classify(HttpExchange exchange) throws IOException {
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        respond(exchange, 405, "{\"error\": \"POST only\"}");
+        return;
+      }
+      String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+      long count = requests.incrementAndGet();
+      long size = readBody(exchange.getRequestBody(), contentType, count);
+      bytesReceived.addAndGet(size);
+      if (rejectMultipart && contentType != null && contentType.startsWith("multipart/")) {
+        respond(exchange, 415, "{\"error\": \"form only\"}");
+        return;
+      }
+      sleep(latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextInt(jitterMs + 1) : 0));
+      if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+        failures.incrementAndGet();
+        respond(exchange, 500, "{\"error\": \"injected failure\"}");
+        return;
+      }
+      String label = LABELS.get(new Random(size).nextInt(LABELS.size()));
+      respond(
+          exchange,
+          200,
+          "{\"labels\": \""
+              + label
+              + "\", \"single\": \""
+              + label
+              + "\", \"type\": \""
+              + (contentType != null && contentType.startsWith("multipart/") ? "multipart" : "form")
+              + "\""
+              + (Double.isNaN(confidence)
+                  ? ""
+                  : String.format(Locale.US, ", \"confidence\": %.3f", confidence))
+              + (Double.isNaN(needFullRate)
+                  ? ""
+                  : ", \"need_full\": " + (ThreadLocalRandom.current().nextDouble() < needFullRate))
+              + ", \"padding\": \""
+              + padding
+              + "\"}");
+      if (count % 100 == 0) {
+        System.out.println(
+            String.format(
+                Locale.US,
+                "%d classifications, %d injected failures, %.1f MB received",
+                count,
+                failures.get(),
+                bytesReceived.get() / 1e6));
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void anchors(HttpExchange exchange) throws IOException {
+    try {
+      readBody(exchange.getRequestBody(), null, 0);
+      sleep(latencyMs);
+      respond(exchange, 200, "{\"nAnchorsHigh\": " + anchors + "}");
+    } finally {
+      exchange.close();
+    }
+  }
+
+  // Reads the whole body, saving it with its content type when capturing. Returns its size.
+  private long readBody(InputStream in, String contentType, long count) throws IOException {
+    OutputStream capture = null;
+    if (captureDir != null && contentType != null) {
+      String name = String.format(Locale.US, "request-%06d", count);
+      try (OutputStream type = new FileOutputStream(new File(captureDir, name + ".type"))) {
+        type.write(contentType.getBytes(StandardCharsets.UTF_8));
+      }
+      capture = new FileOutputStream(new File(captureDir, name + ".body"));
+    }
+    try {
+      byte[] buffer = new byte[65536];
+      long size = 0;
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        size += read;
+        if (capture != null) {
+          capture.write(buffer, 0, read);
+        }
+      }
+      return size;
+    } finally {
+      if (capture != null) {
+        capture.close();
+      }
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+    byte[] body = json.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static void sleep(long ms) {
+    if (ms <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}